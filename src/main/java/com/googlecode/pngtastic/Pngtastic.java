@@ -4,14 +4,37 @@
  */
 package com.googlecode.pngtastic;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
+import com.googlecode.pngtastic.core.PngArchiveOptimizer;
+import com.googlecode.pngtastic.core.PngAudit;
+import com.googlecode.pngtastic.core.PngBatchOptimizer;
+import com.googlecode.pngtastic.core.PngDirectoryWatcher;
+import com.googlecode.pngtastic.core.PngFileWalker;
 import com.googlecode.pngtastic.core.PngImage;
+import com.googlecode.pngtastic.core.PngJournal;
 import com.googlecode.pngtastic.core.PngOptimizer;
+import com.googlecode.pngtastic.core.PngShardQueue;
 
 /**
  * Optimizes PNG images to reduce filesize
@@ -25,47 +48,386 @@ import com.googlecode.pngtastic.core.PngOptimizer;
 public class Pngtastic
 {
 	/** */
-	private static final String HELP = "java -jar pngtastic-x.x.x.jar com.googlecode.pngtastic.Pngtastic [options] file1 [file2 ..]\n"
+	private static final String HELP = "java -jar pngtastic-x.x.x.jar com.googlecode.pngtastic.Pngtastic [options] file1|dir1 [file2|dir2 ..]\n"
+			+ "       java -jar pngtastic-x.x.x.jar com.googlecode.pngtastic.Pngtastic [options] - < in.png > out.png\n"
 			+ "Options:\n"
 			+ "  --toDir            the directory where optimized files go (will be created if it doesn't exist)\n"
+			+ "  --include          a glob for the files to optimize under each directory (default is *.png)\n"
+			+ "  --exclude          a glob for the files and directories to skip under each directory\n"
 			+ "  --fileSuffix       string appended to the optimized files (file.png can become file.png.optimized.png)\n"
 			+ "  --compressionLevel the compression level; 0-9 allowed (default is to try them all by brute force)\n"
-			+ "  --logLevel         the level of logging output (none, debug, info, or error)\n";
+			+ "  --logLevel         the level of logging output (none, debug, info, or error)\n"
+			+ "  --journal          a file that records each file finished, so that the run can be resumed\n"
+			+ "  --resume           a journal to carry on from, skipping the files already in it\n"
+			+ "  --workers          the number of worker processes to share the files among, for machines with many cores\n"
+			+ "  --spool            the directory the workers share the files through; give it again to carry on after an interruption\n"
+			+ "  --watch            keep optimizing pngs as they are added to or changed in the directories, each once it has been unchanged this many milliseconds\n"
+			+ "  --skipBelow        skip pngs estimated from a sample of their rows to shrink by less than this percentage, copying them as they are\n"
+			+ "  --markOptimized    true to add a 16 byte private chunk to each optimized png, so that --skipBelow skips it at once when it is optimized again\n"
+			+ "  --audit            estimate the savings from this percentage of the files, and a sample of the rows of each, writing nothing\n"
+			+ "  --report           the file the audit writes its tab separated report of each directory to (default is stdout)\n"
+			+ "  --maxInflatedSize  reject pngs whose headers claim more than this many bytes of image data, as likely decompression bombs (default is 2147483639)\n"
+			+ "Zip archives (.zip, .jar, .war, .ear, .apk or .aar) have the pngs inside them optimized, and are rewritten with the other entries as they were\n"
+			+ "A file name of - optimizes one or more pngs, one after another, from stdin to stdout, with the stats on stderr\n";
+
+	/** the file name that stands for stdin and stdout */
+	private static final String PIPE = "-";
+
+	/** how long a worker waits before looking for shards again */
+	private static final long CLAIM_INTERVAL_MILLIS = 500;
+
+	/** the number of files each worker process reads at once */
+	private static final int WORKER_READER_THREADS = 2;
+
+	/** the number of optimized files synced at once in each directory */
+	private static final int SYNC_BATCH_SIZE = 64;
 
 	/** */
 	public Pngtastic(String toDir, String[] fileNames, String fileSuffix, Integer compressionLevel, String logLevel)
+	{
+		this(toDir, fileNames, fileSuffix, compressionLevel, logLevel, null, null);
+	}
+
+	/** */
+	public Pngtastic(String toDir, String[] fileNames, String fileSuffix, Integer compressionLevel, String logLevel,
+			String include, String exclude)
+	{
+		this(toDir, fileNames, fileSuffix, compressionLevel, logLevel, include, exclude, null, false);
+	}
+
+	/** */
+	public Pngtastic(String toDir, String[] fileNames, String fileSuffix, Integer compressionLevel, String logLevel,
+			String include, String exclude, String journalFileName, boolean resume)
+	{
+		this(toDir, fileNames, fileSuffix, compressionLevel, logLevel, include, exclude, journalFileName, resume, 0, false);
+	}
+
+	/** */
+	public Pngtastic(String toDir, String[] fileNames, String fileSuffix, Integer compressionLevel, String logLevel,
+			String include, String exclude, String journalFileName, boolean resume, double skipThreshold, boolean markOptimized)
+	{
+		this(toDir, fileNames, fileSuffix, compressionLevel, logLevel, include, exclude, journalFileName, resume, skipThreshold, markOptimized, 0);
+	}
+
+	/**
+	 * Optimize files, and the files under directories that match the include
+	 * glob and not the exclude glob.  Each file goes to the same relative
+	 * path under toDir.  Optimizing starts as soon as the first file is found.
+	 * Archives named directly are optimized after the other files, one at a
+	 * time, each using all the cores.
+	 * <p>
+	 * With a journal, each file finished is recorded in it, and a run that
+	 * resumes from it skips the files already there and counts their
+	 * savings in its totals.
+	 * <p>
+	 * Files estimated to shrink by less than skipThreshold, as a fraction of
+	 * their size, are skipped and copied as they are.  Files whose headers
+	 * claim more than maxInflatedSize bytes of image data are rejected, and
+	 * a maxInflatedSize of 0 leaves the batch optimizer's default.
+	 */
+	public Pngtastic(String toDir, String[] fileNames, String fileSuffix, Integer compressionLevel, String logLevel,
+			String include, String exclude, String journalFileName, boolean resume, double skipThreshold, boolean markOptimized,
+			long maxInflatedSize)
 	{
 		long start = System.currentTimeMillis();
 
 		PngOptimizer optimizer = new PngOptimizer(logLevel);
-		for (String file : fileNames)
+		optimizer.setSyncBatchSize(SYNC_BATCH_SIZE);
+		optimizer.setSkipThreshold(skipThreshold);
+		optimizer.setMarkOptimized(markOptimized);
+
+		PngJournal journal = null;
+		if (journalFileName != null)
 		{
 			try
 			{
-				String outputPath = toDir + "/" + file;
-				this.makeDirs(outputPath.substring(0, outputPath.lastIndexOf('/')));
+				journal = new PngJournal(new File(journalFileName), resume, SYNC_BATCH_SIZE);
+				optimizer.setJournal(journal);
+			}
+			catch (IOException e)
+			{
+				System.out.println(String.format("Error opening journal %s: %s", journalFileName, e.getMessage()));
+				return;
+			}
+		}
+
+		List<String> archives = new ArrayList<String>();
+		List<String> others = new ArrayList<String>();
+		for (String fileName : fileNames)
+			(PngArchiveOptimizer.isArchive(fileName) ? archives : others).add(fileName);
 
-				PngImage image = new PngImage(file);
-				optimizer.optimize(image, outputPath + fileSuffix, compressionLevel);
+		PngFileWalker walker = new PngFileWalker(logLevel, others, include, exclude);
+		try
+		{
+			createBatchOptimizer(optimizer, maxInflatedSize).optimize(withOutputs(walker, toDir, fileSuffix), compressionLevel);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+
+		try
+		{
+			if (journal != null)
+				journal.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+
+		PngArchiveOptimizer archiveOptimizer = new PngArchiveOptimizer(optimizer);
+		for (String archive : archives)
+		{
+			try
+			{
+				archiveOptimizer.optimize(archive, toDir + "/" + archive + fileSuffix, compressionLevel);
 			}
 			catch (IOException e)
 			{
-				e.printStackTrace();
+				System.out.println(String.format("Error optimizing %s: %s", archive, e.getMessage()));
 			}
 		}
 		System.out.println(String.format("Processed %d files in %d milliseconds, saving %d bytes", optimizer.getStats().size(), System.currentTimeMillis() - start, optimizer.getTotalSavings()));
+		if (optimizer.getSkippedCount() > 0)
+			System.out.println(String.format("Skipped %d files as already optimized", optimizer.getSkippedCount()));
 	}
 
-	/* */
-	private String makeDirs(String path) throws IOException
+	/**
+	 * Optimize the pngs in directories, and then each png added or changed
+	 * in them, until the process is stopped.  Each file is optimized once
+	 * it has gone unchanged for quietMillis, and is synced as soon as it is
+	 * written.  Marking the optimized files lets them be skipped at once
+	 * when the directories are watched again.
+	 */
+	public static void watch(String toDir, String[] directoryNames, String fileSuffix, Integer compressionLevel, String logLevel,
+			String include, String exclude, long quietMillis, double skipThreshold, boolean markOptimized, long maxInflatedSize) throws IOException
 	{
-		File out = new File(path);
-		if (!out.exists())
+		PngOptimizer optimizer = new PngOptimizer(logLevel);
+		optimizer.setSkipThreshold(skipThreshold);
+		optimizer.setMarkOptimized(markOptimized);
+		PngDirectoryWatcher watcher = new PngDirectoryWatcher(logLevel, Arrays.asList(directoryNames), include, exclude, quietMillis);
+		optimizer.setWriteListener(watcher);
+		try
+		{
+			createBatchOptimizer(optimizer, maxInflatedSize).optimize(withOutputs(watcher, toDir, fileSuffix), compressionLevel);
+		}
+		finally
 		{
-			if (!out.mkdirs())
-				throw new IOException("Couldn't create path: " + path);
+			watcher.close();
+		}
+	}
+
+	/**
+	 * Estimate how much optimizing the files would save from a sample of
+	 * them, without optimizing or writing any, and write a report of each
+	 * directory, to stdout if reportFileName is null.
+	 */
+	public static void audit(String[] fileNames, String logLevel, String include, String exclude, double sampleRate, String reportFileName) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		PngAudit audit = new PngAudit(logLevel, sampleRate, Runtime.getRuntime().availableProcessors());
+		audit.audit(new PngFileWalker(logLevel, Arrays.asList(fileNames), include, exclude));
+
+		Writer report = (reportFileName == null) ? new OutputStreamWriter(System.out, "UTF-8")
+				: new OutputStreamWriter(new FileOutputStream(reportFileName), "UTF-8");
+		try
+		{
+			audit.writeReport(report);
+		}
+		finally
+		{
+			if (reportFileName != null)
+				report.close();
+		}
+
+		int fileCount = 0;
+		int sampledCount = 0;
+		for (PngAudit.Directory directory : audit.getDirectories())
+		{
+			fileCount += directory.getFileCount();
+			sampledCount += directory.getSampledCount();
+		}
+		System.out.println(String.format("Audited %d files from a sample of %d in %d milliseconds, estimating savings of %d bytes, give or take %d",
+				fileCount, sampledCount, System.currentTimeMillis() - start, audit.getEstimatedSavings(), audit.getMargin()));
+	}
+
+	/**
+	 * Optimize files with several worker processes, each a JVM of its own
+	 * started with the same JVM options and class path as this one, which
+	 * share out the cores.  The files are split into shards in the spool
+	 * directory, from which the workers claim them.  The shards of a worker
+	 * that dies are claimed by the others, and workers are started again
+	 * while shards remain, once for each worker asked for.  If this process
+	 * is stopped, running it again with the same spool carries on from the
+	 * shards already complete.
+	 */
+	public static void coordinate(String toDir, String[] fileNames, String fileSuffix, Integer compressionLevel, String logLevel,
+			String include, String exclude, int workers, String spoolName, double skipThreshold, boolean markOptimized, long maxInflatedSize)
+			throws IOException, InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		File spool = (spoolName == null) ? Files.createTempDirectory("pngtastic-spool").toFile() : new File(spoolName);
+		PngShardQueue queue = new PngShardQueue(spool);
+		if (!queue.isSharded())
+		{
+			// shards added by a coordinator that stopped part way may not be listed the same way again
+			queue.delete();
+			queue = new PngShardQueue(spool);
+		}
+
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+		List<Process> processes = new ArrayList<Process>();
+		for (int i = 0; i < workers; i++)
+			processes.add(startWorker(spool, threads, compressionLevel, logLevel, skipThreshold, markOptimized, maxInflatedSize));
+
+		if (!queue.isSharded())
+		{
+			Iterator<Entry<String, String>> files = withOutputs(new PngFileWalker(logLevel, Arrays.asList(fileNames), include, exclude), toDir, fileSuffix);
+			Map<String, String> shard = new LinkedHashMap<String, String>();
+			while (files.hasNext())
+			{
+				Entry<String, String> file = files.next();
+				shard.put(file.getKey(), file.getValue());
+				if (shard.size() == PngShardQueue.DEFAULT_SHARD_SIZE)
+				{
+					queue.add(shard);
+					shard.clear();
+				}
+			}
+			if (!shard.isEmpty())
+				queue.add(shard);
+			queue.finish();
+		}
+
+		for (int restarts = 0; ; restarts++)
+		{
+			for (Process process : processes)
+				process.waitFor();
+			processes.clear();
+
+			int remaining = queue.getRemaining();
+			if (remaining == 0 || restarts == workers)
+				break;
+
+			System.out.println(String.format("%d shards left after the workers stopped, starting more", remaining));
+			for (int i = 0; i < Math.min(workers, remaining); i++)
+				processes.add(startWorker(spool, threads, compressionLevel, logLevel, skipThreshold, markOptimized, maxInflatedSize));
+		}
+
+		long savings = 0;
+		List<PngOptimizer.Stats> stats = queue.getStats();
+		for (PngOptimizer.Stats stat : stats)
+			savings += stat.getOriginalFileSize() - stat.getOptimizedFileSize();
+		System.out.println(String.format("Processed %d files in %d milliseconds, saving %d bytes", stats.size(), System.currentTimeMillis() - start, savings));
+
+		if (!queue.isComplete())
+			System.out.println(String.format("Some shards were not optimized; run again with --spool %s to carry on", spool));
+		else if (spoolName == null)
+			queue.delete();
+	}
+
+	/* Start a worker process on the spool, which shares its output with this one */
+	private static Process startWorker(File spool, int threads, Integer compressionLevel, String logLevel, double skipThreshold, boolean markOptimized,
+			long maxInflatedSize) throws IOException
+	{
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), Pngtastic.class.getName(),
+				"--threads", String.valueOf(threads)));
+		if (compressionLevel != null)
+			command.addAll(Arrays.asList("--compressionLevel", compressionLevel.toString()));
+		if (logLevel != null)
+			command.addAll(Arrays.asList("--logLevel", logLevel));
+		if (skipThreshold > 0)
+			command.addAll(Arrays.asList("--skipBelow", String.valueOf(skipThreshold * 100)));
+		if (markOptimized)
+			command.addAll(Arrays.asList("--markOptimized", "true"));
+		if (maxInflatedSize > 0)
+			command.addAll(Arrays.asList("--maxInflatedSize", String.valueOf(maxInflatedSize)));
+		command.addAll(Arrays.asList("--worker", spool.getPath()));
+
+		return new ProcessBuilder(command).inheritIO().start();
+	}
+
+	/**
+	 * Optimize the shards in a spool until they are all complete, as one of
+	 * the workers started by coordinate.
+	 */
+	public static void work(String spoolName, int threads, Integer compressionLevel, String logLevel, double skipThreshold, boolean markOptimized,
+			long maxInflatedSize) throws IOException, InterruptedException
+	{
+		PngShardQueue queue = new PngShardQueue(new File(spoolName));
+		while (true)
+		{
+			PngShardQueue.Shard shard = queue.claim();
+			if (shard == null)
+			{
+				if (queue.isComplete())
+					return;
+
+				// the shards left are still being added, or are held by other workers that may yet die
+				Thread.sleep(CLAIM_INTERVAL_MILLIS);
+				continue;
+			}
+
+			PngOptimizer optimizer = new PngOptimizer(logLevel);
+			optimizer.setSyncBatchSize(SYNC_BATCH_SIZE);
+			optimizer.setSkipThreshold(skipThreshold);
+			optimizer.setMarkOptimized(markOptimized);
+			PngJournal journal = shard.openJournal();
+			optimizer.setJournal(journal);
+			try
+			{
+				PngBatchOptimizer batchOptimizer = createBatchOptimizer(optimizer, maxInflatedSize);
+				batchOptimizer.setThreads(Math.min(threads, WORKER_READER_THREADS), threads);
+				batchOptimizer.optimize(shard.getFiles(), compressionLevel);
+				shard.complete();
+			}
+			catch (IOException e)
+			{
+				System.out.println(String.format("Error optimizing %s: %s", shard.getName(), e.getMessage()));
+				shard.release();
+			}
+			finally
+			{
+				journal.close();
+			}
 		}
-		return out.getCanonicalPath();
+	}
+
+	/* A batch optimizer, with the limit on image data unless it is 0 */
+	private static PngBatchOptimizer createBatchOptimizer(PngOptimizer optimizer, long maxInflatedSize)
+	{
+		PngBatchOptimizer batchOptimizer = new PngBatchOptimizer(optimizer);
+		if (maxInflatedSize > 0)
+			batchOptimizer.setMaxInflatedSize(maxInflatedSize);
+
+		return batchOptimizer;
+	}
+
+	/* Each file with the file its optimized image goes to */
+	private static Iterator<Entry<String, String>> withOutputs(final Iterator<String> files, final String toDir, final String fileSuffix)
+	{
+		return new Iterator<Entry<String, String>>()
+		{
+			public boolean hasNext()
+			{
+				return files.hasNext();
+			}
+
+			public Entry<String, String> next()
+			{
+				String file = files.next();
+				return new SimpleEntry<String, String>(file, toDir + "/" + file + fileSuffix);
+			}
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 	/** */
@@ -93,6 +455,28 @@ public class Pngtastic
 		}
 		String[] files = Arrays.copyOfRange(args, last, args.length);
 
+		Double skipBelow = safeDouble(options.get("--skipBelow"));
+		double skipThreshold = (skipBelow == null) ? 0 : Math.max(0, Math.min(skipBelow, 99)) / 100;
+		boolean markOptimized = Boolean.parseBoolean(options.get("--markOptimized"));
+		Long maxInflated = safeLong(options.get("--maxInflatedSize"));
+		long maxInflatedSize = (maxInflated == null) ? 0 : Math.max(1, maxInflated);
+
+		if (options.get("--worker") != null)
+		{
+			Integer threads = safeInteger(options.get("--threads"));
+			try
+			{
+				work(options.get("--worker"), (threads == null) ? Runtime.getRuntime().availableProcessors() : threads,
+						safeInteger(options.get("--compressionLevel")), options.get("--logLevel"), skipThreshold, markOptimized, maxInflatedSize);
+			}
+			catch (Exception e)
+			{
+				System.out.println(String.format("Error in worker: %s", e.getMessage()));
+				System.exit(1);
+			}
+			return;
+		}
+
 		if (files.length == 0)
 		{
 			System.out.println("No files to process");
@@ -100,12 +484,123 @@ public class Pngtastic
 			return;
 		}
 
+		if (files.length == 1 && PIPE.equals(files[0]))
+		{
+			System.exit(pipe(safeInteger(options.get("--compressionLevel"))) ? 0 : 1);
+			return;
+		}
+
 		String toDir = (options.get("--toDir") == null) ? "." : options.get("--toDir");
 		String fileSuffix = (options.get("--fileSuffix") == null) ? "" : options.get("--fileSuffix");
 		Integer compressionLevel = safeInteger(options.get("--compressionLevel"));
 		String logLevel = options.get("--logLevel");
+		String include = options.get("--include");
+		String exclude = options.get("--exclude");
 
-		new Pngtastic(toDir, files, fileSuffix, compressionLevel, logLevel);
+		if (options.containsKey("--audit"))
+		{
+			Double percent = safeDouble(options.get("--audit"));
+			try
+			{
+				audit(files, logLevel, include, exclude, (percent == null) ? 1 : Math.max(0.01, Math.min(percent, 100)) / 100, options.get("--report"));
+			}
+			catch (IOException e)
+			{
+				System.out.println(String.format("Error auditing: %s", e.getMessage()));
+			}
+			return;
+		}
+
+		if (options.containsKey("--watch"))
+		{
+			Integer quietMillis = safeInteger(options.get("--watch"));
+			try
+			{
+				watch(toDir, files, fileSuffix, compressionLevel, logLevel, include, exclude,
+						(quietMillis == null) ? PngDirectoryWatcher.DEFAULT_QUIET_MILLIS : quietMillis, skipThreshold, markOptimized, maxInflatedSize);
+			}
+			catch (IOException e)
+			{
+				System.out.println(String.format("Error watching: %s", e.getMessage()));
+			}
+			return;
+		}
+
+		Integer workers = safeInteger(options.get("--workers"));
+		if (workers != null && workers > 0)
+		{
+			try
+			{
+				coordinate(toDir, files, fileSuffix, compressionLevel, logLevel, include, exclude, workers, options.get("--spool"), skipThreshold, markOptimized,
+						maxInflatedSize);
+			}
+			catch (Exception e)
+			{
+				System.out.println(String.format("Error coordinating workers: %s", e.getMessage()));
+			}
+			return;
+		}
+
+		String journal = (options.get("--resume") == null) ? options.get("--journal") : options.get("--resume");
+
+		new Pngtastic(toDir, files, fileSuffix, compressionLevel, logLevel, include, exclude, journal, options.get("--resume") != null,
+				skipThreshold, markOptimized, maxInflatedSize);
+	}
+
+	/*
+	 * Optimize pngs from stdin to stdout, such as a stream of them from a
+	 * renderer.  Each png is written as soon as it is optimized, a chunk at a
+	 * time, before the next one is read.  Logging is off since it would mix
+	 * with the pngs, and the stats go to stderr instead.  A png that can't be
+	 * made smaller is written as it was read.
+	 */
+	private static boolean pipe(Integer compressionLevel)
+	{
+		long start = System.currentTimeMillis();
+		PngOptimizer optimizer = new PngOptimizer();
+		InputStream in = new BufferedInputStream(System.in);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out));
+
+		int count = 0;
+		long savings = 0;
+		try
+		{
+			while (hasMore(in))
+			{
+				PngImage image = new PngImage(in);
+				if (!image.isComplete())
+				{
+					System.err.println(String.format("Error reading png %d from stdin: not a png, or cut short", count + 1));
+					return false;
+				}
+
+				PngImage optimized = optimizer.optimize(image, compressionLevel);
+				PngImage result = (optimized.getFileLength() < image.getFileLength()) ? optimized : image;
+				result.write(out);
+
+				count++;
+				savings += image.getFileLength() - result.getFileLength();
+				System.err.println(String.format("%5.2f%% :%6dB ->%6dB (%5dB saved) - png %d",
+						100 * (image.getFileLength() - result.getFileLength()) / (double) image.getFileLength(),
+						image.getFileLength(), result.getFileLength(), image.getFileLength() - result.getFileLength(), count));
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Error optimizing png %d from stdin: %s", count + 1, e.getMessage()));
+			return false;
+		}
+		System.err.println(String.format("Processed %d pngs in %d milliseconds, saving %d bytes", count, System.currentTimeMillis() - start, savings));
+		return true;
+	}
+
+	/* Whether another png follows, without taking any of it from the stream */
+	private static boolean hasMore(InputStream in) throws IOException
+	{
+		in.mark(1);
+		int next = in.read();
+		in.reset();
+		return next != -1;
 	}
 
 	/* */
@@ -120,4 +615,30 @@ public class Pngtastic
 			return null;
 		}
 	}
+
+	/* */
+	private static Long safeLong(String input)
+	{
+		try
+		{
+			return Long.valueOf(input);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	/* */
+	private static Double safeDouble(String input)
+	{
+		try
+		{
+			return Double.valueOf(input);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
 }
@@ -0,0 +1,579 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optimizes the png files inside a zip archive, such as a jar, war or apk,
+ * without unpacking it.  The archive is read by its central directory, and
+ * the png entries are optimized on all cores, a bounded number ahead of the
+ * entry being written.  Every other entry, and every png that couldn't be
+ * made smaller, is copied byte for byte as it is stored in the archive,
+ * without being inflated and deflated again.  The rewritten archive keeps
+ * the order, names, timestamps, extra fields and comments of its entries.
+ * <p>
+ * An optimized png keeps the compression method of its entry, except that a
+ * deflated png is stored instead if deflating it again doesn't make it
+ * smaller.  Archives in the zip64 format, and encrypted entries, are not
+ * optimized.  A signed jar or apk has to be signed again afterwards, and an
+ * apk aligned again.
+ */
+public class PngArchiveOptimizer
+{
+	/** */
+	private final Logger log;
+
+	/** */
+	private final PngOptimizer optimizer;
+
+	/** the archive extensions recognized by isArchive */
+	private static final List<String> EXTENSIONS = Arrays.asList(".zip", ".jar", ".war", ".ear", ".apk", ".aar");
+
+	/** */
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_HEADER = 0x06054b50;
+
+	/** the sizes of the fixed parts of the records */
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_HEADER_SIZE = 22;
+
+	/** */
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	/** general purpose flags: encrypted, and sizes in a data descriptor after the data */
+	private static final int FLAG_ENCRYPTED = 0x0001;
+	private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+
+	/** */
+	private int workerThreads = Runtime.getRuntime().availableProcessors();
+
+	/** the number of pngs optimized ahead of the entry being written, per worker */
+	private static final int WINDOW_PER_WORKER = 2;
+
+	/**
+	 * @param optimizer The optimizer to optimize each png with, which also
+	 * keeps the statistics
+	 */
+	public PngArchiveOptimizer(PngOptimizer optimizer)
+	{
+		this.log = optimizer.getLog();
+		this.optimizer = optimizer;
+	}
+
+	/**
+	 * Set the number of pngs optimized at once.
+	 *
+	 * @param workerThreads The number of threads, by default one per core
+	 */
+	public void setThreads(int workerThreads)
+	{
+		if (workerThreads < 1)
+			throw new IllegalArgumentException("At least one thread is needed");
+
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * Whether a file is a zip archive, going by its name.
+	 *
+	 * @param fileName The file name
+	 * @return true if the name ends in an archive extension
+	 */
+	public static boolean isArchive(String fileName)
+	{
+		String name = fileName.toLowerCase(Locale.ENGLISH);
+		for (String extension : EXTENSIONS)
+		{
+			if (name.endsWith(extension))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Optimize the pngs in an archive.  The new archive is written to a
+	 * temporary file beside the output file and renamed over it once it is
+	 * complete, so the output file may be the input file.
+	 *
+	 * @param inputFileName The archive to read
+	 * @param outputFileName The archive to write
+	 * @param compressionLevel The compression level, or null to try them all
+	 * @throws IOException if the archive couldn't be read or written
+	 */
+	public void optimize(String inputFileName, String outputFileName, Integer compressionLevel) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		Path target = new File(outputFileName).toPath().toAbsolutePath();
+		Files.createDirectories(target.getParent());
+		Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+		try
+		{
+			Path source = Files.exists(target) ? target : new File(inputFileName).toPath();
+			Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(source));
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// the platform's own defaults apply
+		}
+
+		long originalSize;
+		long optimizedSize;
+		FileChannel in = FileChannel.open(new File(inputFileName).toPath(), StandardOpenOption.READ);
+		try
+		{
+			FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE);
+			try
+			{
+				this.optimize(in, out, inputFileName, compressionLevel);
+				out.force(true);
+				originalSize = in.size();
+				optimizedSize = out.size();
+			}
+			finally
+			{
+				out.close();
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			in.close();
+			Files.deleteIfExists(temp);
+		}
+
+		this.log.info("%5.2f%% :%6dB ->%6dB (%5dB saved) - %s in %d milliseconds", (originalSize - optimizedSize) / Float.valueOf(originalSize) * 100,
+				originalSize, optimizedSize, originalSize - optimizedSize, outputFileName, System.currentTimeMillis() - start);
+	}
+
+	/*
+	 * Write the entries in the order of the central directory, then the
+	 * central directory itself with the new offsets and sizes.
+	 */
+	private void optimize(final FileChannel in, FileChannel out, String archiveName, final Integer compressionLevel) throws IOException
+	{
+		ByteBuffer end = readEnd(in);
+		int count = end.getShort(10) & 0xffff;
+		long directoryOffset = end.getInt(16) & 0xffffffffL;
+		long directorySize = end.getInt(12) & 0xffffffffL;
+		if (count == 0xffff || directoryOffset == 0xffffffffL || directorySize == 0xffffffffL)
+			throw new IOException("Zip64 archives are not supported");
+
+		final List<Entry> entries = readDirectory(in, directoryOffset, directorySize, count);
+
+		ExecutorService workers = Executors.newFixedThreadPool(this.workerThreads);
+		try
+		{
+			List<Future<byte[]>> optimized = new ArrayList<Future<byte[]>>();
+			int window = this.workerThreads * WINDOW_PER_WORKER;
+			int inFlight = 0;
+			int next = 0;
+
+			for (int i = 0; i < entries.size(); i++)
+			{
+				// keep a bounded number of pngs optimizing ahead of this entry
+				for (; next < entries.size() && (next <= i || inFlight < window); next++)
+				{
+					final Entry entry = entries.get(next);
+					Future<byte[]> future = null;
+					if (entry.isOptimizable())
+					{
+						future = workers.submit(new Callable<byte[]>()
+						{
+							public byte[] call() throws IOException
+							{
+								return PngArchiveOptimizer.this.optimizeEntry(in, entry, compressionLevel);
+							}
+						});
+						inFlight++;
+					}
+					optimized.add(future);
+				}
+
+				Entry entry = entries.get(i);
+				byte[] png = null;
+				if (optimized.get(i) != null)
+				{
+					png = this.getOptimized(optimized.get(i), entry, archiveName);
+					optimized.set(i, null);
+					inFlight--;
+				}
+
+				long offset = out.position();
+				if (png == null)
+					copy(in, out, entry);
+				else
+					this.write(out, entry, png);
+				entry.localOffset = offset;
+			}
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+
+		long newDirectoryOffset = out.position();
+		for (Entry entry : entries)
+		{
+			ByteBuffer record = ByteBuffer.wrap(entry.central).order(ByteOrder.LITTLE_ENDIAN);
+			record.putInt(42, (int) entry.localOffset);
+			writeFully(out, record);
+		}
+
+		end.putInt(12, (int) (out.position() - newDirectoryOffset));
+		end.putInt(16, (int) newDirectoryOffset);
+		end.rewind();
+		writeFully(out, end);
+	}
+
+	/* The result of optimizing a png, or null to copy the entry as it is */
+	private byte[] getOptimized(Future<byte[]> future, Entry entry, String archiveName) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException("Interrupted while optimizing images");
+		}
+		catch (ExecutionException e)
+		{
+			this.log.error("Error optimizing %s in %s: %s", entry.name, archiveName, e.getCause());
+			return null;
+		}
+	}
+
+	/*
+	 * Inflate and optimize a png entry, and deflate it again if it was
+	 * deflated.  Returns null if the entry wouldn't get any smaller.
+	 */
+	private byte[] optimizeEntry(FileChannel in, Entry entry, Integer compressionLevel) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		byte[] data = readData(in, entry);
+		byte[] png = data;
+		if (entry.method == DEFLATED)
+			png = inflate(data, entry.size);
+
+		byte[] optimized = this.optimizer.optimize(png, compressionLevel);
+		if (optimized == png)
+		{
+			this.log.debug("Keeping %s as it is", entry.name);
+			this.optimizer.getStats().add(new PngOptimizer.Stats(png.length, png.length));
+			return null;
+		}
+
+		entry.newMethod = STORED;
+		entry.newSize = optimized.length;
+		CRC32 crc = new CRC32();
+		crc.update(optimized);
+		entry.newCrc = (int) crc.getValue();
+
+		byte[] result = optimized;
+		if (entry.method == DEFLATED)
+		{
+			byte[] deflated = deflate(optimized);
+			if (deflated.length < optimized.length)
+			{
+				entry.newMethod = DEFLATED;
+				result = deflated;
+			}
+		}
+		if (result.length >= data.length)
+		{
+			this.log.debug("Keeping %s as it is", entry.name);
+			this.optimizer.getStats().add(new PngOptimizer.Stats(png.length, png.length));
+			return null;
+		}
+		this.optimizer.getStats().add(new PngOptimizer.Stats(png.length, optimized.length));
+
+		this.log.info("%5.2f%% :%6dB ->%6dB (%5dB saved) - %s in %d milliseconds", (png.length - optimized.length) / Float.valueOf(png.length) * 100,
+				png.length, optimized.length, png.length - optimized.length, entry.name, System.currentTimeMillis() - start);
+		return result;
+	}
+
+	/*
+	 * Write an optimized entry with the local header it had, its sizes,
+	 * crc and method updated, and no data descriptor.  Its central
+	 * directory record is updated to match.
+	 */
+	private void write(FileChannel out, Entry entry, byte[] data) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.wrap(entry.local).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer central = ByteBuffer.wrap(entry.central).order(ByteOrder.LITTLE_ENDIAN);
+		int flags = entry.flags & ~FLAG_DATA_DESCRIPTOR;
+
+		header.putShort(6, (short) flags);
+		header.putShort(8, (short) entry.newMethod);
+		header.putInt(14, entry.newCrc);
+		header.putInt(18, data.length);
+		header.putInt(22, (int) entry.newSize);
+
+		central.putShort(8, (short) flags);
+		central.putShort(10, (short) entry.newMethod);
+		central.putInt(16, entry.newCrc);
+		central.putInt(20, data.length);
+		central.putInt(24, (int) entry.newSize);
+
+		writeFully(out, header);
+		writeFully(out, ByteBuffer.wrap(data));
+	}
+
+	/*
+	 * Copy an entry as it is stored: its local header, its data and any
+	 * data descriptor, which run up to the next entry in the file.
+	 */
+	private static void copy(FileChannel in, FileChannel out, Entry entry) throws IOException
+	{
+		long position = entry.localOffset;
+		long last = entry.localOffset + entry.length;
+		while (position < last)
+		{
+			long transferred = in.transferTo(position, last - position, out);
+			if (transferred <= 0)
+				throw new EOFException("Entry " + entry.name + " is cut short");
+			position += transferred;
+		}
+	}
+
+	/* The end of central directory record, which follows any archive comment */
+	private static ByteBuffer readEnd(FileChannel in) throws IOException
+	{
+		long size = in.size();
+		int tail = (int) Math.min(size, END_HEADER_SIZE + 0xffff);
+		ByteBuffer buffer = ByteBuffer.allocate(tail).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(in, buffer, size - tail);
+
+		for (int i = tail - END_HEADER_SIZE; i >= 0; i--)
+		{
+			if (buffer.getInt(i) == END_HEADER && i + END_HEADER_SIZE + (buffer.getShort(i + 20) & 0xffff) == tail)
+			{
+				byte[] end = Arrays.copyOfRange(buffer.array(), i, tail);
+				return ByteBuffer.wrap(end).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		throw new IOException("Not a zip archive");
+	}
+
+	/*
+	 * The entries in the central directory, each with its local header and
+	 * the length of the bytes it takes up in the file.
+	 */
+	private static List<Entry> readDirectory(FileChannel in, long offset, long size, int count) throws IOException
+	{
+		ByteBuffer directory = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(in, directory, offset);
+
+		List<Entry> entries = new ArrayList<Entry>(count);
+		int position = 0;
+		for (int i = 0; i < count; i++)
+		{
+			if (position + CENTRAL_HEADER_SIZE > size || directory.getInt(position) != CENTRAL_HEADER)
+				throw new IOException("Corrupted zip archive, bad central directory");
+
+			int recordSize = CENTRAL_HEADER_SIZE + (directory.getShort(position + 28) & 0xffff)
+					+ (directory.getShort(position + 30) & 0xffff) + (directory.getShort(position + 32) & 0xffff);
+			Entry entry = new Entry(Arrays.copyOfRange(directory.array(), position, position + recordSize));
+			if (entry.compressedSize == 0xffffffffL || entry.size == 0xffffffffL || entry.localOffset == 0xffffffffL)
+				throw new IOException("Zip64 archives are not supported");
+
+			ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(in, local, entry.localOffset);
+			if (local.getInt(0) != LOCAL_HEADER)
+				throw new IOException("Corrupted zip archive, bad local header for " + entry.name);
+
+			ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff));
+			readFully(in, header, entry.localOffset);
+			entry.local = header.array();
+
+			entries.add(entry);
+			position += recordSize;
+		}
+
+		// each entry runs up to the next one in the file, or to the central directory
+		List<Entry> byOffset = new ArrayList<Entry>(entries);
+		Collections.sort(byOffset, new Comparator<Entry>()
+		{
+			public int compare(Entry a, Entry b)
+			{
+				return Long.compare(a.localOffset, b.localOffset);
+			}
+		});
+		for (int i = 0; i < byOffset.size(); i++)
+		{
+			Entry entry = byOffset.get(i);
+			long next = (i + 1 < byOffset.size()) ? byOffset.get(i + 1).localOffset : offset;
+			entry.length = next - entry.localOffset;
+			if (entry.length < entry.local.length + entry.compressedSize)
+				throw new IOException("Corrupted zip archive, overlapping entries at " + entry.name);
+		}
+
+		return entries;
+	}
+
+	/* The compressed data of an entry */
+	private static byte[] readData(FileChannel in, Entry entry) throws IOException
+	{
+		if (entry.compressedSize > Integer.MAX_VALUE - 8)
+			throw new IOException("Entry " + entry.name + " is too large");
+
+		ByteBuffer data = ByteBuffer.allocate((int) entry.compressedSize);
+		readFully(in, data, entry.localOffset + entry.local.length);
+		return data.array();
+	}
+
+	/* */
+	private static byte[] inflate(byte[] data, long size) throws IOException
+	{
+		if (size > Integer.MAX_VALUE - 8)
+			throw new IOException("Entry is too large");
+
+		Inflater inflater = new Inflater(true);
+		try
+		{
+			inflater.setInput(data);
+			byte[] inflated = new byte[(int) size];
+			int length = 0;
+			while (length < inflated.length && !inflater.finished())
+			{
+				int inflatedLength = inflater.inflate(inflated, length, inflated.length - length);
+				if (inflatedLength == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				length += inflatedLength;
+			}
+			if (length != inflated.length)
+				throw new IOException("Corrupted zip entry, expected " + size + " bytes but got " + length);
+
+			return inflated;
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Corrupted zip entry: " + e.getMessage());
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
+	/* */
+	private static byte[] deflate(byte[] data)
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try
+		{
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream(data.length);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished())
+				deflated.write(buffer, 0, deflater.deflate(buffer));
+
+			return deflated.toByteArray();
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	/* */
+	private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int read = in.read(buffer, position);
+			if (read < 0)
+				throw new EOFException("Zip archive is cut short");
+			position += read;
+		}
+	}
+
+	/* */
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException
+	{
+		buffer.rewind();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+	}
+
+	/** An entry of the archive, as recorded in its central directory */
+	private static class Entry
+	{
+		/** the central directory record and the local header, which are updated as the entry is written */
+		private final byte[] central;
+		private byte[] local;
+
+		/** */
+		private final String name;
+		private final int flags;
+		private final int method;
+		private final long compressedSize;
+		private final long size;
+
+		/** where the entry starts, first in the archive read and then in the one written */
+		private long localOffset;
+
+		/** the bytes the entry takes up in the archive read */
+		private long length;
+
+		/** the optimized png */
+		private int newMethod;
+		private long newSize;
+		private int newCrc;
+
+		/** */
+		public Entry(byte[] central)
+		{
+			ByteBuffer record = ByteBuffer.wrap(central).order(ByteOrder.LITTLE_ENDIAN);
+			this.central = central;
+			this.flags = record.getShort(8) & 0xffff;
+			this.method = record.getShort(10) & 0xffff;
+			this.compressedSize = record.getInt(20) & 0xffffffffL;
+			this.size = record.getInt(24) & 0xffffffffL;
+			this.localOffset = record.getInt(42) & 0xffffffffL;
+
+			int nameLength = record.getShort(28) & 0xffff;
+			this.name = new String(central, CENTRAL_HEADER_SIZE, nameLength, Charset.forName("UTF-8"));
+		}
+
+		/** Whether the entry is a png that can be read */
+		public boolean isOptimizable()
+		{
+			return this.name.toLowerCase(Locale.ENGLISH).endsWith(".png") && (this.flags & FLAG_ENCRYPTED) == 0
+					&& (this.method == STORED || this.method == DEFLATED);
+		}
+	}
+}
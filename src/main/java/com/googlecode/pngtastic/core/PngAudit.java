@@ -0,0 +1,383 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import com.googlecode.pngtastic.core.processing.PngFilterHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticFilterHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticInterlaceHandler;
+
+/**
+ * Estimates how much optimizing a large number of files would save, without
+ * optimizing them or writing anything, for deciding whether a long run is
+ * worth it.  Only a sample of the files is read, and of each file read only
+ * a sample of its rows is compressed, with PngSizeEstimator.  The savings of
+ * each directory are extrapolated from the files sampled in it by the ratio
+ * of their savings to their size, with a 95% confidence interval.
+ * <p>
+ * Files are sampled by a hash of their names, so the same files are sampled
+ * each time, and the first file found in each directory is always sampled.
+ * The interval covers the error from sampling the files, not that of the
+ * estimator, which tends to underestimate the savings a little.
+ */
+public class PngAudit
+{
+	/** */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** the normal quantile for a 95% confidence interval */
+	private static final double Z_95 = 1.96;
+
+	/** */
+	private final Logger log;
+
+	/** */
+	private final PngSizeEstimator sizeEstimator;
+
+	/** the share of the files to sample */
+	private final double sampleRate;
+
+	/** */
+	private final int threads;
+
+	/** the files found and sampled in each directory, by its name */
+	private final Map<String, Directory> directories = new TreeMap<String, Directory>();
+
+	/**
+	 * @param logLevel The level of logging output
+	 * @param sampleRate The share of the files to sample, more than 0 and at most 1
+	 * @param threads The number of files estimated at once
+	 */
+	public PngAudit(String logLevel, double sampleRate, int threads)
+	{
+		if (sampleRate <= 0 || sampleRate > 1)
+			throw new IllegalArgumentException("The sample rate must be more than 0 and at most 1");
+
+		this.log = new Logger(logLevel);
+		PngFilterHandler pngFilterHandler = new PngtasticFilterHandler(this.log);
+		this.sizeEstimator = new PngSizeEstimator(this.log, pngFilterHandler, new PngtasticInterlaceHandler(this.log, pngFilterHandler));
+		this.sampleRate = sampleRate;
+		this.threads = threads;
+	}
+
+	/**
+	 * Audit files, such as those listed by a PngFileWalker, adding them to
+	 * those audited before.
+	 *
+	 * @param files The png files
+	 * @throws IOException if interrupted
+	 */
+	public void audit(Iterator<String> files) throws IOException
+	{
+		ExecutorService threadPool = Executors.newFixedThreadPool(this.threads);
+		List<Future<Void>> estimates = new ArrayList<Future<Void>>();
+		try
+		{
+			while (files.hasNext())
+			{
+				final String fileName = files.next();
+				final long length = new File(fileName).length();
+				String parent = new File(fileName).getParent();
+				final Directory directory = this.getDirectory((parent == null) ? "." : parent);
+
+				boolean sampled;
+				synchronized (directory)
+				{
+					sampled = directory.fileCount == 0 || this.isSampled(fileName);
+					directory.fileCount++;
+					directory.totalLength += length;
+				}
+				if (!sampled)
+					continue;
+
+				estimates.add(threadPool.submit(new Callable<Void>()
+				{
+					public Void call()
+					{
+						long savings = PngAudit.this.estimateSavings(fileName, length);
+						synchronized (directory)
+						{
+							directory.sampledLengths.add(length);
+							directory.sampledSavings.add(savings);
+						}
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Void> estimate : estimates)
+				estimate.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException("Interrupted while auditing");
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Error auditing: " + e.getCause());
+		}
+		finally
+		{
+			threadPool.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return Each directory audited, by name
+	 */
+	public Collection<Directory> getDirectories()
+	{
+		synchronized (this.directories)
+		{
+			return new ArrayList<Directory>(this.directories.values());
+		}
+	}
+
+	/**
+	 * @return The estimated savings of all the files audited, each directory extrapolated on its own
+	 */
+	public long getEstimatedSavings()
+	{
+		long savings = 0;
+		for (Directory directory : this.getDirectories())
+			savings += directory.getEstimatedSavings();
+
+		return savings;
+	}
+
+	/**
+	 * @return Half the width of the 95% confidence interval of the estimated savings
+	 */
+	public long getMargin()
+	{
+		double variance = 0;
+		for (Directory directory : this.getDirectories())
+			variance += directory.getVariance(this.getPooledVariance());
+
+		return Math.round(Z_95 * Math.sqrt(variance));
+	}
+
+	/**
+	 * Write a tab separated report with a line for each directory and a
+	 * last line, for the directory "*", totalling them.  The columns are
+	 * named in the first line: the directory, its files and their bytes, the
+	 * files sampled and their bytes, and the estimated savings in bytes with
+	 * the low and high ends of their 95% confidence interval.
+	 *
+	 * @param out Where to write the report, which is left open
+	 * @throws IOException if the report couldn't be written
+	 */
+	public void writeReport(Writer out) throws IOException
+	{
+		out.write("directory\tfiles\tbytes\tsampledFiles\tsampledBytes\testimatedSavings\tsavingsLow\tsavingsHigh\n");
+
+		int fileCount = 0;
+		long totalLength = 0;
+		int sampledCount = 0;
+		long sampledLength = 0;
+		double pooledVariance = this.getPooledVariance();
+		for (Directory directory : this.getDirectories())
+		{
+			long savings = directory.getEstimatedSavings();
+			long margin = Math.round(Z_95 * Math.sqrt(directory.getVariance(pooledVariance)));
+			out.write(String.format("%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\n", PngJournal.escape(directory.getName()), directory.getFileCount(), directory.getTotalLength(),
+					directory.getSampledCount(), directory.getSampledLength(), savings, Math.max(0, savings - margin), Math.min(directory.getTotalLength(), savings + margin)));
+
+			fileCount += directory.getFileCount();
+			totalLength += directory.getTotalLength();
+			sampledCount += directory.getSampledCount();
+			sampledLength += directory.getSampledLength();
+		}
+
+		long savings = this.getEstimatedSavings();
+		long margin = this.getMargin();
+		out.write(String.format("*\t%d\t%d\t%d\t%d\t%d\t%d\t%d\n", fileCount, totalLength, sampledCount, sampledLength,
+				savings, Math.max(0, savings - margin), Math.min(totalLength, savings + margin)));
+		out.flush();
+	}
+
+	/* */
+	private Directory getDirectory(String name)
+	{
+		synchronized (this.directories)
+		{
+			Directory directory = this.directories.get(name);
+			if (directory == null)
+			{
+				directory = new Directory(name);
+				this.directories.put(name, directory);
+			}
+			return directory;
+		}
+	}
+
+	/* Whether a file is in the sample, going by a hash of its name */
+	private boolean isSampled(String fileName)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(fileName.getBytes(UTF8));
+
+		return crc.getValue() < this.sampleRate * 0x100000000L;
+	}
+
+	/*
+	 * The estimated savings of a file, which are 0 if it can't be read,
+	 * since the optimizer would leave it as it is.
+	 */
+	private long estimateSavings(String fileName, long length)
+	{
+		try
+		{
+			PngImage image = new PngImage(fileName, false);
+			if (!image.isComplete() || !PngChunk.IMAGE_HEADER.equals(image.getChunks().get(0).getTypeString()))
+			{
+				this.log.error("Error reading %s: not a png, or cut short", fileName);
+				return 0;
+			}
+
+			PngSizeEstimator.Estimate estimate = this.sizeEstimator.estimate(image, 0);
+			return (estimate == null) ? 0 : Math.max(0, length - estimate.getEstimatedFileLength());
+		}
+		catch (IOException e)
+		{
+			this.log.error("Error estimating %s: %s", fileName, e.getMessage());
+		}
+		catch (RuntimeException e)
+		{
+			this.log.error("Error estimating %s: %s", fileName, e);
+		}
+		return 0;
+	}
+
+	/*
+	 * The variance of the savings of the sampled files about the ratio of
+	 * each one's directory, for the directories with too few samples to
+	 * have one of their own.
+	 */
+	private double getPooledVariance()
+	{
+		double sum = 0;
+		int degrees = 0;
+		for (Directory directory : this.getDirectories())
+		{
+			synchronized (directory)
+			{
+				if (directory.getSampledCount() < 2)
+					continue;
+
+				sum += directory.getResidualVariance() * (directory.getSampledCount() - 1);
+				degrees += directory.getSampledCount() - 1;
+			}
+		}
+		return (degrees == 0) ? 0 : sum / degrees;
+	}
+
+	/** The files found and sampled in a directory, and the savings extrapolated from them */
+	public static class Directory
+	{
+		/** */
+		private final String name;
+		public String getName() { return this.name; }
+
+		/** */
+		private int fileCount;
+		public synchronized int getFileCount() { return this.fileCount; }
+
+		/** */
+		private long totalLength;
+		public synchronized long getTotalLength() { return this.totalLength; }
+
+		/** the length and estimated savings of each file sampled */
+		private final List<Long> sampledLengths = new ArrayList<Long>();
+		private final List<Long> sampledSavings = new ArrayList<Long>();
+
+		/** */
+		private Directory(String name)
+		{
+			this.name = name;
+		}
+
+		/** */
+		public synchronized int getSampledCount()
+		{
+			return this.sampledLengths.size();
+		}
+
+		/** */
+		public synchronized long getSampledLength()
+		{
+			long length = 0;
+			for (long sampledLength : this.sampledLengths)
+				length += sampledLength;
+
+			return length;
+		}
+
+		/** The estimated savings of the sampled files as a fraction of their length */
+		public synchronized double getRatio()
+		{
+			long savings = 0;
+			for (long sampledSavings : this.sampledSavings)
+				savings += sampledSavings;
+
+			long length = this.getSampledLength();
+			return (length == 0) ? 0 : savings / (double) length;
+		}
+
+		/** The estimated savings of all the files, extrapolated from the sampled ones */
+		public synchronized long getEstimatedSavings()
+		{
+			return Math.round(this.getRatio() * this.totalLength);
+		}
+
+		/* The variance of the savings of the sampled files about the ratio */
+		synchronized double getResidualVariance()
+		{
+			int n = this.sampledLengths.size();
+			if (n < 2)
+				return 0;
+
+			double ratio = this.getRatio();
+			double sum = 0;
+			for (int i = 0; i < n; i++)
+			{
+				double residual = this.sampledSavings.get(i) - ratio * this.sampledLengths.get(i);
+				sum += residual * residual;
+			}
+			return sum / (n - 1);
+		}
+
+		/*
+		 * The variance of the estimated savings, by the ratio estimator with
+		 * the finite population correction, using the pooled residual
+		 * variance when too few files were sampled for one of their own.
+		 */
+		synchronized double getVariance(double pooledVariance)
+		{
+			int n = this.sampledLengths.size();
+			if (n == 0 || n >= this.fileCount)
+				return 0;
+
+			double residualVariance = (n < 2) ? pooledVariance : this.getResidualVariance();
+			return (double) this.fileCount * this.fileCount * (1 - n / (double) this.fileCount) * residualVariance / n;
+		}
+	}
+}
@@ -0,0 +1,421 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optimizes many files at once while keeping both the disks and the cores
+ * busy.  A pool of reader threads reads and parses files ahead of the
+ * optimizer workers, one per core, which hand the optimized images on to a
+ * writer thread.  The stages are joined by bounded queues, so slow storage
+ * holds up only the readers and the writer while the workers carry on with
+ * the images already read.
+ * <p>
+ * Before a file is read, it is indexed, which reads only the lengths and
+ * types of its chunks.  A file marked as optimized is copied without its
+ * image data being read at all.  Otherwise the header alone is used to
+ * estimate the heap that optimizing it takes, and the images in flight are
+ * limited by the total of their estimates as well as by the queue depths.
+ * A few huge images scheduled together then can't exhaust the heap.  An image estimated to
+ * need more than the whole budget is still optimized, but alone, once every
+ * image before it is written.  An image whose header claims more image
+ * data than the limit is rejected as a likely decompression bomb, without
+ * any of it being read or inflated.
+ */
+public class PngBatchOptimizer
+{
+	/** */
+	private final Logger log;
+
+	/** */
+	private final PngOptimizer optimizer;
+
+	/** */
+	private static final int DEFAULT_READER_THREADS = 4;
+	private static final int DEFAULT_QUEUE_DEPTH = 8;
+
+	/** the memory budget is counted in units of this many bytes */
+	private static final int PERMIT_SIZE = 1024;
+
+	/** */
+	private int readerThreads = DEFAULT_READER_THREADS;
+	private int workerThreads = Runtime.getRuntime().availableProcessors();
+
+	/** the images waiting to be optimized, and waiting to be written */
+	private int imageQueueDepth = DEFAULT_QUEUE_DEPTH;
+	private int resultQueueDepth = DEFAULT_QUEUE_DEPTH;
+
+	/** the total estimated heap in bytes of the images read but not yet written */
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+	public void setMemoryBudget(long memoryBudget) { this.memoryBudget = memoryBudget; }
+
+	/** images that would inflate to more bytes than this are rejected */
+	private long maxInflatedSize = DEFAULT_MAX_INFLATED_SIZE;
+
+	/** the image data is held in a single array, so it can never be larger than this */
+	private static final long DEFAULT_MAX_INFLATED_SIZE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Set the most image data an image may inflate to, going by its header.
+	 * Larger images are rejected before their image data is read.
+	 *
+	 * @param maxInflatedSize The limit in bytes, which can't be raised above the default
+	 */
+	public void setMaxInflatedSize(long maxInflatedSize)
+	{
+		this.maxInflatedSize = Math.min(maxInflatedSize, DEFAULT_MAX_INFLATED_SIZE);
+	}
+
+	/** marks the end of a queue */
+	private static final Item END = new Item(null, null, 0);
+
+	/**
+	 * @param optimizer The optimizer to optimize each image with, which
+	 * also writes the files and keeps the statistics
+	 */
+	public PngBatchOptimizer(PngOptimizer optimizer)
+	{
+		this.log = optimizer.getLog();
+		this.optimizer = optimizer;
+	}
+
+	/**
+	 * Set the number of threads in each stage.  More readers help most when
+	 * the files are on network storage.
+	 *
+	 * @param readerThreads The number of files read at once
+	 * @param workerThreads The number of images optimized at once, by default one per core
+	 */
+	public void setThreads(int readerThreads, int workerThreads)
+	{
+		if (readerThreads < 1 || workerThreads < 1)
+			throw new IllegalArgumentException("Each stage needs at least one thread");
+
+		this.readerThreads = readerThreads;
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * Set the number of images each queue may hold.
+	 *
+	 * @param imageQueueDepth The number of images read waiting to be optimized
+	 * @param resultQueueDepth The number of images optimized waiting to be written
+	 */
+	public void setQueueDepths(int imageQueueDepth, int resultQueueDepth)
+	{
+		if (imageQueueDepth < 1 || resultQueueDepth < 1)
+			throw new IllegalArgumentException("The queues must hold at least one image");
+
+		this.imageQueueDepth = imageQueueDepth;
+		this.resultQueueDepth = resultQueueDepth;
+	}
+
+	/**
+	 * Optimize the files, and write out any files still waiting to be
+	 * synced.  A file that can't be read or optimized is logged and
+	 * skipped.
+	 *
+	 * @param files The output file name for each input file name, which may be the same
+	 * @param compressionLevel The compression level, or null to try them all
+	 * @throws IOException if the batch was interrupted or the files couldn't be synced
+	 */
+	public void optimize(Map<String, String> files, Integer compressionLevel) throws IOException
+	{
+		this.optimize(files.entrySet().iterator(), compressionLevel);
+	}
+
+	/**
+	 * Optimize files as they are listed, such as by a PngFileWalker, so
+	 * that optimizing starts before the whole list is known.  The iterator
+	 * may block until the next file is listed.  Files in the optimizer's
+	 * journal are skipped.
+	 *
+	 * @param files The input file names, each with its output file name, which may be the same
+	 * @param compressionLevel The compression level, or null to try them all
+	 * @throws IOException if the batch was interrupted or the files couldn't be synced
+	 */
+	public void optimize(final Iterator<Entry<String, String>> files, final Integer compressionLevel) throws IOException
+	{
+		final int permits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, this.memoryBudget / PERMIT_SIZE));
+		final Semaphore memory = new Semaphore(permits, true);
+		final BlockingQueue<Item> images = new ArrayBlockingQueue<Item>(this.imageQueueDepth);
+		final BlockingQueue<Item> results = new ArrayBlockingQueue<Item>(this.resultQueueDepth);
+		final AtomicInteger workersLeft = new AtomicInteger(this.workerThreads);
+
+		final ExecutorService readerThreadPool = Executors.newFixedThreadPool(this.readerThreads);
+		final ExecutorService stageThreadPool = Executors.newFixedThreadPool(this.workerThreads + 2);
+		final CompletionService<Object> stages = new ExecutorCompletionService<Object>(stageThreadPool);
+		try
+		{
+			stages.submit(new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					PngBatchOptimizer.this.read(files, readerThreadPool, memory, permits, images);
+					for (int i = 0; i < PngBatchOptimizer.this.workerThreads; i++)
+						images.put(END);
+					return null;
+				}
+			});
+			for (int i = 0; i < this.workerThreads; i++)
+			{
+				stages.submit(new Callable<Object>()
+				{
+					public Object call() throws Exception
+					{
+						PngBatchOptimizer.this.work(images, results, memory, compressionLevel);
+						if (workersLeft.decrementAndGet() == 0)
+							results.put(END);
+						return null;
+					}
+				});
+			}
+			stages.submit(new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					PngBatchOptimizer.this.write(results, memory);
+					return null;
+				}
+			});
+
+			// a stage that fails is reported at once, rather than leaving the others blocked on their queues
+			for (int i = 0; i < this.workerThreads + 2; i++)
+				stages.take().get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException("Interrupted while optimizing images");
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Error optimizing images: " + e.getCause());
+		}
+		finally
+		{
+			readerThreadPool.shutdownNow();
+			stageThreadPool.shutdownNow();
+		}
+
+		this.optimizer.flush();
+	}
+
+	/*
+	 * Read and parse the files on the reader threads, as fast as the memory
+	 * budget allows, after checking the size of each in its header.  No more
+	 * files are taken from the list than there are readers to read them, so
+	 * a walker listing the files is held back as well, and each read is
+	 * forgotten once it is done.
+	 */
+	private void read(Iterator<Entry<String, String>> files, ExecutorService readerThreadPool, final Semaphore memory, final int maxPermits,
+			final BlockingQueue<Item> images) throws InterruptedException, ExecutionException
+	{
+		final Semaphore readers = new Semaphore(this.readerThreads);
+		CompletionService<Object> reads = new ExecutorCompletionService<Object>(readerThreadPool);
+		int pending = 0;
+		while (files.hasNext())
+		{
+			final Entry<String, String> file = files.next();
+			if (this.optimizer.isFinished(file.getKey()))
+			{
+				this.log.debug("Skipping %s, which is in the journal", file.getKey());
+				continue;
+			}
+
+			readers.acquire();
+			reads.submit(new Callable<Object>()
+			{
+				public Object call() throws InterruptedException
+				{
+					try
+					{
+						PngBatchOptimizer.this.read(file, memory, maxPermits, images);
+						return null;
+					}
+					finally
+					{
+						readers.release();
+					}
+				}
+			});
+			pending++;
+
+			// a read that failed is reported at once
+			for (Future<Object> read = reads.poll(); read != null; read = reads.poll(), pending--)
+				read.get();
+		}
+
+		for (; pending > 0; pending--)
+			reads.take().get();
+	}
+
+	/* Read and parse a file, once its share of the memory budget is free */
+	private void read(Entry<String, String> file, Semaphore memory, int maxPermits, BlockingQueue<Item> images) throws InterruptedException
+	{
+		int permits;
+		try
+		{
+			PngChunkIndex index = new PngChunkIndex(file.getKey());
+			try
+			{
+				// a file marked as optimized goes on to be copied as it is, without its image data being read
+				if (this.optimizer.isMarkedOptimized(index))
+				{
+					images.put(new Item(file.getKey(), file.getValue(), 0));
+					return;
+				}
+				permits = this.admit(index, maxPermits);
+			}
+			finally
+			{
+				index.close();
+			}
+		}
+		catch (IOException e)
+		{
+			this.log.error("Error reading %s: %s", file.getKey(), e.getMessage());
+			return;
+		}
+		catch (PngException e)
+		{
+			this.log.error("Error reading %s: %s", file.getKey(), e.getMessage());
+			return;
+		}
+
+		if (permits == 0)
+			return;
+		memory.acquire(permits);
+
+		Item item = new Item(file.getKey(), file.getValue(), permits);
+		try
+		{
+			item.image = new PngImage(file.getKey(), this.optimizer.isVerifyCrcs());
+			images.put(item);
+		}
+		catch (IOException e)
+		{
+			this.log.error("Error reading %s: %s", file.getKey(), e.getMessage());
+			memory.release(permits);
+		}
+	}
+
+	/*
+	 * The share of the memory budget an image needs, estimated from its
+	 * header and capped at the whole budget, or 0 if it is rejected.
+	 */
+	private int admit(PngChunkIndex index, int maxPermits)
+	{
+		String fileName = index.getFileName();
+		try
+		{
+			PngChunk header = index.getHeader();
+			long inflatedSize = PngOptimizer.getInflatedSize(header);
+			if (header.getWidth() == 0 || header.getHeight() == 0 || inflatedSize > this.maxInflatedSize)
+			{
+				this.log.error("Rejecting %s: %dx%d pixels would inflate to %d bytes", fileName, header.getWidth(), header.getHeight(), inflatedSize);
+				return 0;
+			}
+
+			long footprint = this.optimizer.estimateFootprint(header, index.getFileLength());
+			if (footprint / PERMIT_SIZE >= maxPermits)
+			{
+				this.log.debug("%s needs about %d bytes, more than the memory budget, so it will be optimized alone", fileName, footprint);
+				return maxPermits;
+			}
+			return (int) (footprint / PERMIT_SIZE) + 1;
+		}
+		catch (IllegalArgumentException e)
+		{
+			this.log.error("Error reading %s: unknown color type", fileName);
+		}
+		return 0;
+	}
+
+	/* Optimize the images read until the end of the queue */
+	private void work(BlockingQueue<Item> images, BlockingQueue<Item> results, Semaphore memory, Integer compressionLevel) throws InterruptedException
+	{
+		for (Item item = images.take(); item != END; item = images.take())
+		{
+			try
+			{
+				item.start = System.currentTimeMillis();
+				this.log.debug("=== OPTIMIZING ===");
+				// an image skipped as already optimized, or marked so and never read, goes on to be copied as it is
+				if (item.image != null && !this.optimizer.isAlreadyOptimized(item.image))
+					item.optimizedBytes = this.optimizer.getBytes(this.optimizer.optimize(item.image, compressionLevel));
+				results.put(item);
+			}
+			catch (IOException e)
+			{
+				this.log.error("Error optimizing %s: %s", item.inputFileName, e.getMessage());
+				memory.release(item.permits);
+			}
+			catch (RuntimeException e)
+			{
+				this.log.error("Error optimizing %s: %s", item.inputFileName, e);
+				memory.release(item.permits);
+			}
+		}
+	}
+
+	/* Write the optimized images until the end of the queue */
+	private void write(BlockingQueue<Item> results, Semaphore memory) throws InterruptedException
+	{
+		for (Item item = results.take(); item != END; item = results.take())
+		{
+			try
+			{
+				this.optimizer.writeOptimized(item.inputFileName, item.optimizedBytes, item.outputFileName, item.start);
+			}
+			catch (IOException e)
+			{
+				this.log.error("Error writing %s: %s", item.outputFileName, e.getMessage());
+			}
+			finally
+			{
+				memory.release(item.permits);
+			}
+		}
+	}
+
+	/** An image on its way through the stages */
+	private static class Item
+	{
+		/** */
+		private final String inputFileName;
+		private final String outputFileName;
+
+		/** the share of the memory budget held until the image is written */
+		private final int permits;
+
+		/** null for a file marked as optimized, which isn't read */
+		private PngImage image;
+		private byte[] optimizedBytes;
+		private long start;
+
+		/** */
+		public Item(String inputFileName, String outputFileName, int permits)
+		{
+			this.inputFileName = inputFileName;
+			this.outputFileName = outputFileName;
+			this.permits = permits;
+		}
+	}
+}
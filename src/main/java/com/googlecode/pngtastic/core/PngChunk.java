@@ -36,22 +36,61 @@ public class PngChunk
 	public static final String SUGGESTED_PALETTE			= "SPLT";
 	public static final String IMAGE_LAST_MODIFICATION_TIME	= "TIME";
 
+	/**
+	 * private chunk marking a file written by the optimizer, holding the crc
+	 * of its image data chunk; not safe to copy, so editors drop it
+	 */
+	public static final String OPTIMIZED					= "ptOP";
+
+	/** the chunk types, upper cased, as big endian ints, for comparing types without strings */
+	private static final int IMAGE_HEADER_CODE = typeCode(IMAGE_HEADER);
+	private static final int PALETTE_CODE = typeCode(PALETTE);
+	private static final int IMAGE_DATA_CODE = typeCode(IMAGE_DATA);
+	private static final int IMAGE_TRAILER_CODE = typeCode(IMAGE_TRAILER);
+	private static final int TRANSPARANCY_CODE = typeCode(TRANSPARANCY);
+	private static final int IMAGE_GAMA_CODE = typeCode(IMAGE_GAMA);
+	private static final int COLOR_SPACE_INFO_CODE = typeCode(COLOR_SPACE_INFO);
+	private static final int TEXTUAL_DATA_CODE = typeCode(TEXTUAL_DATA);
+
+	/** clears the lower case bit of each letter of a type code */
+	private static final int UPPER_CASE_MASK = ~0x20202020;
+
 	private final byte[] type;
 	private final byte[] data;
 
+	/** the type, decoded once */
+	private final int typeCode;
+	private final String typeString;
+
+	/** the crc of the type and data, or -1 until it is first needed */
+	private volatile long crc = -1;
+
 	/** */
 	public PngChunk(byte[] type, byte[] data)
 	{
 		this.type = (type == null) ? null : type.clone();
 		this.data = (data == null) ? null : data.clone();
+		this.typeCode = (this.type == null || this.type.length != 4) ? 0
+				: ((this.type[0] & 0xff) << 24) | ((this.type[1] & 0xff) << 16) | ((this.type[2] & 0xff) << 8) | (this.type[3] & 0xff);
+		this.typeString = decodeType(this.type);
 	}
 
-	/** */
-	public String getTypeString()
+	/**
+	 * A chunk read from a file, with the crc stored for it there, which is
+	 * then trusted rather than computed.  Use verifyCRC to check it.
+	 */
+	PngChunk(byte[] type, byte[] data, long crc)
+	{
+		this(type, data);
+		this.crc = crc;
+	}
+
+	/* */
+	private static String decodeType(byte[] type)
 	{
 		try
 		{
-			return new String(this.type, "UTF8");
+			return (type == null) ? "" : new String(type, "UTF8");
 		}
 		catch(UnsupportedEncodingException e)
 		{
@@ -59,6 +98,24 @@ public class PngChunk
 		}
 	}
 
+	/* */
+	private static int typeCode(String type)
+	{
+		return ((type.charAt(0) & 0xff) << 24) | ((type.charAt(1) & 0xff) << 16) | ((type.charAt(2) & 0xff) << 8) | (type.charAt(3) & 0xff);
+	}
+
+	/** */
+	public String getTypeString()
+	{
+		return this.typeString;
+	}
+
+	/** The type as a big endian int */
+	public int getTypeCode()
+	{
+		return this.typeCode;
+	}
+
 	/** */
 	public byte[] getType()
 	{
@@ -71,6 +128,12 @@ public class PngChunk
 		return (this.data == null) ? null : this.data.clone();
 	}
 
+	/* The data itself rather than a copy, for reading large chunks without copying them */
+	byte[] getDataArray()
+	{
+		return this.data;
+	}
+
 	/** */
 	public int getLength()
 	{
@@ -123,6 +186,7 @@ public class PngChunk
 	public void setInterlace(byte interlace)
 	{
 		this.data[12] = interlace;
+		this.crc = -1;
 	}
 
 	/** */
@@ -131,7 +195,7 @@ public class PngChunk
 		long value = 0;
 		for (int i = 0; i < 4; i++)
 		{
-			value += (this.data[offset + i] & 0xff) << ((3 - i) * 8);
+			value += ((long) (this.data[offset + i] & 0xff)) << ((3 - i) * 8);
 		}
 
 		return value;
@@ -146,30 +210,51 @@ public class PngChunk
 	/** */
 	public boolean isCritical()
 	{
-		String type = this.getTypeString().toUpperCase();
-		return type.equals(IMAGE_HEADER)
-			|| type.equals(PALETTE)
-			|| type.equals(IMAGE_DATA)
-			|| type.equals(IMAGE_TRAILER);
+		int type = this.typeCode & UPPER_CASE_MASK;
+		return type == IMAGE_HEADER_CODE
+			|| type == PALETTE_CODE
+			|| type == IMAGE_DATA_CODE
+			|| type == IMAGE_TRAILER_CODE;
 	}
 
 	/** */
 	public boolean isRequired()
 	{
+		int type = this.typeCode & UPPER_CASE_MASK;
 		return this.isCritical()
-			|| TRANSPARANCY.equals(this.getTypeString().toUpperCase())
-			|| IMAGE_GAMA.equals(this.getTypeString().toUpperCase())
-			|| COLOR_SPACE_INFO.equals(this.getTypeString().toUpperCase());
+			|| type == TRANSPARANCY_CODE
+			|| type == IMAGE_GAMA_CODE
+			|| type == COLOR_SPACE_INFO_CODE;
 	}
 
-	/** */
+	/**
+	 * Check a crc against the type and data, computing it afresh even if
+	 * one was stored for the chunk.  Once it matches it is kept.
+	 */
 	public boolean verifyCRC(long crc)
 	{
-		return (this.getCRC() == crc);
+		long computed = this.computeCRC();
+		if (computed != crc)
+			return false;
+
+		this.crc = computed;
+		return true;
 	}
 
-	/** */
+	/** The crc of the type and data, computed the first time it is needed */
 	public long getCRC()
+	{
+		long crc = this.crc;
+		if (crc == -1)
+		{
+			crc = this.computeCRC();
+			this.crc = crc;
+		}
+		return crc;
+	}
+
+	/* */
+	private long computeCRC()
 	{
 		CRC32 crc32 = new CRC32();
 		crc32.update(this.type);
@@ -186,7 +271,8 @@ public class PngChunk
 	{
 		StringBuilder result = new StringBuilder();
 		result.append('[').append(this.getTypeString()).append(']').append('\n');
-		if (PngChunk.IMAGE_HEADER.equals(this.getTypeString().toUpperCase()))
+		int type = this.typeCode & UPPER_CASE_MASK;
+		if (type == IMAGE_HEADER_CODE)
 		{
 			result.append("Size:        ").append(this.getWidth()).append('x').append(this.getHeight()).append('\n');
 			result.append("Bit depth:   ").append(this.getBitDepth()).append('\n');
@@ -196,11 +282,11 @@ public class PngChunk
 			result.append("Filter:      ").append(this.getFilter()).append('\n');
 			result.append("Interlace:   ").append(this.getInterlace());
 		}
-		if (PngChunk.TEXTUAL_DATA.equals(this.getTypeString().toUpperCase()))
+		if (type == TEXTUAL_DATA_CODE)
 		{
 			result.append("Text:        ").append(new String(this.data));
 		}
-		if (PngChunk.IMAGE_DATA.equals(this.getTypeString().toUpperCase()))
+		if (type == IMAGE_DATA_CODE)
 		{
 			result.append("Image Data:  ")
 				.append("length=").append(this.getLength()).append(", data=");
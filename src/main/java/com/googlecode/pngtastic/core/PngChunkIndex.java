@@ -0,0 +1,223 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The chunks of a png file, found without reading their data, for deciding
+ * what to do with a file before reading the whole of it.  Only the length
+ * and type of each chunk are read, so indexing a file takes one small read
+ * per chunk however large its image data.  The header is decoded at once;
+ * the data of any other chunk is read, and its crc checked, only when it
+ * is asked for.
+ */
+public class PngChunkIndex implements Closeable
+{
+	/** */
+	private final String fileName;
+	public String getFileName() { return this.fileName; }
+
+	/** */
+	private final FileChannel in;
+
+	/** */
+	private final List<Entry> entries = new ArrayList<Entry>();
+	public List<Entry> getEntries() { return Collections.unmodifiableList(this.entries); }
+
+	/** */
+	private final PngChunk header;
+	public PngChunk getHeader() { return this.header; }
+
+	/** the length of the file */
+	private final long fileLength;
+	public long getFileLength() { return this.fileLength; }
+
+	/**
+	 * Index a png file, which is kept open until the index is closed.
+	 *
+	 * @param fileName The png file
+	 * @throws IOException if the file couldn't be read
+	 * @throws PngException if the file isn't a png, or has no header
+	 */
+	public PngChunkIndex(String fileName) throws IOException, PngException
+	{
+		this.fileName = fileName;
+		this.in = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+		try
+		{
+			this.fileLength = this.in.size();
+
+			ByteBuffer signature = this.read(0, 8);
+			if (signature.getLong() != PngImage.SIGNATURE)
+				throw new PngException("Bad png signature");
+
+			long offset = 8;
+			// a file cut short within a chunk ends the index there, and the index is incomplete
+			while (offset + 12 <= this.fileLength)
+			{
+				ByteBuffer lengthAndType = this.read(offset, 8);
+				long length = lengthAndType.getInt() & 0xffffffffL;
+				byte[] type = new byte[4];
+				lengthAndType.get(type);
+				if (length > Integer.MAX_VALUE)
+					throw new PngException(String.format("Chunk %s at %d is too long", new String(type, "UTF8"), offset));
+				if (offset + 12 + length > this.fileLength)
+					break;
+
+				Entry entry = new Entry(new String(type, "UTF8"), offset, (int) length);
+				this.entries.add(entry);
+				offset += 12 + length;
+				if (PngChunk.IMAGE_TRAILER.equals(entry.getType()))
+					break;
+			}
+
+			if (this.entries.isEmpty() || !PngChunk.IMAGE_HEADER.equals(this.entries.get(0).getType()) || this.entries.get(0).getLength() != 13)
+				throw new PngException("Missing image header");
+
+			this.header = this.readChunk(this.entries.get(0));
+		}
+		catch (IOException e)
+		{
+			this.in.close();
+			throw e;
+		}
+		catch (PngException e)
+		{
+			this.in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if the file ends with an end chunk
+	 */
+	public boolean isComplete()
+	{
+		return PngChunk.IMAGE_TRAILER.equals(this.entries.get(this.entries.size() - 1).getType());
+	}
+
+	/**
+	 * @param type The chunk type, such as PngChunk.IMAGE_DATA
+	 * @return The chunks of the type, in the order they are in the file
+	 */
+	public List<Entry> getEntries(String type)
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Entry entry : this.entries)
+		{
+			if (entry.getType().equals(type))
+				entries.add(entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * @return The total length of the image data, still compressed
+	 */
+	public long getImageDataLength()
+	{
+		long length = 0;
+		for (Entry entry : this.getEntries(PngChunk.IMAGE_DATA))
+			length += entry.getLength();
+
+		return length;
+	}
+
+	/**
+	 * Read the data of a chunk, checking its crc.
+	 *
+	 * @param entry A chunk of this file
+	 * @return The chunk
+	 * @throws IOException if the chunk couldn't be read
+	 * @throws PngException if its crc check fails
+	 */
+	public PngChunk readChunk(Entry entry) throws IOException, PngException
+	{
+		ByteBuffer chunk = this.read(entry.getOffset() + 4, 4 + entry.getLength() + 4);
+		byte[] type = new byte[4];
+		byte[] data = new byte[entry.getLength()];
+		chunk.get(type);
+		chunk.get(data);
+
+		PngChunk result = new PngChunk(type, data);
+		if (!result.verifyCRC(chunk.getInt() & 0xffffffffL))
+			throw new PngException("Corrupted file, crc check failed for " + entry.getType());
+
+		return result;
+	}
+
+	/**
+	 * Read the crc stored with a chunk, without reading its data, so it is
+	 * not checked.
+	 *
+	 * @param entry A chunk of this file
+	 * @return The stored crc
+	 * @throws IOException if the crc couldn't be read
+	 */
+	public long readCRC(Entry entry) throws IOException
+	{
+		return this.read(entry.getOffset() + 8 + entry.getLength(), 4).getInt() & 0xffffffffL;
+	}
+
+	/** */
+	public void close() throws IOException
+	{
+		this.in.close();
+	}
+
+	/* */
+	private ByteBuffer read(long position, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+		{
+			if (this.in.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("The file ended at " + (position + buffer.position()));
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/** Where a chunk is in the file */
+	public static class Entry
+	{
+		/** */
+		private final String type;
+		public String getType() { return this.type; }
+
+		/** the offset of the chunk's length field from the start of the file */
+		private final long offset;
+		public long getOffset() { return this.offset; }
+
+		/** the length of the chunk's data */
+		private final int length;
+		public int getLength() { return this.length; }
+
+		/** */
+		public Entry(String type, long offset, int length)
+		{
+			this.type = type;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/** */
+		@Override
+		public String toString()
+		{
+			return String.format("%s at %d, %d bytes", this.type, this.offset, this.length);
+		}
+	}
+}
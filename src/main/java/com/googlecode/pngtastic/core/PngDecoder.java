@@ -0,0 +1,548 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.googlecode.pngtastic.core.processing.PngFilterHandler;
+import com.googlecode.pngtastic.core.processing.PngInterlaceHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticFilterHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticInterlaceHandler;
+
+/**
+ * Decodes the pixels of png images, of every color type and bit depth,
+ * interlaced or not.  The rows can be streamed to a handler as they are
+ * decoded, with their samples as they are in the png, or the whole image
+ * can be put in a buffer the caller supplies, either as ARGB pixels or
+ * with the samples as they are in the png.
+ * <p>
+ * The image data of a non-interlaced image is inflated a row at a time,
+ * straight from its chunks, into two row buffers kept for the next image,
+ * so decoding allocates next to nothing beyond the caller's buffer.  The
+ * image data of an interlaced image is inflated whole and deinterlaced
+ * into a single buffer first.  A decoder keeps its inflater and buffers
+ * from one image to the next, so reusing one is much cheaper than making
+ * one for each image.  A decoder isn't thread safe; use one per thread.
+ * <p>
+ * ARGB pixels have 8 bits per channel: 16 bit samples are cut to their
+ * high byte, and samples of fewer than 8 bits are scaled up.  Transparency
+ * from a tRNS chunk is applied, but gamma and color space chunks are not.
+ */
+public class PngDecoder implements Closeable
+{
+	/** Receives the rows of an image, top to bottom, as they are decoded */
+	public interface RowHandler
+	{
+		/**
+		 * Take a row, which is only valid until this returns.
+		 *
+		 * @param y The row
+		 * @param samples Holds the row's samples, packed as they are in the png, with 16 bit samples big endian
+		 * @param offset The offset of the row in samples
+		 * @param length The length of the row in bytes
+		 */
+		public void row(int y, byte[] samples, int offset, int length) throws IOException;
+	}
+
+	/** */
+	private final Logger log;
+	private final PngFilterHandler pngFilterHandler;
+	private final PngInterlaceHandler pngInterlaceHandler;
+
+	/** kept from one image to the next */
+	private final Inflater inflater = new Inflater();
+
+	/** the first column and row of each Adam7 pass, and the distance between its columns and rows */
+	private static final int[] PASS_COLUMN_OFFSET = new int[] { 0, 4, 0, 2, 0, 1, 0 };
+	private static final int[] PASS_COLUMN_FREQUENCY = new int[] { 8, 8, 4, 4, 2, 2, 1 };
+	private static final int[] PASS_ROW_OFFSET = new int[] { 0, 0, 4, 0, 2, 0, 1 };
+	private static final int[] PASS_ROW_FREQUENCY = new int[] { 8, 8, 8, 4, 4, 2, 2 };
+
+	/** the row being decoded and the one above it, each with its filter type byte, kept from one image to the next */
+	private byte[] row = new byte[0];
+	private byte[] previousRow = new byte[0];
+
+	/** */
+	public PngDecoder()
+	{
+		this(Logger.NONE);
+	}
+
+	/** */
+	public PngDecoder(String logLevel)
+	{
+		this.log = new Logger(logLevel);
+		this.pngFilterHandler = new PngtasticFilterHandler(this.log);
+		this.pngInterlaceHandler = new PngtasticInterlaceHandler(this.log, this.pngFilterHandler);
+	}
+
+	/**
+	 * @param image The image
+	 * @return The length in bytes of each row of samples, without the filter type byte
+	 */
+	public static int getRowLength(PngImage image)
+	{
+		long rowLength = (image.getWidth() * image.getSampleBitCount() + 7) / 8;
+		if (rowLength > Integer.MAX_VALUE - 1)
+			throw new IllegalArgumentException("The image is too wide");
+
+		return (int) rowLength;
+	}
+
+	/**
+	 * Decode the rows of an image, passing each to the handler in turn.
+	 *
+	 * @param image The image
+	 * @param handler Takes each row
+	 * @throws PngException if the image is malformed
+	 * @throws IOException if the handler throws it
+	 */
+	public void decode(PngImage image, RowHandler handler) throws PngException, IOException
+	{
+		PngChunk header = checkHeader(image);
+		int rowLength = getRowLength(image) + 1;
+		int height = (int) image.getHeight();
+
+		if (image.getInterlace() == 1)
+		{
+			byte[] imageData = this.pngInterlaceHandler.deInterlaceImageData((int) image.getWidth(), height, image.getSampleBitCount(),
+					this.inflate(image, getInterlacedLength(header.getWidth(), header.getHeight(), image.getSampleBitCount())));
+			for (int y = 0; y < height; y++)
+				handler.row(y, imageData, y * rowLength + 1, rowLength - 1);
+			return;
+		}
+
+		// the filter handler works on whole arrays, so the buffers are kept only for images of the same width
+		if (this.row.length != rowLength)
+		{
+			this.row = new byte[rowLength];
+			this.previousRow = new byte[rowLength];
+		}
+		byte[] row = this.row;
+		byte[] previousRow = this.previousRow;
+		Arrays.fill(previousRow, 0, rowLength, (byte) 0);
+
+		Iterator<PngChunk> chunks = image.getChunks().iterator();
+		this.inflater.reset();
+		for (int y = 0; y < height; y++)
+		{
+			this.inflateFully(chunks, row, rowLength);
+			this.deFilter(row, previousRow, image.getSampleBitCount());
+			handler.row(y, row, 1, rowLength - 1);
+
+			byte[] swap = previousRow;
+			previousRow = row;
+			row = swap;
+		}
+	}
+
+	/**
+	 * Decode an image into a buffer, a row at a time, each row with its
+	 * samples as they are in the png.  The buffer's position is advanced
+	 * past the image.
+	 *
+	 * @param image The image
+	 * @param buffer Has room for getRowLength(image) bytes for each row of the image
+	 * @throws PngException if the image is malformed
+	 */
+	public void decode(PngImage image, final ByteBuffer buffer) throws PngException
+	{
+		checkHeader(image);
+		if (buffer.remaining() < (long) getRowLength(image) * image.getHeight())
+			throw new IllegalArgumentException("The buffer is too small for the image");
+
+		this.decodeQuietly(image, new RowHandler()
+		{
+			public void row(int y, byte[] samples, int offset, int length)
+			{
+				buffer.put(samples, offset, length);
+			}
+		});
+	}
+
+	/**
+	 * Decode an image into ARGB pixels.
+	 *
+	 * @param image The image
+	 * @return The pixels, a row at a time from the top
+	 * @throws PngException if the image is malformed
+	 */
+	public int[] decodeArgb(PngImage image) throws PngException
+	{
+		checkHeader(image);
+		long pixelCount = image.getWidth() * image.getHeight();
+		if (pixelCount > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("The image is too large for an array");
+
+		int[] pixels = new int[(int) pixelCount];
+		this.decodeArgb(image, pixels, 0, (int) image.getWidth());
+
+		return pixels;
+	}
+
+	/**
+	 * Decode an image into ARGB pixels, as BufferedImage.setRGB lays them out.
+	 *
+	 * @param image The image
+	 * @param pixels Holds the pixels
+	 * @param offset The index of the top left pixel
+	 * @param scanlineStride The distance from each row of pixels to the next
+	 * @throws PngException if the image is malformed
+	 */
+	public void decodeArgb(PngImage image, final int[] pixels, final int offset, final int scanlineStride) throws PngException
+	{
+		final ArgbConverter converter = new ArgbConverter(image);
+		final int width = (int) image.getWidth();
+		if (offset < 0 || scanlineStride < width || offset + (image.getHeight() - 1) * scanlineStride + width > pixels.length)
+			throw new IllegalArgumentException("The array is too small for the image");
+
+		this.decodeQuietly(image, new RowHandler()
+		{
+			public void row(int y, byte[] samples, int rowOffset, int length)
+			{
+				converter.convert(samples, rowOffset, width, pixels, offset + y * scanlineStride);
+			}
+		});
+	}
+
+	/**
+	 * Decode an image into ARGB pixels, put in the buffer as ints in its
+	 * byte order, so a big endian buffer gets the bytes A, R, G, B.  The
+	 * buffer's position is advanced past the image.
+	 *
+	 * @param image The image
+	 * @param buffer Has room for 4 bytes for each pixel of the image
+	 * @throws PngException if the image is malformed
+	 */
+	public void decodeArgb(PngImage image, final ByteBuffer buffer) throws PngException
+	{
+		final ArgbConverter converter = new ArgbConverter(image);
+		final int width = (int) image.getWidth();
+		if (buffer.remaining() < 4L * width * image.getHeight())
+			throw new IllegalArgumentException("The buffer is too small for the image");
+
+		final int[] pixels = new int[width];
+		this.decodeQuietly(image, new RowHandler()
+		{
+			public void row(int y, byte[] samples, int offset, int length)
+			{
+				converter.convert(samples, offset, width, pixels, 0);
+				buffer.asIntBuffer().put(pixels);
+				buffer.position(buffer.position() + 4 * width);
+			}
+		});
+	}
+
+	/** */
+	public void close()
+	{
+		this.inflater.end();
+	}
+
+	/* Decode with a handler that throws no IOException */
+	private void decodeQuietly(PngImage image, RowHandler handler) throws PngException
+	{
+		try
+		{
+			this.decode(image, handler);
+		}
+		catch (PngException e)
+		{
+			throw e;
+		}
+		catch (IOException e)
+		{
+			throw new PngException("Error decoding image", e);
+		}
+	}
+
+	/* The header of the image, if the image is one this can decode */
+	static PngChunk checkHeader(PngImage image) throws PngException
+	{
+		if (image.getChunks().isEmpty() || !PngChunk.IMAGE_HEADER.equals(image.getChunks().get(0).getTypeString()))
+			throw new PngException("Missing image header");
+
+		PngChunk header = image.getChunks().get(0);
+		if (header.getWidth() <= 0 || header.getHeight() <= 0 || header.getHeight() > Integer.MAX_VALUE)
+			throw new PngException(String.format("Bad image size %dx%d", header.getWidth(), header.getHeight()));
+		if (header.getCompression() != 0 || header.getFilter() != 0 || header.getInterlace() > 1)
+			throw new PngException("Unknown compression, filter or interlace method");
+
+		int bitDepth = header.getBitDepth();
+		boolean valid;
+		switch (header.getColorType())
+		{
+			case 0:
+				valid = bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+				break;
+
+			case 3:
+				valid = bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+				break;
+
+			case 2:
+			case 4:
+			case 6:
+				valid = bitDepth == 8 || bitDepth == 16;
+				break;
+
+			default:
+				valid = false;
+		}
+		if (!valid)
+			throw new PngException(String.format("Bad color type %d with bit depth %d", header.getColorType(), bitDepth));
+
+		return header;
+	}
+
+	/* */
+	private void deFilter(byte[] row, byte[] previousRow, int sampleBitCount) throws PngException
+	{
+		if (row[0] < 0 || row[0] > 4)
+			throw new PngException("Bad filter type " + row[0]);
+
+		this.pngFilterHandler.deFilter(row, previousRow, sampleBitCount);
+	}
+
+	/* Inflate exactly length bytes into the buffer, taking input from the image data chunks as it is needed */
+	private void inflateFully(Iterator<PngChunk> chunks, byte[] buffer, int length) throws PngException
+	{
+		try
+		{
+			int inflated = 0;
+			while (inflated < length)
+			{
+				int count = this.inflater.inflate(buffer, inflated, length - inflated);
+				if (count == 0)
+				{
+					if (this.inflater.finished() || this.inflater.needsDictionary())
+						throw new PngException("The image data ends too soon");
+
+					if (this.inflater.needsInput())
+						this.inflater.setInput(nextImageData(chunks));
+				}
+				inflated += count;
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new PngException("Bad image data: " + e.getMessage());
+		}
+	}
+
+	/* */
+	private static byte[] nextImageData(Iterator<PngChunk> chunks) throws PngException
+	{
+		while (chunks.hasNext())
+		{
+			PngChunk chunk = chunks.next();
+			if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString()))
+				return chunk.getDataArray();
+		}
+		throw new PngException("The image data ends too soon");
+	}
+
+	/* The length of the inflated image data of an interlaced image, in which each pass is an image of its own */
+	private static long getInterlacedLength(long width, long height, int sampleBitCount)
+	{
+		long length = 0;
+		for (int pass = 0; pass < 7; pass++)
+		{
+			long columns = (width - PASS_COLUMN_OFFSET[pass] + PASS_COLUMN_FREQUENCY[pass] - 1) / PASS_COLUMN_FREQUENCY[pass];
+			long rows = (height - PASS_ROW_OFFSET[pass] + PASS_ROW_FREQUENCY[pass] - 1) / PASS_ROW_FREQUENCY[pass];
+			if (columns > 0 && rows > 0)
+				length += rows * ((columns * sampleBitCount + 7) / 8 + 1);
+		}
+		return length;
+	}
+
+	/* Inflate all the image data, which should be exactly the given length */
+	private byte[] inflate(PngImage image, long inflatedSize) throws PngException
+	{
+		if (inflatedSize > Integer.MAX_VALUE - 8)
+			throw new PngException("The image is too large to deinterlace");
+
+		byte[] inflated = new byte[(int) inflatedSize];
+		this.inflater.reset();
+		this.inflateFully(image.getChunks().iterator(), inflated, inflated.length);
+
+		return inflated;
+	}
+
+	/** Turns rows of samples into ARGB pixels */
+	private static class ArgbConverter
+	{
+		/** */
+		private final PngImageType imageType;
+		private final int bitDepth;
+
+		/** the ARGB pixel for each palette index */
+		private final int[] palette = new int[256];
+
+		/** the samples of the transparent color, as they would be read from the row, or -1 for none */
+		private long transparent = -1;
+
+		/** */
+		public ArgbConverter(PngImage image) throws PngException
+		{
+			checkHeader(image);
+			this.imageType = PngImageType.forColorType(image.getColorType());
+			this.bitDepth = image.getBitDepth();
+
+			Arrays.fill(this.palette, 0xff000000);
+			for (PngChunk chunk : image.getChunks())
+			{
+				if (PngChunk.PALETTE.equals(chunk.getTypeString()))
+				{
+					byte[] data = chunk.getDataArray();
+					for (int i = 0; i < Math.min(256, data.length / 3); i++)
+						this.palette[i] = 0xff000000 | ((data[3 * i] & 0xff) << 16) | ((data[3 * i + 1] & 0xff) << 8) | (data[3 * i + 2] & 0xff);
+				}
+				else if (PngChunk.TRANSPARANCY.equalsIgnoreCase(chunk.getTypeString()))
+				{
+					this.setTransparency(chunk.getDataArray());
+				}
+			}
+		}
+
+		/* */
+		private void setTransparency(byte[] data)
+		{
+			switch (this.imageType)
+			{
+				case INDEXED_COLOR:
+					for (int i = 0; i < Math.min(256, data.length); i++)
+						this.palette[i] = (this.palette[i] & 0x00ffffff) | ((data[i] & 0xff) << 24);
+					break;
+
+				case GREYSCALE:
+					if (data.length >= 2)
+						this.transparent = ((data[0] & 0xff) << 8 | (data[1] & 0xff)) & ((1 << this.bitDepth) - 1);
+					break;
+
+				case TRUECOLOR:
+					if (data.length >= 6)
+					{
+						long red = (data[0] & 0xff) << 8 | (data[1] & 0xff);
+						long green = (data[2] & 0xff) << 8 | (data[3] & 0xff);
+						long blue = (data[4] & 0xff) << 8 | (data[5] & 0xff);
+						this.transparent = (this.bitDepth == 16) ? (red << 32 | green << 16 | blue) : ((red & 0xff) << 16 | (green & 0xff) << 8 | (blue & 0xff));
+					}
+					break;
+
+				default:
+					break;
+			}
+		}
+
+		/* */
+		public void convert(byte[] row, int offset, int width, int[] pixels, int pixelOffset)
+		{
+			switch (this.imageType)
+			{
+				case GREYSCALE:
+					this.convertGreyscale(row, offset, width, pixels, pixelOffset);
+					break;
+
+				case INDEXED_COLOR:
+					if (this.bitDepth == 8)
+					{
+						for (int x = 0; x < width; x++)
+							pixels[pixelOffset + x] = this.palette[row[offset + x] & 0xff];
+					}
+					else
+					{
+						for (int x = 0; x < width; x++)
+							pixels[pixelOffset + x] = this.palette[packedSample(row, offset, x, this.bitDepth)];
+					}
+					break;
+
+				case TRUECOLOR:
+					if (this.bitDepth == 8)
+					{
+						for (int x = 0, i = offset; x < width; x++, i += 3)
+						{
+							int rgb = (row[i] & 0xff) << 16 | (row[i + 1] & 0xff) << 8 | (row[i + 2] & 0xff);
+							pixels[pixelOffset + x] = (rgb == this.transparent) ? rgb : 0xff000000 | rgb;
+						}
+					}
+					else
+					{
+						for (int x = 0, i = offset; x < width; x++, i += 6)
+						{
+							long samples = (long) ((row[i] & 0xff) << 8 | (row[i + 1] & 0xff)) << 32
+									| (long) ((row[i + 2] & 0xff) << 8 | (row[i + 3] & 0xff)) << 16 | ((row[i + 4] & 0xff) << 8 | (row[i + 5] & 0xff));
+							int rgb = (row[i] & 0xff) << 16 | (row[i + 2] & 0xff) << 8 | (row[i + 4] & 0xff);
+							pixels[pixelOffset + x] = (samples == this.transparent) ? rgb : 0xff000000 | rgb;
+						}
+					}
+					break;
+
+				case GREYSCALE_ALPHA:
+					for (int x = 0, i = offset, step = this.bitDepth / 4; x < width; x++, i += step)
+					{
+						int grey = row[i] & 0xff;
+						int alpha = row[i + step / 2] & 0xff;
+						pixels[pixelOffset + x] = alpha << 24 | grey << 16 | grey << 8 | grey;
+					}
+					break;
+
+				case TRUECOLOR_ALPHA:
+					if (this.bitDepth == 8)
+					{
+						for (int x = 0, i = offset; x < width; x++, i += 4)
+							pixels[pixelOffset + x] = (row[i + 3] & 0xff) << 24 | (row[i] & 0xff) << 16 | (row[i + 1] & 0xff) << 8 | (row[i + 2] & 0xff);
+					}
+					else
+					{
+						for (int x = 0, i = offset; x < width; x++, i += 8)
+							pixels[pixelOffset + x] = (row[i + 6] & 0xff) << 24 | (row[i] & 0xff) << 16 | (row[i + 2] & 0xff) << 8 | (row[i + 4] & 0xff);
+					}
+					break;
+			}
+		}
+
+		/* */
+		private void convertGreyscale(byte[] row, int offset, int width, int[] pixels, int pixelOffset)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				int sample;
+				int grey;
+				if (this.bitDepth == 16)
+				{
+					sample = (row[offset + 2 * x] & 0xff) << 8 | (row[offset + 2 * x + 1] & 0xff);
+					grey = sample >>> 8;
+				}
+				else if (this.bitDepth == 8)
+				{
+					sample = row[offset + x] & 0xff;
+					grey = sample;
+				}
+				else
+				{
+					sample = packedSample(row, offset, x, this.bitDepth);
+					grey = sample * 255 / ((1 << this.bitDepth) - 1);
+				}
+
+				int rgb = grey << 16 | grey << 8 | grey;
+				pixels[pixelOffset + x] = (sample == this.transparent) ? rgb : 0xff000000 | rgb;
+			}
+		}
+
+		/* A sample of fewer than 8 bits, packed from the high bits of each byte down */
+		private static int packedSample(byte[] row, int offset, int x, int bitDepth)
+		{
+			int bit = x * bitDepth;
+			return (row[offset + (bit >> 3)] >> (8 - bitDepth - (bit & 7))) & ((1 << bitDepth) - 1);
+		}
+	}
+}
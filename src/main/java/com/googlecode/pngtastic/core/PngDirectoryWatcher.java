@@ -0,0 +1,434 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists the files to optimize in directories as they are added or changed,
+ * for folders that assets are dropped into all the time.  The files already
+ * there are listed first, as by PngFileWalker, and then each new or changed
+ * file that matches the include glob but not the exclude glob, for as long
+ * as the watcher is open.  It can be handed to PngBatchOptimizer, which then
+ * optimizes the files as they come.
+ * <p>
+ * A burst of events for a file is coalesced into one, and the file is only
+ * listed once it has gone without events for the quiet period and its size
+ * and modification time have stopped changing, so that a file still being
+ * copied in is not read half written.  A file is not listed again while it
+ * is as it was when last listed, or as the optimizer last wrote it when
+ * the watcher is registered as the optimizer's write listener, so the
+ * optimizer's own writes never list a file again.
+ */
+public class PngDirectoryWatcher implements Iterator<String>, Closeable, PngFileWriter.Listener
+{
+	/** */
+	private final Logger log;
+
+	/** */
+	public static final long DEFAULT_QUIET_MILLIS = 1000;
+
+	/** the number of files that may be listed ahead of the iteration */
+	private static final int QUEUE_CAPACITY = 1024;
+
+	/** marks the end of the watch */
+	private static final String END = new String();
+
+	/** */
+	private final PathMatcher include;
+	private final PathMatcher exclude;
+
+	/** how long a file must go unchanged before it is listed */
+	private final long quietMillis;
+
+	/** */
+	private final WatchService watchService;
+
+	/** the directory each key watches, with the root it was found under */
+	private final Map<WatchKey, Path[]> directories = new HashMap<WatchKey, Path[]>();
+
+	/** the files with events not yet settled, by path, in the order of their first event */
+	private final Map<Path, Pending> pending = new LinkedHashMap<Path, Pending>();
+
+	/** each file as it was when it was last listed or written, by its absolute path */
+	private final Map<Path, Fingerprint> seen = new ConcurrentHashMap<Path, Fingerprint>();
+
+	/** */
+	private final BlockingQueue<String> found = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+	private String next;
+
+	/**
+	 * Start watching.
+	 *
+	 * @param logLevel The level of logging output
+	 * @param directoryNames The directories to watch, along with all the directories under them
+	 * @param include A glob for the files to list, or null for PngFileWalker.DEFAULT_INCLUDE
+	 * @param exclude A glob for the files and directories to skip, or null to skip none
+	 * @param quietMillis How long a file must go unchanged before it is listed
+	 * @throws IOException if the directories can't be watched
+	 */
+	public PngDirectoryWatcher(String logLevel, List<String> directoryNames, String include, String exclude, long quietMillis) throws IOException
+	{
+		this.log = new Logger(logLevel);
+		this.include = FileSystems.getDefault().getPathMatcher("glob:" + ((include == null) ? PngFileWalker.DEFAULT_INCLUDE : include));
+		this.exclude = (exclude == null) ? null : FileSystems.getDefault().getPathMatcher("glob:" + exclude);
+		this.quietMillis = quietMillis;
+		this.watchService = FileSystems.getDefault().newWatchService();
+
+		final List<Path> roots = new ArrayList<Path>();
+		for (String directoryName : directoryNames)
+		{
+			Path root = Paths.get(directoryName);
+			if (!Files.isDirectory(root))
+				throw new IOException("Not a directory: " + directoryName);
+			roots.add(root);
+		}
+
+		Thread watcher = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					for (Path root : roots)
+						PngDirectoryWatcher.this.register(root, root, true);
+					PngDirectoryWatcher.this.watch(roots);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				catch (ClosedWatchServiceException e)
+				{
+					return;
+				}
+				finally
+				{
+					PngDirectoryWatcher.this.found.clear();
+					PngDirectoryWatcher.this.found.offer(END);
+				}
+			}
+		}, "pngtastic-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Wait for the next file to be added or changed.
+	 *
+	 * @return false once the watcher is closed
+	 */
+	public boolean hasNext()
+	{
+		if (this.next == null)
+		{
+			try
+			{
+				this.next = this.found.take();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				this.next = END;
+			}
+		}
+		return this.next != END;
+	}
+
+	/** */
+	public String next()
+	{
+		if (!this.hasNext())
+			throw new NoSuchElementException();
+
+		String result = this.next;
+		this.next = null;
+		return result;
+	}
+
+	/** */
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stop watching, which ends the iteration.
+	 */
+	public void close() throws IOException
+	{
+		this.watchService.close();
+	}
+
+	/**
+	 * Remember a file as the optimizer wrote it, so that the events its
+	 * writing raises don't list it again.
+	 */
+	public void written(Path file)
+	{
+		Fingerprint fingerprint = Fingerprint.of(file);
+		if (fingerprint != null)
+			this.seen.put(key(file), fingerprint);
+	}
+
+	/*
+	 * Take events as they come, and list the files that have settled.  If
+	 * events were lost, the directories are walked again for any file that
+	 * isn't as it was last seen.
+	 */
+	private void watch(List<Path> roots) throws InterruptedException
+	{
+		long pollMillis = Math.max(1, this.quietMillis / 2);
+		while (true)
+		{
+			WatchKey key = this.watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+			for (; key != null; key = this.watchService.poll())
+			{
+				Path[] directory = this.directories.get(key);
+				for (WatchEvent<?> event : key.pollEvents())
+				{
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+					{
+						this.log.info("Missed some changes, looking for them");
+						for (Path root : roots)
+							this.register(root, root, false);
+					}
+					else if (directory != null)
+					{
+						this.changed(directory[0].resolve((Path) event.context()), directory[1]);
+					}
+				}
+				if (!key.reset())
+					this.directories.remove(key);
+			}
+			this.settle();
+		}
+	}
+
+	/* Note an event for a path, watching it and everything under it if it is a new directory */
+	private void changed(Path path, Path root) throws InterruptedException
+	{
+		if (Files.isDirectory(path))
+		{
+			if (!matches(this.exclude, root, path))
+				this.register(path, root, false);
+		}
+		else if (this.isIncluded(path, root))
+		{
+			Pending file = this.pending.get(path);
+			if (file == null)
+				this.pending.put(path, new Pending(Fingerprint.of(path)));
+			else
+				file.lastEvent = System.currentTimeMillis();
+		}
+	}
+
+	/*
+	 * List the files that have gone unchanged for the quiet period, and
+	 * drop those that are gone or are as they were when last seen.
+	 */
+	private void settle() throws InterruptedException
+	{
+		long now = System.currentTimeMillis();
+		for (Iterator<Entry<Path, Pending>> i = this.pending.entrySet().iterator(); i.hasNext(); )
+		{
+			Entry<Path, Pending> entry = i.next();
+			Pending file = entry.getValue();
+			if (now - file.lastEvent < this.quietMillis)
+				continue;
+
+			Fingerprint fingerprint = Fingerprint.of(entry.getKey());
+			if (fingerprint != null && !fingerprint.equals(file.fingerprint))
+			{
+				this.log.debug("%s is still being written", entry.getKey());
+				file.fingerprint = fingerprint;
+				file.lastEvent = now;
+				continue;
+			}
+
+			i.remove();
+			if (fingerprint != null && !fingerprint.equals(this.seen.get(key(entry.getKey()))))
+				this.list(entry.getKey(), fingerprint);
+		}
+	}
+
+	/* */
+	private void list(Path file, Fingerprint fingerprint) throws InterruptedException
+	{
+		this.seen.put(key(file), fingerprint);
+		this.found.put(file.toString());
+	}
+
+	/*
+	 * Watch a directory and every directory under it that isn't excluded.
+	 * At the start every file found is listed; later only those that have
+	 * changed since they were last seen, as they may have been added or
+	 * changed before the directory was watched.
+	 */
+	private void register(Path directory, final Path root, final boolean listAll) throws InterruptedException
+	{
+		try
+		{
+			Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException
+				{
+					if (!dir.equals(root) && matches(PngDirectoryWatcher.this.exclude, root, dir))
+						return FileVisitResult.SKIP_SUBTREE;
+
+					WatchKey key = dir.register(PngDirectoryWatcher.this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY);
+					PngDirectoryWatcher.this.directories.put(key, new Path[] { dir, root });
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+				{
+					if (attributes.isRegularFile() && PngDirectoryWatcher.this.isIncluded(file, root))
+					{
+						if (listAll)
+						{
+							try
+							{
+								PngDirectoryWatcher.this.list(file, Fingerprint.of(attributes));
+							}
+							catch (InterruptedException e)
+							{
+								throw new IOException("Interrupted while walking " + root);
+							}
+						}
+						else if (!Fingerprint.of(attributes).equals(PngDirectoryWatcher.this.seen.get(key(file)))
+								&& !PngDirectoryWatcher.this.pending.containsKey(file))
+						{
+							PngDirectoryWatcher.this.pending.put(file, new Pending(Fingerprint.of(attributes)));
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e)
+				{
+					PngDirectoryWatcher.this.log.error("Error watching %s: %s", file, e.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			this.log.error("Error watching %s: %s", directory, e.getMessage());
+		}
+	}
+
+	/* */
+	private boolean isIncluded(Path file, Path root)
+	{
+		return matches(this.include, root, file) && !matches(this.exclude, root, file);
+	}
+
+	/* The same file always has the same key, however it was named */
+	private static Path key(Path file)
+	{
+		return file.toAbsolutePath().normalize();
+	}
+
+	/* */
+	private static boolean matches(PathMatcher matcher, Path root, Path path)
+	{
+		return PngFileWalker.matches(matcher, root, path);
+	}
+
+	/** A file with events that hasn't settled yet */
+	private static class Pending
+	{
+		/** */
+		private long lastEvent = System.currentTimeMillis();
+		private Fingerprint fingerprint;
+
+		/** */
+		public Pending(Fingerprint fingerprint)
+		{
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	/** The size and modification time of a file, which change whenever it is written */
+	private static class Fingerprint
+	{
+		/** */
+		private final long size;
+		private final long lastModified;
+
+		/** */
+		public Fingerprint(long size, long lastModified)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		/** The fingerprint of a file, or null if it can't be read */
+		public static Fingerprint of(Path file)
+		{
+			try
+			{
+				return of(Files.readAttributes(file, BasicFileAttributes.class));
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+		}
+
+		/** */
+		public static Fingerprint of(BasicFileAttributes attributes)
+		{
+			return new Fingerprint(attributes.size(), attributes.lastModifiedTime().toMillis());
+		}
+
+		/** */
+		@Override
+		public boolean equals(Object other)
+		{
+			return other instanceof Fingerprint && ((Fingerprint) other).size == this.size && ((Fingerprint) other).lastModified == this.lastModified;
+		}
+
+		/** */
+		@Override
+		public int hashCode()
+		{
+			return (int) (this.size * 31 + this.lastModified);
+		}
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.googlecode.pngtastic.core.processing.PngFilterHandler;
+import com.googlecode.pngtastic.core.processing.PngScanlineStatistics;
+import com.googlecode.pngtastic.core.processing.PngtasticFilterHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticFilterHeuristic;
+
+/**
+ * Encodes pixels straight to png files, for images made on the fly, such as
+ * charts and map tiles, without writing a png first only for the optimizer
+ * to read it back.  Pixels can come from a BufferedImage, from an array of
+ * ARGB ints, or as rows of samples packed as they are in a png.
+ * <p>
+ * There are two levels of effort.  The fast effort, the default, is for
+ * request paths: each row is filtered by the minimum sum heuristic the png
+ * spec suggests, as it is encoded, and the image data is deflated once at
+ * a moderate level.  The full effort hands the rows to the optimizer's
+ * filter and compression search, with the optimizer's settings, which is
+ * many times slower but as small as optimizing the image would make it.
+ * <p>
+ * Palette images, and samples of fewer than 8 bits, are left unfiltered
+ * by the fast effort, since filtering rarely helps them.
+ */
+public class PngEncoder
+{
+	/** how hard to work at making the image small */
+	public static final String EFFORT_FAST = "fast";
+	public static final String EFFORT_FULL = "full";
+
+	/** the compression level of the fast effort, unless one is set */
+	private static final int FAST_COMPRESSION_LEVEL = 6;
+
+	/** */
+	private final PngOptimizer optimizer;
+
+	/** filters the rows of the fast effort, the same way as the optimizer */
+	private final PngFilterHandler filterHandler;
+
+	/** */
+	private String effort = EFFORT_FAST;
+
+	/** */
+	private Integer compressionLevel;
+
+	/** Fills in the samples of a row of an image */
+	private interface RowSource
+	{
+		/**
+		 * @param y The row
+		 * @param row Where the samples go, after the filter type byte
+		 */
+		public void row(int y, byte[] row);
+	}
+
+	/** */
+	public PngEncoder()
+	{
+		this(new PngOptimizer());
+	}
+
+	/**
+	 * @param optimizer The optimizer whose settings the full effort searches with
+	 */
+	public PngEncoder(PngOptimizer optimizer)
+	{
+		this.optimizer = optimizer;
+		this.filterHandler = new PngtasticFilterHandler(optimizer.getLog());
+	}
+
+	/**
+	 * Choose the effort: a single pass, filtered by a fixed heuristic and
+	 * deflated once (the default), or the optimizer's full search.
+	 *
+	 * @param effort EFFORT_FAST or EFFORT_FULL
+	 */
+	public void setEffort(String effort)
+	{
+		if (!EFFORT_FAST.equals(effort) && !EFFORT_FULL.equals(effort))
+			throw new IllegalArgumentException("Unknown effort: " + effort);
+
+		this.effort = effort;
+	}
+
+	/**
+	 * @param compressionLevel The compression level, or null for 6 with the fast effort and every level with the full one
+	 */
+	public void setCompressionLevel(Integer compressionLevel)
+	{
+		if (compressionLevel != null && (compressionLevel < 0 || compressionLevel > 9))
+			throw new IllegalArgumentException("Bad compression level: " + compressionLevel);
+
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Encode an image.  Images with an IndexColorModel of up to 8 bits per
+	 * pixel are encoded as palette images, and 8 and 16 bit greyscale images
+	 * as greyscale; every other image is encoded as 8 bit truecolor, with
+	 * alpha if its color model has it.
+	 *
+	 * @param image The image
+	 * @return The png file
+	 * @throws IOException if the image couldn't be encoded
+	 */
+	public byte[] encode(BufferedImage image) throws IOException
+	{
+		final int width = image.getWidth();
+		final Raster raster = image.getRaster();
+		ColorModel colorModel = image.getColorModel();
+
+		if (colorModel instanceof IndexColorModel && raster.getNumBands() == 1 && colorModel.getPixelSize() <= 8)
+		{
+			IndexColorModel indexColorModel = (IndexColorModel) colorModel;
+			final int bitDepth = (colorModel.getPixelSize() <= 1) ? 1 : (colorModel.getPixelSize() <= 2) ? 2 : (colorModel.getPixelSize() <= 4) ? 4 : 8;
+			int size = Math.min(indexColorModel.getMapSize(), 1 << bitDepth);
+
+			byte[] palette = new byte[3 * size];
+			byte[] alphas = new byte[size];
+			int transparentCount = 0;
+			for (int i = 0; i < size; i++)
+			{
+				palette[3 * i] = (byte) indexColorModel.getRed(i);
+				palette[3 * i + 1] = (byte) indexColorModel.getGreen(i);
+				palette[3 * i + 2] = (byte) indexColorModel.getBlue(i);
+				alphas[i] = (byte) indexColorModel.getAlpha(i);
+				if (indexColorModel.getAlpha(i) != 0xff)
+					transparentCount = i + 1;
+			}
+			byte[] transparency = null;
+			if (transparentCount > 0)
+			{
+				transparency = new byte[transparentCount];
+				System.arraycopy(alphas, 0, transparency, 0, transparentCount);
+			}
+
+			final int[] samples = new int[width];
+			return this.encode(width, image.getHeight(), PngImageType.INDEXED_COLOR, bitDepth, palette, transparency, new RowSource()
+			{
+				public void row(int y, byte[] row)
+				{
+					pack(raster.getPixels(0, y, width, 1, samples), width, bitDepth, row);
+				}
+			});
+		}
+
+		if (image.getType() == BufferedImage.TYPE_BYTE_GRAY || image.getType() == BufferedImage.TYPE_USHORT_GRAY)
+		{
+			final int bitDepth = (image.getType() == BufferedImage.TYPE_BYTE_GRAY) ? 8 : 16;
+			final int[] samples = new int[width];
+			return this.encode(width, image.getHeight(), PngImageType.GREYSCALE, bitDepth, null, null, new RowSource()
+			{
+				public void row(int y, byte[] row)
+				{
+					pack(raster.getPixels(0, y, width, 1, samples), width, bitDepth, row);
+				}
+			});
+		}
+
+		final BufferedImage argbImage = image;
+		final boolean alpha = colorModel.hasAlpha();
+		final int[] pixels = new int[width];
+		return this.encode(width, image.getHeight(), alpha ? PngImageType.TRUECOLOR_ALPHA : PngImageType.TRUECOLOR, 8, null, null, new RowSource()
+		{
+			public void row(int y, byte[] row)
+			{
+				packArgb(argbImage.getRGB(0, y, width, 1, pixels, 0, width), 0, width, alpha, row);
+			}
+		});
+	}
+
+	/**
+	 * Encode ARGB pixels as 8 bit truecolor.
+	 *
+	 * @param pixels The pixels
+	 * @param offset The index of the top left pixel
+	 * @param scanlineStride The distance between the starts of rows in pixels
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @param alpha Whether to keep the alpha channel, rather than drop it
+	 * @return The png file
+	 * @throws IOException if the image couldn't be encoded
+	 */
+	public byte[] encodeArgb(final int[] pixels, final int offset, final int scanlineStride, final int width, int height, final boolean alpha) throws IOException
+	{
+		if (width > 0 && height > 0 && offset + (long) (height - 1) * scanlineStride + width > pixels.length)
+			throw new IllegalArgumentException("Too few pixels for the image");
+
+		return this.encode(width, height, alpha ? PngImageType.TRUECOLOR_ALPHA : PngImageType.TRUECOLOR, 8, null, null, new RowSource()
+		{
+			public void row(int y, byte[] row)
+			{
+				packArgb(pixels, offset + y * scanlineStride, width, alpha, row);
+			}
+		});
+	}
+
+	/**
+	 * Encode rows of samples packed as they are in a png, the same way as
+	 * PngDecoder hands them out.
+	 *
+	 * @param samples The rows, each starting on a byte, with 16 bit samples big endian
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @param imageType The color type
+	 * @param bitDepth The bits per sample
+	 * @param palette The palette, as red, green and blue bytes, needed for palette images and otherwise optional
+	 * @param transparency The contents of a tRNS chunk, or null for none
+	 * @return The png file
+	 * @throws IOException if the image couldn't be encoded
+	 */
+	public byte[] encode(final byte[] samples, int width, int height, PngImageType imageType, int bitDepth, byte[] palette, byte[] transparency) throws IOException
+	{
+		final int rowLength = (int) getRowLength(width, imageType.channelCount() * bitDepth) - 1;
+		if ((long) rowLength * height > samples.length)
+			throw new IllegalArgumentException("Too few samples for the image");
+
+		return this.encode(width, height, imageType, bitDepth, palette, transparency, new RowSource()
+		{
+			public void row(int y, byte[] row)
+			{
+				System.arraycopy(samples, y * rowLength, row, 1, rowLength);
+			}
+		});
+	}
+
+	/* */
+	private byte[] encode(int width, int height, PngImageType imageType, int bitDepth, byte[] palette, byte[] transparency, RowSource rows) throws IOException
+	{
+		byte[] headerData = new byte[13];
+		putInt(headerData, 0, width);
+		putInt(headerData, 4, height);
+		headerData[8] = (byte) bitDepth;
+		headerData[9] = (byte) imageType.getColorType();
+		PngChunk header = new PngChunk(PngChunk.IMAGE_HEADER.getBytes(), headerData);
+
+		PngImage image = new PngImage();
+		image.addChunk(header);
+		try
+		{
+			PngDecoder.checkHeader(image);
+		}
+		catch (PngException e)
+		{
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		if (imageType == PngImageType.INDEXED_COLOR && palette == null)
+			throw new IllegalArgumentException("A palette image needs a palette");
+		if (palette != null && (palette.length == 0 || palette.length % 3 != 0 || palette.length > 3 * 256))
+			throw new IllegalArgumentException("Bad palette length " + palette.length);
+
+		List<PngChunk> chunks = new ArrayList<PngChunk>();
+		if (palette != null)
+			chunks.add(new PngChunk(PngChunk.PALETTE.getBytes(), palette));
+		if (transparency != null)
+			chunks.add(new PngChunk("tRNS".getBytes(), transparency));
+
+		int sampleBitCount = imageType.channelCount() * bitDepth;
+		int rowLength = (int) getRowLength(width, sampleBitCount);
+		if (EFFORT_FULL.equals(this.effort))
+		{
+			List<byte[]> scanlines = new ArrayList<byte[]>(height);
+			for (int y = 0; y < height; y++)
+			{
+				byte[] row = new byte[rowLength];
+				rows.row(y, row);
+				scanlines.add(row);
+			}
+			return this.optimizer.getBytes(this.optimizer.encode(header, chunks, scanlines, this.compressionLevel));
+		}
+
+		boolean adaptive = bitDepth >= 8 && imageType != PngImageType.INDEXED_COLOR;
+		byte[] imageData = this.deflate(rows, height, rowLength, sampleBitCount, adaptive);
+
+		PngImage result = new PngImage();
+		result.addChunk(header);
+		for (PngChunk chunk : chunks)
+			result.addChunk(chunk);
+		result.addChunk(new PngChunk(PngChunk.IMAGE_DATA.getBytes(), imageData));
+		result.addChunk(new PngChunk(PngChunk.IMAGE_TRAILER.getBytes(), new byte[0]));
+
+		return this.optimizer.getBytes(result);
+	}
+
+	/*
+	 * Filter and deflate the rows a row at a time.  When filtering is
+	 * adaptive each row is filtered with every standard filter type and the
+	 * one the minimum sum heuristic scores lowest is kept; otherwise the rows
+	 * are left unfiltered.
+	 */
+	private byte[] deflate(RowSource rows, int height, int rowLength, int sampleBitCount, boolean adaptive) throws IOException
+	{
+		Deflater deflater = new Deflater((this.compressionLevel == null) ? FAST_COMPRESSION_LEVEL : this.compressionLevel);
+		try
+		{
+			ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+			DeflaterOutputStream out = new DeflaterOutputStream(imageData, deflater, 64 * 1024);
+
+			PngFilterType[] filterTypes = PngFilterType.standardValues();
+			byte[][] filtered = new byte[filterTypes.length][rowLength];
+			PngScanlineStatistics statistics = new PngScanlineStatistics();
+			PngFilterType previousFilterType = null;
+
+			byte[] row = new byte[rowLength];
+			byte[] previousRow = new byte[rowLength];
+			for (int y = 0; y < height; y++)
+			{
+				rows.row(y, row);
+				if (!adaptive)
+				{
+					out.write(row);
+				}
+				else
+				{
+					int best = 0;
+					double bestScore = Double.MAX_VALUE;
+					for (int f = 0; f < filterTypes.length; f++)
+					{
+						System.arraycopy(row, 0, filtered[f], 0, rowLength);
+						filtered[f][0] = filterTypes[f].getValue();
+						this.filterHandler.filter(filtered[f], previousRow, sampleBitCount);
+
+						statistics.collect(filtered[f]);
+						double score = PngtasticFilterHeuristic.MINIMUM_SUM.score(statistics, filterTypes[f], previousFilterType);
+						if (score < bestScore)
+						{
+							best = f;
+							bestScore = score;
+						}
+					}
+					// filtering clears the filter type byte
+					filtered[best][0] = filterTypes[best].getValue();
+					out.write(filtered[best]);
+					previousFilterType = filterTypes[best];
+				}
+
+				byte[] swap = previousRow;
+				previousRow = row;
+				row = swap;
+			}
+			out.finish();
+
+			return imageData.toByteArray();
+		}
+		catch (PngException e)
+		{
+			throw new IOException(e.getMessage());
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	/* Pack samples into a row, after its filter type byte */
+	private static void pack(int[] samples, int count, int bitDepth, byte[] row)
+	{
+		if (bitDepth == 16)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				row[1 + 2 * i] = (byte) (samples[i] >>> 8);
+				row[2 + 2 * i] = (byte) samples[i];
+			}
+		}
+		else if (bitDepth == 8)
+		{
+			for (int i = 0; i < count; i++)
+				row[1 + i] = (byte) samples[i];
+		}
+		else
+		{
+			int perByte = 8 / bitDepth;
+			int mask = (1 << bitDepth) - 1;
+			for (int i = 1; i < row.length; i++)
+				row[i] = 0;
+			for (int i = 0; i < count; i++)
+				row[1 + i / perByte] |= (samples[i] & mask) << (8 - bitDepth * (i % perByte + 1));
+		}
+	}
+
+	/* Pack ARGB pixels into a row of 8 bit truecolor samples, after its filter type byte */
+	private static void packArgb(int[] pixels, int offset, int width, boolean alpha, byte[] row)
+	{
+		int i = 1;
+		for (int x = 0; x < width; x++)
+		{
+			int pixel = pixels[offset + x];
+			row[i++] = (byte) (pixel >>> 16);
+			row[i++] = (byte) (pixel >>> 8);
+			row[i++] = (byte) pixel;
+			if (alpha)
+				row[i++] = (byte) (pixel >>> 24);
+		}
+	}
+
+	/* The length of a row with its filter type byte */
+	private static long getRowLength(int width, int sampleBitCount)
+	{
+		long rowLength = ((long) width * sampleBitCount + 7) / 8 + 1;
+		if (rowLength > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The image is too wide");
+
+		return rowLength;
+	}
+
+	/* */
+	private static void putInt(byte[] data, int offset, int value)
+	{
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+}
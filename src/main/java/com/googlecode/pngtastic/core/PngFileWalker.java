@@ -0,0 +1,206 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Lists the files to optimize from a mix of file and directory names, so
+ * that whole trees can be optimized without naming every file on the
+ * command line.  Files named directly are always listed; directories are
+ * walked recursively on a thread of their own, listing the files that match
+ * the include glob but not the exclude glob.  The files found can be
+ * optimized while the walk goes on: the walk runs ahead of the iteration by
+ * at most a bounded number of files.
+ * <p>
+ * Globs are matched against both the name of each file and its path
+ * relative to the directory walked, so "*.png" matches every png file and
+ * "icons/**" everything under an icons directory at the top.  A directory
+ * matching the exclude glob is not walked at all.
+ */
+public class PngFileWalker implements Iterator<String>
+{
+	/** */
+	private final Logger log;
+
+	/** */
+	public static final String DEFAULT_INCLUDE = "*.png";
+
+	/** the number of files the walk may find ahead of the iteration */
+	private static final int QUEUE_CAPACITY = 1024;
+
+	/** marks the end of the walk */
+	private static final String END = new String();
+
+	/** */
+	private final PathMatcher include;
+	private final PathMatcher exclude;
+
+	/** */
+	private final BlockingQueue<String> found = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+	private String next;
+
+	/**
+	 * Start walking.
+	 *
+	 * @param logLevel The level of logging output
+	 * @param fileNames The files and directories to list
+	 * @param include A glob for the files to list under each directory, or null for DEFAULT_INCLUDE
+	 * @param exclude A glob for the files and directories to skip, or null to skip none
+	 */
+	public PngFileWalker(String logLevel, List<String> fileNames, String include, String exclude)
+	{
+		this.log = new Logger(logLevel);
+		this.include = FileSystems.getDefault().getPathMatcher("glob:" + ((include == null) ? DEFAULT_INCLUDE : include));
+		this.exclude = (exclude == null) ? null : FileSystems.getDefault().getPathMatcher("glob:" + exclude);
+
+		final List<String> roots = new ArrayList<String>(fileNames);
+		Thread walker = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				boolean ended = false;
+				try
+				{
+					for (String root : roots)
+						PngFileWalker.this.walk(Paths.get(root));
+
+					// the queue is usually full when the walk is done, so this waits for room
+					PngFileWalker.this.found.put(END);
+					ended = true;
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				finally
+				{
+					// a walk cut short drops the files it found to make room for the end
+					if (!ended)
+					{
+						PngFileWalker.this.found.clear();
+						PngFileWalker.this.found.offer(END);
+					}
+				}
+			}
+		}, "pngtastic-walker");
+		walker.setDaemon(true);
+		walker.start();
+	}
+
+	/**
+	 * Wait for the next file to be found.
+	 *
+	 * @return false once the walk is over and every file has been listed
+	 */
+	public boolean hasNext()
+	{
+		if (this.next == null)
+		{
+			try
+			{
+				this.next = this.found.take();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				this.next = END;
+			}
+		}
+		return this.next != END;
+	}
+
+	/** */
+	public String next()
+	{
+		if (!this.hasNext())
+			throw new NoSuchElementException();
+
+		String result = this.next;
+		this.next = null;
+		return result;
+	}
+
+	/** */
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/* */
+	private void walk(final Path root) throws InterruptedException
+	{
+		if (!Files.isDirectory(root))
+		{
+			this.found.put(root.toString());
+			return;
+		}
+
+		try
+		{
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+				{
+					return (!dir.equals(root) && matches(PngFileWalker.this.exclude, root, dir))
+							? FileVisitResult.SKIP_SUBTREE
+							: FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+				{
+					if (attributes.isRegularFile() && matches(PngFileWalker.this.include, root, file)
+							&& !matches(PngFileWalker.this.exclude, root, file))
+					{
+						try
+						{
+							PngFileWalker.this.found.put(file.toString());
+						}
+						catch (InterruptedException e)
+						{
+							// the interrupt is kept, so the walk of the next root stops too
+							Thread.currentThread().interrupt();
+							return FileVisitResult.TERMINATE;
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e)
+				{
+					PngFileWalker.this.log.error("Error walking %s: %s", file, e.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			this.log.error("Error walking %s: %s", root, e.getMessage());
+		}
+	}
+
+	/* Whether the glob matches the name of the path, or its path relative to the root */
+	static boolean matches(PathMatcher matcher, Path root, Path path)
+	{
+		return matcher != null && (matcher.matches(path.getFileName()) || matcher.matches(root.relativize(path)));
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Writes files so that a crash never leaves one half written, which matters
+ * most when images are optimized in place.  Each file is written to a
+ * temporary file beside it, which is then renamed over the target, so the
+ * target always holds either the old bytes or the new ones.
+ * <p>
+ * For the rename to survive a crash, the temporary file and then the
+ * directory have to be synced.  Syncing is much slower than writing, so the
+ * renames are held back until a batch of files in the same directory is
+ * ready, and the directory is synced once for the whole batch.  Until then
+ * the targets keep their old contents.  With a batch size of 1 every file is
+ * in place and synced when the write returns.
+ * <p>
+ * A crash leaves the temporary files of the batches not yet renamed behind,
+ * named .name.N.tmp after their targets.  Whenever a file is written, the
+ * temporary files left beside it that this writer isn't using are removed,
+ * so they don't pile up from one crash to the next.  Two writers mustn't
+ * write the same file at once.
+ */
+public class PngFileWriter implements Closeable, Flushable
+{
+	/** */
+	private final Logger log;
+
+	/** the number of files renamed and synced at once in each directory */
+	private volatile int batchSize;
+	public int getBatchSize() { return this.batchSize; }
+
+	/** told of each file once it is in place */
+	private volatile Listener listener;
+	public void setListener(Listener listener) { this.listener = listener; }
+
+	/** the temporary files waiting to be renamed over their targets, by directory */
+	private final Map<Path, List<Path[]>> pending = new LinkedHashMap<Path, List<Path[]>>();
+
+	/** the temporary files this writer has created and not yet removed or renamed */
+	private final Set<Path> temps = new HashSet<Path>();
+
+	/**
+	 * @param log The logger
+	 * @param batchSize The number of files in a directory to sync at once
+	 */
+	public PngFileWriter(Logger log, int batchSize)
+	{
+		this.log = log;
+		this.setBatchSize(batchSize);
+	}
+
+	/**
+	 * Change the batch size, which applies from the next file written.
+	 *
+	 * @param batchSize The number of files in a directory to sync at once
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		if (batchSize < 1)
+			throw new IllegalArgumentException("The batch size must be at least 1");
+
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Replace the contents of a file.
+	 *
+	 * @param file The file to write
+	 * @param bytes The new contents
+	 * @throws IOException if the temporary file couldn't be written
+	 */
+	public void write(File file, byte[] bytes) throws IOException
+	{
+		Path target = file.toPath().toAbsolutePath();
+		Path temp = this.createTemp(target);
+		FileChannel out = null;
+		try
+		{
+			out = FileChannel.open(temp, StandardOpenOption.WRITE);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining())
+				out.write(buffer);
+		}
+		catch (IOException e)
+		{
+			this.discard(temp);
+			throw e;
+		}
+		finally
+		{
+			if (out != null)
+				out.close();
+		}
+		this.add(temp, target);
+	}
+
+	/**
+	 * Replace the contents of a file with those of another, which the
+	 * operating system copies without them passing through the heap.
+	 * Nothing is written when both are the same file.
+	 *
+	 * @param source The file to copy
+	 * @param file The file to write
+	 * @throws IOException if the temporary file couldn't be written
+	 */
+	public void copy(File source, File file) throws IOException
+	{
+		Path target = file.toPath().toAbsolutePath();
+		if (Files.exists(target) && Files.isSameFile(source.toPath(), target))
+		{
+			this.log.debug("Keeping %s as it is", target);
+			return;
+		}
+
+		Path temp = this.createTemp(target);
+		FileChannel in = null;
+		FileChannel out = null;
+		try
+		{
+			in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+			out = FileChannel.open(temp, StandardOpenOption.WRITE);
+			long size = in.size();
+			for (long position = 0; position < size; )
+				position += in.transferTo(position, size - position, out);
+		}
+		catch (IOException e)
+		{
+			this.discard(temp);
+			throw e;
+		}
+		finally
+		{
+			if (in != null)
+				in.close();
+			if (out != null)
+				out.close();
+		}
+		this.add(temp, target);
+	}
+
+	/**
+	 * Rename and sync every file written so far.
+	 *
+	 * @throws IOException if a file couldn't be synced or renamed
+	 */
+	public synchronized void flush() throws IOException
+	{
+		IOException failure = null;
+		for (Entry<Path, List<Path[]>> entry : this.pending.entrySet())
+		{
+			try
+			{
+				this.flush(entry.getKey(), entry.getValue());
+			}
+			catch (IOException e)
+			{
+				failure = (failure == null) ? e : failure;
+			}
+		}
+		this.pending.clear();
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/** */
+	public void close() throws IOException
+	{
+		this.flush();
+	}
+
+	/* */
+	private synchronized void add(Path temp, Path target) throws IOException
+	{
+		Path directory = target.getParent();
+		List<Path[]> files = this.pending.get(directory);
+		if (files == null)
+		{
+			files = new ArrayList<Path[]>();
+			this.pending.put(directory, files);
+		}
+		files.add(new Path[] { temp, target });
+
+		if (files.size() >= this.batchSize)
+		{
+			this.pending.remove(directory);
+			this.flush(directory, files);
+		}
+	}
+
+	/*
+	 * Sync the temporary files, rename them over their targets, and sync the
+	 * directory so that the renames are durable too.
+	 */
+	private void flush(Path directory, List<Path[]> files) throws IOException
+	{
+		try
+		{
+			for (Path[] file : files)
+				sync(file[0], StandardOpenOption.WRITE);
+
+			for (Path[] file : files)
+			{
+				Files.move(file[0], file[1], StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				this.log.debug("Wrote %s", file[1]);
+				if (this.listener != null)
+					this.listener.written(file[1]);
+			}
+		}
+		finally
+		{
+			for (Path[] file : files)
+				this.discard(file[0]);
+		}
+
+		try
+		{
+			sync(directory, StandardOpenOption.READ);
+		}
+		catch (IOException e)
+		{
+			// not every platform can open a directory to sync it
+			this.log.debug("Couldn't sync directory %s: %s", directory, e.getMessage());
+		}
+	}
+
+	/* */
+	private static void sync(Path path, StandardOpenOption option) throws IOException
+	{
+		FileChannel channel = FileChannel.open(path, option);
+		try
+		{
+			channel.force(true);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/*
+	 * A new empty file beside the target, so that it can be renamed over the
+	 * target, creating the target's directory if need be.  It takes the
+	 * target's permissions if the target exists.  The target's temporary
+	 * files that this writer isn't using were left by a crash, and are
+	 * removed on the way.
+	 */
+	private synchronized Path createTemp(Path target) throws IOException
+	{
+		Files.createDirectories(target.getParent());
+		Path temp = null;
+		for (int i = 0; ; i++)
+		{
+			Path sibling = target.resolveSibling("." + target.getFileName() + "." + i + ".tmp");
+			if (this.temps.contains(sibling))
+				continue;
+			if (temp != null)
+			{
+				// the numbers are taken lowest first, so the stale files end at the first gap
+				if (!Files.deleteIfExists(sibling))
+					break;
+				this.log.debug("Removed stale %s", sibling);
+				continue;
+			}
+
+			if (Files.deleteIfExists(sibling))
+				this.log.debug("Removed stale %s", sibling);
+			try
+			{
+				Files.createFile(sibling);
+			}
+			catch (FileAlreadyExistsException e)
+			{
+				continue;
+			}
+			temp = sibling;
+			this.temps.add(temp);
+		}
+
+		try
+		{
+			if (Files.exists(target))
+				Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// the platform's own defaults apply
+		}
+		return temp;
+	}
+
+	/* Remove a temporary file, if it hasn't been renamed over its target */
+	private synchronized void discard(Path temp) throws IOException
+	{
+		this.temps.remove(temp);
+		Files.deleteIfExists(temp);
+	}
+
+	/** Told of the files written, such as to tell them apart from files changed by others */
+	public interface Listener
+	{
+		/**
+		 * @param file The file, which has just been renamed into place
+		 */
+		void written(Path file);
+	}
+}
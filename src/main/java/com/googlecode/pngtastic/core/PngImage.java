@@ -8,6 +8,7 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -17,6 +18,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Represents a png image
@@ -75,15 +81,42 @@ public class PngImage
 		this.log = log;
 	}
 
+	/** chunks at least this long have their crcs checked in parallel, once the whole file is read */
+	private static final int PARALLEL_CRC_LENGTH = 256 * 1024;
+
 	/** */
 	public PngImage(String fileName) throws FileNotFoundException
 	{
-		this(new BufferedInputStream(new FileInputStream(fileName)));
+		this(fileName, true);
+	}
+
+	/**
+	 * @param fileName The png file
+	 * @param verifyCrcs false to trust the crcs in the file, such as when
+	 * the file's checksum has already been checked
+	 */
+	public PngImage(String fileName, boolean verifyCrcs) throws FileNotFoundException
+	{
+		this(new BufferedInputStream(new FileInputStream(fileName)), verifyCrcs);
 		this.fileName = fileName;
 	}
 
 	/** */
 	public PngImage(InputStream ins)
+	{
+		this(ins, true);
+	}
+
+	/**
+	 * Read a png image.  The crcs in it are kept, so they are never
+	 * computed again when it is written unchanged.  The crcs of large
+	 * chunks are checked on all cores once the whole image is read.
+	 *
+	 * @param ins The png file
+	 * @param verifyCrcs false to trust the crcs in the file, such as when
+	 * the file's checksum has already been checked
+	 */
+	public PngImage(InputStream ins, boolean verifyCrcs)
 	{
 		this();
 
@@ -94,6 +127,8 @@ public class PngImage
 
 			int length = 0;
 			PngChunk chunk = null;
+			List<PngChunk> largeChunks = new ArrayList<PngChunk>();
+			List<Long> largeChunkCrcs = new ArrayList<Long>();
 
 			do
 			{
@@ -103,14 +138,27 @@ public class PngImage
 				byte[] data = this.getChunkData(dis, length);
 				long crc = this.getChunkCrc(dis);
 
-				chunk = new PngChunk(type, data);
+				chunk = new PngChunk(type, data, crc);
 
-				if (!chunk.verifyCRC(crc))
+				if (verifyCrcs && length >= PARALLEL_CRC_LENGTH)
+				{
+					largeChunks.add(chunk);
+					largeChunkCrcs.add(crc);
+				}
+				else if (verifyCrcs && !chunk.verifyCRC(crc))
+				{
 					throw new PngException("Corrupted file, crc check failed");
+				}
 
 				this.addChunk(chunk);
 			}
 			while (length > 0 && !PngChunk.IMAGE_TRAILER.equals(chunk.getTypeString()));
+
+			if (!verifyCRCs(largeChunks, largeChunkCrcs))
+			{
+				this.chunks.clear();
+				throw new PngException("Corrupted file, crc check failed");
+			}
 		}
 		catch (IOException e)
 		{
@@ -151,6 +199,21 @@ public class PngImage
 
 	/** */
 	DataOutputStream writeDataOutputStream(OutputStream output) throws IOException
+	{
+		DataOutputStream outs = new DataOutputStream(output);
+		this.write(outs);
+		outs.close();
+
+		return outs;
+	}
+
+	/**
+	 * Write the image as a png file, flushing each chunk as it is written,
+	 * and leave the stream open for whatever follows.
+	 *
+	 * @param output The stream to write to
+	 */
+	public void write(OutputStream output) throws IOException
 	{
 		DataOutputStream outs = new DataOutputStream(output);
 		outs.writeLong(PngImage.SIGNATURE);
@@ -163,10 +226,24 @@ public class PngImage
 			outs.write(chunk.getData());
 			int i = (int)chunk.getCRC();
 			outs.writeInt(i);
+			outs.flush();
 		}
-		outs.close();
+	}
 
-		return outs;
+	/** The length in bytes of the image as a png file */
+	public long getFileLength()
+	{
+		long length = 8;
+		for (PngChunk chunk : this.getChunks())
+			length += 12 + chunk.getLength();
+
+		return length;
+	}
+
+	/** Whether the image was read through to its end chunk */
+	public boolean isComplete()
+	{
+		return !this.chunks.isEmpty() && PngChunk.IMAGE_TRAILER.equals(this.chunks.get(this.chunks.size() - 1).getTypeString());
 	}
 
 	/** */
@@ -212,6 +289,50 @@ public class PngImage
 		return this.imageType.channelCount() * this.bitDepth;
 	}
 
+	/* Check the crcs of chunks, on as many threads as there are chunks and cores */
+	private static boolean verifyCRCs(final List<PngChunk> chunks, final List<Long> crcs)
+	{
+		if (chunks.size() < 2)
+			return chunks.isEmpty() || chunks.get(0).verifyCRC(crcs.get(0));
+
+		List<Callable<Boolean>> checks = new ArrayList<Callable<Boolean>>();
+		for (int i = 0; i < chunks.size(); i++)
+		{
+			final int chunk = i;
+			checks.add(new Callable<Boolean>()
+			{
+				public Boolean call()
+				{
+					return chunks.get(chunk).verifyCRC(crcs.get(chunk));
+				}
+			});
+		}
+
+		final ExecutorService crcThreadPool = Executors.newFixedThreadPool(Math.min(chunks.size(), Runtime.getRuntime().availableProcessors()));
+		try
+		{
+			for (Future<Boolean> future : crcThreadPool.invokeAll(checks))
+			{
+				if (!future.get())
+					return false;
+			}
+			return true;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch (ExecutionException e)
+		{
+			return false;
+		}
+		finally
+		{
+			crcThreadPool.shutdown();
+		}
+	}
+
 	/* */
 	private int getChunkLength(DataInputStream ins) throws IOException
 	{
@@ -219,20 +340,22 @@ public class PngImage
 	}
 
 	/* */
-	private byte[] getChunkType(InputStream ins) throws PngException
+	private byte[] getChunkType(DataInputStream ins) throws PngException
 	{
 		return this.getChunkData(ins, 4);
 	}
 
-	/* */
-	private byte[] getChunkData(InputStream ins, int length) throws PngException
+	/* A stream such as a pipe may return less than asked for by each read, so read until the chunk is whole */
+	private byte[] getChunkData(DataInputStream ins, int length) throws PngException
 	{
 		byte[] data = new byte[length];
 		try
 		{
-			int actual = ins.read(data);
-			if (actual < length)
-				throw new PngException(String.format("Expected %d bytes but got %d", length, actual));
+			ins.readFully(data);
+		}
+		catch (EOFException e)
+		{
+			throw new PngException(String.format("Expected %d bytes but the data ended", length));
 		}
 		catch(IOException e)
 		{
@@ -60,6 +60,12 @@ public enum PngImageType
 		}
 	}
 
+	/** The color type of this image type in a png header */
+	public int getColorType()
+	{
+		return this.colorType;
+	}
+
 	/**
 	 * The number of channels for this color type.
 	 * For example truecolor is RGB and therefore has 3 channels.
@@ -0,0 +1,218 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the files a batch has finished, so that a run that is stopped
+ * part way can carry on where it stopped rather than starting over.  Each
+ * line of the journal holds an input file name, its output file name, and
+ * their sizes, separated by tabs.
+ * <p>
+ * Entries are appended a batch at a time.  Before a batch is appended the
+ * output files are flushed, so that an entry is never in the journal
+ * before its output file is safely written.  A crash loses at most the
+ * batch not yet appended, whose files are optimized again when the run is
+ * resumed.  A line cut short by a crash is ignored.
+ */
+public class PngJournal implements Closeable
+{
+	/** */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** */
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	/** */
+	private final FileChannel out;
+
+	/** the number of entries appended at once */
+	private final int batchSize;
+
+	/** every finished input file, by name, with its stats */
+	private final Map<String, PngOptimizer.Stats> done = new ConcurrentHashMap<String, PngOptimizer.Stats>();
+
+	/** the entries waiting for their batch to be appended */
+	private List<String> pending = new ArrayList<String>();
+
+	/**
+	 * Open a journal.
+	 *
+	 * @param file The journal file
+	 * @param resume true to carry on from the entries already in the file, false to start it over
+	 * @param batchSize The number of entries appended at once
+	 * @throws IOException if the journal couldn't be read or opened
+	 */
+	public PngJournal(File file, boolean resume, int batchSize) throws IOException
+	{
+		if (batchSize < 1)
+			throw new IllegalArgumentException("The batch size must be at least 1");
+
+		this.batchSize = batchSize;
+		long length = (resume && file.exists()) ? read(file, this.done) : 0;
+
+		this.out = new FileOutputStream(file, resume).getChannel();
+		this.out.truncate(length);
+	}
+
+	/**
+	 * Whether an input file was finished by this run or one before it.
+	 *
+	 * @param inputFileName The input file name
+	 * @return true if the file is in the journal
+	 */
+	public boolean contains(String inputFileName)
+	{
+		return this.done.containsKey(inputFileName);
+	}
+
+	/**
+	 * @return The stats of every file in the journal
+	 */
+	public Collection<PngOptimizer.Stats> getStats()
+	{
+		return this.done.values();
+	}
+
+	/**
+	 * Add a finished file, which is appended with the rest of its batch.
+	 *
+	 * @return true once the batch is full, when it should be flushed
+	 */
+	public synchronized boolean add(String inputFileName, String outputFileName, PngOptimizer.Stats stats)
+	{
+		this.done.put(inputFileName, stats);
+		this.pending.add(escape(inputFileName) + "\t" + escape(outputFileName) + "\t"
+				+ stats.getOriginalFileSize() + "\t" + stats.getOptimizedFileSize() + "\n");
+
+		return this.pending.size() >= this.batchSize;
+	}
+
+	/**
+	 * Flush the output files, then append and sync the entries added so far.
+	 *
+	 * @param outputs What writes the output files of the entries
+	 * @throws IOException if the outputs couldn't be flushed or the journal written
+	 */
+	public void flush(Flushable outputs) throws IOException
+	{
+		List<String> entries;
+		synchronized (this)
+		{
+			entries = this.pending;
+			this.pending = new ArrayList<String>();
+		}
+
+		// the entries were added after their files were written, so flushing now covers every one of them
+		outputs.flush();
+		if (entries.isEmpty())
+			return;
+
+		StringBuilder lines = new StringBuilder();
+		for (String entry : entries)
+			lines.append(entry);
+
+		synchronized (this.out)
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(UTF8));
+			while (buffer.hasRemaining())
+				this.out.write(buffer);
+			this.out.force(false);
+		}
+	}
+
+	/** */
+	public void close() throws IOException
+	{
+		this.out.close();
+	}
+
+	/**
+	 * Read the stats in a journal without opening it for writing, such as
+	 * while another process is writing it.
+	 *
+	 * @param file The journal file
+	 * @return The stats of every file in the journal
+	 * @throws IOException if the journal couldn't be read
+	 */
+	public static Collection<PngOptimizer.Stats> readStats(File file) throws IOException
+	{
+		Map<String, PngOptimizer.Stats> done = new HashMap<String, PngOptimizer.Stats>();
+		read(file, done);
+		return done.values();
+	}
+
+	/*
+	 * Read the entries in a journal, and return the length of its complete
+	 * lines, which leaves out any line cut short.
+	 */
+	private static long read(File file, Map<String, PngOptimizer.Stats> done) throws IOException
+	{
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		int length = 0;
+		for (int i = bytes.length - 1; i >= 0 && length == 0; i--)
+		{
+			if (bytes[i] == '\n')
+				length = i + 1;
+		}
+
+		for (String line : new String(bytes, 0, length, UTF8).split("\n"))
+		{
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 4)
+				continue;
+			try
+			{
+				done.put(unescape(fields[0]), new PngOptimizer.Stats(Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+			}
+			catch (NumberFormatException e)
+			{
+				continue;
+			}
+		}
+		return length;
+	}
+
+	/* A file name with no tabs or line breaks in it */
+	static String escape(String fileName)
+	{
+		return fileName.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	/* */
+	static String unescape(String field)
+	{
+		StringBuilder fileName = new StringBuilder(field.length());
+		for (int i = 0; i < field.length(); i++)
+		{
+			char c = field.charAt(i);
+			if (c == '\\' && i + 1 < field.length())
+			{
+				char escaped = field.charAt(++i);
+				fileName.append((escaped == 't') ? '\t' : (escaped == 'n') ? '\n' : escaped);
+			}
+			else
+			{
+				fileName.append(c);
+			}
+		}
+		return fileName.toString();
+	}
+}
@@ -9,25 +9,38 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.googlecode.pngtastic.core.processing.PngCompressionHandler;
 import com.googlecode.pngtastic.core.processing.PngFilterHandler;
+import com.googlecode.pngtastic.core.processing.PngFilterHeuristic;
 import com.googlecode.pngtastic.core.processing.PngInterlaceHandler;
 import com.googlecode.pngtastic.core.processing.PngtasticCompressionHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticDeflaterCompressionHandler;
 import com.googlecode.pngtastic.core.processing.PngtasticFilterHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticFilterHeuristic;
+import com.googlecode.pngtastic.core.processing.PngtasticFilterSearch;
 import com.googlecode.pngtastic.core.processing.PngtasticInterlaceHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticMaxCompressionHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticMaxDeflater;
+import com.googlecode.pngtastic.core.processing.PngtasticParallelCompressionHandler;
 
 /**
  * Optimizes PNG images for smallest possible filesize.
@@ -38,16 +51,172 @@ public class PngOptimizer
 {
 	/** */
 	private final Logger log;
+	Logger getLog() { return this.log; }
 
 	/** */
 	private PngFilterHandler pngFilterHandler;
 	private PngInterlaceHandler pngInterlaceHander;
 	private PngCompressionHandler pngCompressionHandler;
 
+	/** writes the optimized files, atomically replacing any old ones */
+	private final PngFileWriter fileWriter;
+
 	/** */
-	private final List<Stats> stats = new ArrayList<Stats>();
+	private final List<Stats> stats = Collections.synchronizedList(new ArrayList<Stats>());
 	public List<Stats> getStats() { return this.stats; }
 
+	/** the heuristics tried for adaptive filtering, each one a separate candidate */
+	private List<PngFilterHeuristic> filterHeuristics = Arrays.<PngFilterHeuristic>asList(PngtasticFilterHeuristic.MINIMUM_SUM);
+	public void setFilterHeuristics(List<PngFilterHeuristic> filterHeuristics) { this.filterHeuristics = filterHeuristics; }
+
+	/** also try choosing adaptive filters by measured deflate cost (much slower) */
+	private boolean deflateCostFiltering;
+	public void setDeflateCostFiltering(boolean deflateCostFiltering) { this.deflateCostFiltering = deflateCostFiltering; }
+
+	/** the budget for the evolutionary filter search, which is skipped when both are 0 */
+	private int filterSearchIterations;
+	private long filterSearchMillis;
+
+	/**
+	 * Also search for the best filter type of each row by evolving the
+	 * adaptive filter choices.  This can take minutes on large images, so
+	 * it is off by default.
+	 *
+	 * @param iterations The number of filter vectors to try, or 0 for no limit
+	 * @param millis The time to search each image for in milliseconds, or 0 for no limit
+	 */
+	public void setFilterSearchBudget(int iterations, long millis)
+	{
+		this.filterSearchIterations = iterations;
+		this.filterSearchMillis = millis;
+	}
+
+	/** check the crcs of the images read, unless they are known to be intact some other way */
+	private boolean verifyCrcs = true;
+	public boolean isVerifyCrcs() { return this.verifyCrcs; }
+	public void setVerifyCrcs(boolean verifyCrcs) { this.verifyCrcs = verifyCrcs; }
+
+	/** estimates how much smaller each image could get, for skipping those already optimized */
+	private final PngSizeEstimator sizeEstimator;
+
+	/** skip the images estimated to get smaller by less than this fraction, or 0 to optimize every image */
+	private double skipThreshold;
+
+	/**
+	 * Skip the images that are already optimized, or nearly so: those marked
+	 * as written by the optimizer, and those whose size, estimated from a
+	 * sample of their rows, is less than the threshold smaller than they
+	 * are.  Skipped images are copied as they are, and counted as skipped in
+	 * their stats.
+	 *
+	 * @param skipThreshold The least estimated saving, as a fraction of the file size, or 0 (the default) to skip nothing
+	 */
+	public void setSkipThreshold(double skipThreshold)
+	{
+		if (skipThreshold < 0 || skipThreshold >= 1)
+			throw new IllegalArgumentException("The skip threshold must be at least 0 and less than 1");
+
+		this.skipThreshold = skipThreshold;
+	}
+
+	/** add a chunk to each optimized image marking it as such, so that it is skipped at once when optimized again */
+	private boolean markOptimized;
+	public void setMarkOptimized(boolean markOptimized) { this.markOptimized = markOptimized; }
+
+	/** run the row work of non-interlaced images as a pipeline of concurrent stages */
+	private boolean pipelined;
+	public void setPipelined(boolean pipelined) { this.pipelined = pipelined; }
+
+	/** the stages of the pipeline for the last image optimized with it */
+	private List<PngPipeline.StageStats> pipelineStats = new ArrayList<PngPipeline.StageStats>();
+	public List<PngPipeline.StageStats> getPipelineStats() { return this.pipelineStats; }
+
+	/** the deflate encoders available to setCompressor */
+	public static final String ZLIB_COMPRESSOR = "zlib";
+	public static final String PNGTASTIC_COMPRESSOR = "pngtastic";
+	public static final String MAX_COMPRESSOR = "max";
+	public static final String PARALLEL_COMPRESSOR = "parallel";
+
+	/** */
+	private String compressor = ZLIB_COMPRESSOR;
+
+	/** the number of optimal parses the max compressor makes of each block */
+	private int compressionIterations = PngtasticMaxDeflater.DEFAULT_ITERATIONS;
+
+	/**
+	 * Choose the deflate encoder: java.util.zip, tried at every strategy
+	 * (the default), the pure Java encoder, which is usually both smaller
+	 * and faster at finding it, the max encoder, which spends many times
+	 * longer on the smallest output it can find, or java.util.zip deflating
+	 * blocks of each image on all cores, for the lowest latency on large
+	 * images.
+	 *
+	 * @param compressor ZLIB_COMPRESSOR, PNGTASTIC_COMPRESSOR, MAX_COMPRESSOR or PARALLEL_COMPRESSOR
+	 */
+	public void setCompressor(String compressor)
+	{
+		if (!ZLIB_COMPRESSOR.equals(compressor) && !PNGTASTIC_COMPRESSOR.equals(compressor) && !MAX_COMPRESSOR.equals(compressor)
+				&& !PARALLEL_COMPRESSOR.equals(compressor))
+			throw new IllegalArgumentException("Unknown compressor: " + compressor);
+
+		this.compressor = compressor;
+		this.pngCompressionHandler = this.createCompressionHandler();
+	}
+
+	/**
+	 * Set the iteration budget of the max compressor: the number of optimal
+	 * parses made of each block, each improving on the cost model of the
+	 * last.  Compression time grows about linearly with it.
+	 *
+	 * @param compressionIterations The number of iterations, at least 1
+	 */
+	public void setCompressionIterations(int compressionIterations)
+	{
+		if (compressionIterations < 1)
+			throw new IllegalArgumentException("At least one iteration is needed");
+
+		this.compressionIterations = compressionIterations;
+		this.pngCompressionHandler = this.createCompressionHandler();
+	}
+
+	/** whether to write images Adam7 interlaced, for progressive display */
+	public static final String INTERLACE_NONE = "none";
+	public static final String INTERLACE_ADAM7 = "adam7";
+	public static final String INTERLACE_AUTO = "auto";
+
+	/** */
+	private String interlacing = INTERLACE_NONE;
+
+	/**
+	 * Choose whether to interlace the optimized images: never (the default),
+	 * always, or only when the interlaced image compresses no worse than the
+	 * best non-interlaced one.  Interlaced candidates are filtered and
+	 * compressed on their own thread alongside the normal filter search.
+	 * Images with fewer than 8 bits per pixel are never interlaced.
+	 *
+	 * @param interlacing INTERLACE_NONE, INTERLACE_ADAM7 or INTERLACE_AUTO
+	 */
+	public void setInterlacing(String interlacing)
+	{
+		if (!INTERLACE_NONE.equals(interlacing) && !INTERLACE_ADAM7.equals(interlacing) && !INTERLACE_AUTO.equals(interlacing))
+			throw new IllegalArgumentException("Unknown interlacing: " + interlacing);
+
+		this.interlacing = interlacing;
+	}
+
+	/* */
+	private PngCompressionHandler createCompressionHandler()
+	{
+		if (PNGTASTIC_COMPRESSOR.equals(this.compressor))
+			return new PngtasticDeflaterCompressionHandler(this.log);
+		if (MAX_COMPRESSOR.equals(this.compressor))
+			return new PngtasticMaxCompressionHandler(this.log, this.compressionIterations);
+		if (PARALLEL_COMPRESSOR.equals(this.compressor))
+			return new PngtasticParallelCompressionHandler(this.log);
+
+		return new PngtasticCompressionHandler(this.log);
+	}
+
 	/** */
 	public PngOptimizer()
 	{
@@ -60,7 +229,72 @@ public class PngOptimizer
 		this.log = new Logger(logLevel);
 		this.pngFilterHandler = new PngtasticFilterHandler(this.log);
 		this.pngInterlaceHander = new PngtasticInterlaceHandler(this.log, this.pngFilterHandler);
-		this.pngCompressionHandler = new PngtasticCompressionHandler(this.log);
+		this.pngCompressionHandler = this.createCompressionHandler();
+		this.fileWriter = new PngFileWriter(this.log, 1);
+		this.sizeEstimator = new PngSizeEstimator(this.log, this.pngFilterHandler, this.pngInterlaceHander);
+	}
+
+	/**
+	 * Sync the optimized files a batch at a time in each directory, which
+	 * is much faster when optimizing many files.  Files replaced by a batch
+	 * not yet full keep their old contents until flush is called.
+	 *
+	 * @param syncBatchSize The number of files to sync at once, 1 (the default) to sync each file as it is written
+	 */
+	public void setSyncBatchSize(int syncBatchSize)
+	{
+		this.fileWriter.setBatchSize(syncBatchSize);
+	}
+
+	/** records the files finished, so that a run can be resumed */
+	private PngJournal journal;
+
+	/**
+	 * Record each file finished in a journal, and skip the files already
+	 * in it.  Their stats are added to those of this run.
+	 *
+	 * @param journal The journal, or null for none
+	 */
+	public void setJournal(PngJournal journal)
+	{
+		this.journal = journal;
+		if (journal != null)
+			this.stats.addAll(journal.getStats());
+	}
+
+	/**
+	 * Whether a file was finished by an earlier run, going by the journal.
+	 *
+	 * @param inputFileName The input file name
+	 * @return true if the file is in the journal
+	 */
+	public boolean isFinished(String inputFileName)
+	{
+		return this.journal != null && this.journal.contains(inputFileName);
+	}
+
+	/**
+	 * Be told of each optimized file once it is in place.
+	 *
+	 * @param listener The listener, or null for none
+	 */
+	public void setWriteListener(PngFileWriter.Listener listener)
+	{
+		this.fileWriter.setListener(listener);
+	}
+
+	/**
+	 * Write out the optimized files still waiting for their batch to be
+	 * synced, and then their entries in the journal.
+	 *
+	 * @throws IOException if a file couldn't be synced or renamed, or the journal written
+	 */
+	public void flush() throws IOException
+	{
+		if (this.journal != null)
+			this.journal.flush(this.fileWriter);
+		else
+			this.fileWriter.flush();
 	}
 
 	/** */
@@ -69,50 +303,239 @@ public class PngOptimizer
 		this.log.debug("=== OPTIMIZING ===");
 
 		long start = System.currentTimeMillis();
+		if (this.isAlreadyOptimized(image))
+		{
+			this.writeOptimized(image.getFileName(), null, outputFileName, start);
+			return;
+		}
 		PngImage optimized = this.optimize(image, compressionLevel);
 
-		ByteArrayOutputStream optimizedBytes = new ByteArrayOutputStream();
-		DataOutputStream output = optimized.writeDataOutputStream(optimizedBytes);
+		this.writeOptimized(image.getFileName(), this.getBytes(optimized), outputFileName, start);
+	}
 
-		File originalFile = new File(image.getFileName());
-		long originalFileSize = originalFile.length();
+	/**
+	 * Whether an image is to be skipped as already optimized, going by the
+	 * skip threshold.
+	 *
+	 * @param image The image, read in full
+	 * @return true if the image is marked as optimized, or is estimated to get smaller by less than the threshold
+	 * @throws IOException if the image data couldn't be inflated
+	 */
+	public boolean isAlreadyOptimized(PngImage image) throws IOException
+	{
+		if (this.skipThreshold <= 0)
+			return false;
 
-		File exported = null;
-		if (output.size() < originalFileSize)
+		if (isMarkedOptimized(image))
 		{
-			exported = optimized.export(outputFileName, optimizedBytes.toByteArray());
+			this.log.debug("%s is marked as optimized", image.getFileName());
+			return true;
 		}
-		else
+
+		PngSizeEstimator.Estimate estimate = this.sizeEstimator.estimate(image, this.markOptimized ? 16 : 0);
+		return estimate == null || estimate.getGain() < this.skipThreshold;
+	}
+
+	/**
+	 * Whether a file is to be skipped as marked optimized, going by its
+	 * index alone, so that none of its image data need be read.  The mark
+	 * is checked against the crc stored with the image data.
+	 *
+	 * @param index The file's chunks
+	 * @return true if skipping is on and the file is marked as optimized
+	 * @throws IOException if the mark couldn't be read
+	 * @throws PngException if the mark's crc check fails
+	 */
+	public boolean isMarkedOptimized(PngChunkIndex index) throws IOException, PngException
+	{
+		if (this.skipThreshold <= 0)
+			return false;
+
+		// the optimizer writes a single image data chunk
+		List<PngChunkIndex.Entry> imageData = index.getEntries(PngChunk.IMAGE_DATA);
+		List<PngChunkIndex.Entry> marks = index.getEntries(PngChunk.OPTIMIZED);
+		if (imageData.size() != 1 || marks.size() != 1 || marks.get(0).getLength() != 4)
+			return false;
+
+		if (index.readChunk(marks.get(0)).getUnsignedInt(0) != index.readCRC(imageData.get(0)))
+			return false;
+
+		this.log.debug("%s is marked as optimized", index.getFileName());
+		return true;
+	}
+
+	/*
+	 * Whether an image holds the chunk that marks an optimized image, and
+	 * its image data is still that which the mark was made for.
+	 */
+	private static boolean isMarkedOptimized(PngImage image)
+	{
+		PngChunk imageData = null;
+		PngChunk mark = null;
+		for (PngChunk chunk : image.getChunks())
 		{
-			ByteBuffer buffer = ByteBuffer.allocate((int)originalFileSize);
-			FileInputStream ins = null;
-			try
+			if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString()))
 			{
-				ins = new FileInputStream(originalFile);
-				ins.getChannel().read(buffer);
+				// the optimizer writes a single image data chunk
+				if (imageData != null)
+					return false;
+
+				imageData = chunk;
 			}
-			finally
+			else if (PngChunk.OPTIMIZED.equals(chunk.getTypeString()))
 			{
-				if (ins != null)
-					ins.close();
+				mark = chunk;
 			}
-			exported = new File(outputFileName);
-			optimized.writeFileOutputStream(exported, buffer.array());
 		}
-		long optimizedFileSize = exported.length();
+		return imageData != null && mark != null && mark.getLength() == 4 && mark.getUnsignedInt(0) == imageData.getCRC();
+	}
+
+	/**
+	 * Optimize a png file held in memory, such as one received over the
+	 * network.
+	 *
+	 * @param pngBytes The png file
+	 * @param compressionLevel The compression level, or null to try them all
+	 * @return The optimized png file, or the original if optimizing didn't make it smaller
+	 * @throws IOException if the bytes aren't a png image that can be optimized
+	 */
+	public byte[] optimize(byte[] pngBytes, Integer compressionLevel) throws IOException
+	{
+		PngImage image = new PngImage(new ByteArrayInputStream(pngBytes), this.verifyCrcs);
+		if (image.getChunks().isEmpty() || !PngChunk.IMAGE_HEADER.equals(image.getChunks().get(0).getTypeString()))
+			throw new IOException("Not a png image");
+
+		byte[] optimizedBytes;
+		try
+		{
+			if (this.isAlreadyOptimized(image))
+				return pngBytes;
+
+			optimizedBytes = this.getBytes(this.optimize(image, compressionLevel));
+		}
+		catch (RuntimeException e)
+		{
+			throw new IOException("Couldn't optimize image: " + e);
+		}
+
+		return (optimizedBytes.length < pngBytes.length) ? optimizedBytes : pngBytes;
+	}
+
+	/*
+	 * Build an image from its rows, each starting with a filter type byte of
+	 * 0, searching for the filtering and compression that make it smallest
+	 * just as optimize does, but without a png to inflate first.  The chunks
+	 * are those that go between the header and the image data, such as the
+	 * palette and transparency.
+	 */
+	PngImage encode(PngChunk header, List<PngChunk> chunks, List<byte[]> scanlines, Integer compressionLevel) throws IOException
+	{
+		PngImage result = new PngImage(this.log);
+		header.setInterlace((byte)0);
+		result.addChunk(header);
+		for (PngChunk chunk : chunks)
+			result.addChunk(chunk);
+
+		int sampleBitCount = result.getSampleBitCount();
+		boolean onlyInterlaced = INTERLACE_ADAM7.equals(this.interlacing) && sampleBitCount >= 8;
+		Map<String, byte[]> candidates = new LinkedHashMap<String, byte[]>();
+		Map<PngFilterType, List<byte[]>> filteredScanlines = onlyInterlaced ? null : this.applyEachFilter(scanlines, sampleBitCount, candidates);
+		this.addBestImageData(result, header, (int) header.getWidth(), (int) header.getHeight(), sampleBitCount,
+				scanlines, filteredScanlines, candidates, new LinkedHashMap<String, byte[]>(), compressionLevel);
+
+		result.addChunk(new PngChunk(PngChunk.IMAGE_TRAILER.getBytes(), new byte[0]));
+		return result;
+	}
+
+	/*
+	 * The size of the image data of an image once inflated, going by its
+	 * header.  Interlaced images have a filter byte and up to a byte of
+	 * padding more for each row of each pass.
+	 */
+	static long getInflatedSize(PngChunk header)
+	{
+		long sampleBitCount = PngImageType.forColorType(header.getColorType()).channelCount() * header.getBitDepth();
+		return getInflatedSize(header.getWidth(), header.getHeight(), sampleBitCount, header.getInterlace() == 1);
+	}
+
+	/* */
+	private static long getInflatedSize(long width, long height, long sampleBitCount, boolean interlaced)
+	{
+		long inflatedSize = height * ((width * sampleBitCount + 7) / 8 + 1);
+
+		return interlaced ? inflatedSize + 2 * (2 * height + 7) : inflatedSize;
+	}
+
+	/*
+	 * An estimate of the most heap that optimizing an image takes, going by
+	 * its header: the file's chunks, the inflated data, the scanlines and a
+	 * filtered copy of them for each filter type, and each candidate both
+	 * before and after compression.  Trying interlaced candidates as well
+	 * doubles it.
+	 */
+	long estimateFootprint(PngChunk header, long fileSize)
+	{
+		boolean filterSearch = this.filterSearchIterations > 0 || this.filterSearchMillis > 0;
+		int candidates = PngFilterType.standardValues().length + this.filterHeuristics.size()
+				+ (this.deflateCostFiltering ? 1 : 0) + (filterSearch ? 1 : 0);
+		long copies = 2 + PngFilterType.standardValues().length + 2 * candidates;
+		if (!INTERLACE_NONE.equals(this.interlacing))
+			copies *= 2;
+
+		// each scanline is an array of its own, with its own object header
+		long rowOverhead = 16 * header.getHeight();
+
+		return 2 * fileSize + copies * (getInflatedSize(header) + rowOverhead);
+	}
+
+	/* The bytes of an image as a png file */
+	byte[] getBytes(PngImage image) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		image.writeDataOutputStream(bytes);
+
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Write the optimized image, or the original if the optimized one isn't
+	 * smaller or the image was skipped, which is when optimizedBytes is null,
+	 * and record the savings.
+	 */
+	void writeOptimized(String inputFileName, byte[] optimizedBytes, String outputFileName, long start) throws IOException
+	{
+		File originalFile = new File(inputFileName);
+		long originalFileSize = originalFile.length();
+
+		long optimizedFileSize;
+		if (optimizedBytes != null && optimizedBytes.length < originalFileSize)
+		{
+			this.fileWriter.write(new File(outputFileName), optimizedBytes);
+			optimizedFileSize = optimizedBytes.length;
+		}
+		else
+		{
+			this.fileWriter.copy(originalFile, new File(outputFileName));
+			optimizedFileSize = originalFileSize;
+		}
 
 		long time = System.currentTimeMillis() - start;
 
 		this.log.debug("Optimized in %d milliseconds", time);
-		this.log.debug("Original length in bytes: %d (%s)", originalFileSize, image.getFileName());
+		this.log.debug("Original length in bytes: %d (%s)", originalFileSize, inputFileName);
 		this.log.debug("Final length in bytes: %d (%s)", optimizedFileSize, outputFileName);
 
-		if (optimizedFileSize <= originalFileSize)
+		if (optimizedBytes == null)
+			this.log.info("skipped :%6dB, already optimized - %s", originalFileSize, outputFileName);
+		else if (optimizedFileSize <= originalFileSize)
 			this.log.info("%5.2f%% :%6dB ->%6dB (%5dB saved) - %s", (originalFileSize - optimizedFileSize) / Float.valueOf(originalFileSize) * 100, originalFileSize, optimizedFileSize, originalFileSize - optimizedFileSize, outputFileName);
 		else
 			this.log.info("%5.2f%% :%6dB ->%6dB (%5dB saved) - %s", -(optimizedFileSize - originalFileSize) / Float.valueOf(originalFileSize) * 100, originalFileSize, optimizedFileSize, -(optimizedFileSize - originalFileSize), outputFileName);
 
-		this.stats.add(new Stats(originalFileSize, optimizedFileSize));
+		Stats stats = new Stats(originalFileSize, optimizedFileSize, optimizedBytes == null);
+		this.stats.add(stats);
+		if (this.journal != null && this.journal.add(inputFileName, outputFileName, stats))
+			this.flush();
 	}
 
 	/** */
@@ -125,6 +548,9 @@ public class PngOptimizer
 		PngImage result = new PngImage(this.log);
 		result.setInterlace((short)0);
 
+		boolean onlyInterlaced = INTERLACE_ADAM7.equals(this.interlacing) && image.getSampleBitCount() >= 8;
+		PngChunk headerChunk = null;
+
 		Iterator<PngChunk> itChunks = image.getChunks().iterator();
 		PngChunk chunk = null;
 		while (itChunks.hasNext())
@@ -145,6 +571,7 @@ public class PngOptimizer
 				if (PngChunk.IMAGE_HEADER.equals(chunk.getTypeString()))
 				{
 					newChunk.setInterlace((byte)0);
+					headerChunk = newChunk;
 				}
 				result.addChunk(newChunk);
 			}
@@ -167,56 +594,48 @@ public class PngOptimizer
 		}
 		imageData.close();
 
-		byte[] inflatedImageData = this.pngCompressionHandler.inflate(imageBytes);
 		int scanlineLength = Double.valueOf(Math.ceil(Long.valueOf(image.getWidth() * image.getSampleBitCount()) / 8F)).intValue() + 1;
 
-		List<byte[]> originalScanlines = (image.getInterlace() == 1)
-				? this.pngInterlaceHander.deInterlace((int)image.getWidth(), (int)image.getHeight(), image.getSampleBitCount(), inflatedImageData)
-				: this.getScanlines(inflatedImageData, image.getSampleBitCount(), scanlineLength, image.getHeight());
-
-		// TODO: use this for bit depth reduction
-//		this.getColors(image, originalScanlines);
-
-		// apply each type of filtering
-		Map<PngFilterType, List<byte[]>> filteredScanlines = new HashMap<PngFilterType, List<byte[]>>();
-		for (PngFilterType filterType : PngFilterType.standardValues())
+		List<byte[]> originalScanlines;
+		Map<PngFilterType, List<byte[]>> filteredScanlines;
+		Map<String, byte[]> candidates = new LinkedHashMap<String, byte[]>();
+		Map<String, byte[]> deflatedCandidates = new LinkedHashMap<String, byte[]>();
+		if (this.pipelined && image.getInterlace() != 1 && !onlyInterlaced)
 		{
-			this.log.debug("Applying filter: %s", filterType);
-			List<byte[]> scanlines = this.copyScanlines(originalScanlines);
-			this.pngFilterHandler.applyFiltering(filterType, scanlines, image.getSampleBitCount());
-
-			filteredScanlines.put(filterType, scanlines);
-		}
-
-		// pick the filter that compresses best
-		PngFilterType bestFilterType = null;
-		byte[] deflatedImageData = null;
-		for (Entry<PngFilterType, List<byte[]>> entry : filteredScanlines.entrySet())
-		{
-			byte[] imageResult = this.pngCompressionHandler.deflate(this.serialize(entry.getValue()), compressionLevel);
-			if (deflatedImageData == null || imageResult.length < deflatedImageData.length)
+			// the zlib handler's work at a fixed level can be done as the rows arrive
+			Integer streamingLevel = ZLIB_COMPRESSOR.equals(this.compressor) ? compressionLevel : null;
+			PngPipeline pipeline = new PngPipeline(this.log, this.pngFilterHandler, image.getSampleBitCount(), scanlineLength, image.getHeight(), streamingLevel);
+			pipeline.run(imageBytes);
+			this.pipelineStats = pipeline.getStats();
+
+			originalScanlines = pipeline.getScanlines();
+			filteredScanlines = pipeline.getFilteredScanlines();
+			for (Entry<PngFilterType, List<byte[]>> entry : filteredScanlines.entrySet())
 			{
-				deflatedImageData = imageResult;
-				bestFilterType = entry.getKey();
+				if (pipeline.getDeflated().containsKey(entry.getKey()))
+					deflatedCandidates.put(entry.getKey().toString(), pipeline.getDeflated().get(entry.getKey()));
+				else
+					candidates.put(entry.getKey().toString(), this.serialize(entry.getValue()));
 			}
 		}
+		else
+		{
+			byte[] inflatedImageData = this.pngCompressionHandler.inflate(imageBytes,
+					getInflatedSize(image.getWidth(), image.getHeight(), image.getSampleBitCount(), image.getInterlace() == 1));
 
-		// see if adaptive filtering results in even better compression
-		List<byte[]> scanlines = this.copyScanlines(originalScanlines);
-		this.pngFilterHandler.applyAdaptiveFiltering(inflatedImageData, scanlines, filteredScanlines, image.getSampleBitCount());
+			originalScanlines = (image.getInterlace() == 1)
+					? this.pngInterlaceHander.deInterlace((int)image.getWidth(), (int)image.getHeight(), image.getSampleBitCount(), inflatedImageData)
+					: this.getScanlines(inflatedImageData, image.getSampleBitCount(), scanlineLength, image.getHeight());
 
-		byte[] adaptiveImageData = this.pngCompressionHandler.deflate(inflatedImageData, compressionLevel);
-		if (deflatedImageData == null || adaptiveImageData.length < deflatedImageData.length)
-		{
-			deflatedImageData = adaptiveImageData;
-			bestFilterType = PngFilterType.ADAPTIVE;
-			this.log.debug("Adaptive=%d, Other=%d", adaptiveImageData.length, deflatedImageData.length);
+			// TODO: use this for bit depth reduction
+//			this.getColors(image, originalScanlines);
+
+			// only the interlaced candidates are wanted, and they are filtered pass by pass
+			filteredScanlines = onlyInterlaced ? null : this.applyEachFilter(originalScanlines, image.getSampleBitCount(), candidates);
 		}
 
-		this.log.debug("Best filter type: %s", bestFilterType);
-
-		PngChunk imageChunk = new PngChunk(PngChunk.IMAGE_DATA.getBytes(), deflatedImageData);
-		result.addChunk(imageChunk);
+		this.addBestImageData(result, headerChunk, (int) image.getWidth(), (int) image.getHeight(), image.getSampleBitCount(),
+				originalScanlines, filteredScanlines, candidates, deflatedCandidates, compressionLevel);
 
 		// finish it
 		while (chunk != null)
@@ -238,6 +657,138 @@ public class PngOptimizer
 		return result;
 	}
 
+	/*
+	 * Search for the filtering and compression that make an image's data
+	 * smallest, starting from its rows as they are, the rows filtered with
+	 * each filter type, and any candidates already built or deflated, and
+	 * add the best image data to the result.  If an interlaced candidate
+	 * wins, the header and the result are marked interlaced.
+	 */
+	private void addBestImageData(PngImage result, PngChunk headerChunk, final int width, final int height, final int sampleBitCount,
+			List<byte[]> originalScanlines, Map<PngFilterType, List<byte[]>> filteredScanlines,
+			Map<String, byte[]> candidates, Map<String, byte[]> deflatedCandidates, Integer compressionLevel) throws IOException
+	{
+		boolean tryInterlaced = !INTERLACE_NONE.equals(this.interlacing) && sampleBitCount >= 8;
+		boolean onlyInterlaced = tryInterlaced && INTERLACE_ADAM7.equals(this.interlacing);
+
+		// the interlaced candidates are built and compressed while the rest are
+		Future<Map<String, byte[]>> interlacedCandidates = null;
+		if (tryInterlaced)
+		{
+			final List<byte[]> scanlines = originalScanlines;
+			final Integer level = compressionLevel;
+
+			ExecutorService interlaceThreadPool = Executors.newSingleThreadExecutor();
+			interlacedCandidates = interlaceThreadPool.submit(new Callable<Map<String, byte[]>>()
+			{
+				public Map<String, byte[]> call() throws IOException
+				{
+					return PngOptimizer.this.deflateInterlaced(scanlines, width, height, sampleBitCount, level);
+				}
+			});
+			interlaceThreadPool.shutdown();
+		}
+
+		if (!onlyInterlaced)
+		{
+			// and one for each adaptive filter heuristic
+			Map<PngFilterHeuristic, PngFilterType[]> adaptiveFilterTypes = this.pngFilterHandler.chooseAdaptiveFilters(filteredScanlines, this.filterHeuristics);
+			for (Entry<PngFilterHeuristic, PngFilterType[]> entry : adaptiveFilterTypes.entrySet())
+				candidates.put(PngFilterType.ADAPTIVE + " " + entry.getKey(), this.serialize(filteredScanlines, entry.getValue()));
+
+			List<PngFilterType[]> seeds = new ArrayList<PngFilterType[]>(adaptiveFilterTypes.values());
+			if (this.deflateCostFiltering)
+			{
+				List<byte[]> scanlines = this.copyScanlines(originalScanlines);
+				this.pngFilterHandler.applyDeflateCostFiltering(scanlines, filteredScanlines, sampleBitCount, compressionLevel);
+				candidates.put(PngFilterType.ADAPTIVE + " DEFLATE_COST", this.serialize(scanlines));
+				seeds.add(this.getFilterTypes(scanlines));
+			}
+
+			if (this.filterSearchIterations > 0 || this.filterSearchMillis > 0)
+			{
+				for (PngFilterType filterType : PngFilterType.standardValues())
+					seeds.add(this.getFilterTypes(filteredScanlines.get(filterType)));
+
+				PngtasticFilterSearch search = new PngtasticFilterSearch(this.log, this.filterSearchIterations, this.filterSearchMillis);
+				candidates.put("SEARCH", this.serialize(filteredScanlines, search.search(filteredScanlines, seeds, compressionLevel)));
+			}
+
+			deflatedCandidates.putAll(this.deflateConcurrently(candidates, compressionLevel));
+		}
+
+		// pick the candidate that compresses best
+		String bestFilterType = null;
+		byte[] deflatedImageData = null;
+		for (Entry<String, byte[]> entry : deflatedCandidates.entrySet())
+		{
+			this.log.debug("Filter type %s: %d bytes", entry.getKey(), entry.getValue().length);
+			if (deflatedImageData == null || entry.getValue().length < deflatedImageData.length)
+			{
+				deflatedImageData = entry.getValue();
+				bestFilterType = entry.getKey();
+			}
+		}
+
+		// interlacing wins ties, since it costs nothing then
+		if (interlacedCandidates != null)
+		{
+			String bestInterlacedFilterType = null;
+			byte[] interlacedImageData = null;
+			for (Entry<String, byte[]> entry : this.getCandidates(interlacedCandidates).entrySet())
+			{
+				this.log.debug("Filter type %s: %d bytes", entry.getKey(), entry.getValue().length);
+				if (interlacedImageData == null || entry.getValue().length < interlacedImageData.length)
+				{
+					interlacedImageData = entry.getValue();
+					bestInterlacedFilterType = entry.getKey();
+				}
+			}
+
+			if (deflatedImageData == null || interlacedImageData.length <= deflatedImageData.length)
+			{
+				deflatedImageData = interlacedImageData;
+				bestFilterType = bestInterlacedFilterType;
+				headerChunk.setInterlace((byte)1);
+				result.setInterlace((short)1);
+			}
+		}
+
+		this.log.debug("Best filter type: %s", bestFilterType);
+
+		PngChunk imageChunk = new PngChunk(PngChunk.IMAGE_DATA.getBytes(), deflatedImageData);
+		result.addChunk(imageChunk);
+
+		if (this.markOptimized)
+		{
+			long crc = imageChunk.getCRC();
+			result.addChunk(new PngChunk(PngChunk.OPTIMIZED.getBytes(), new byte[] { (byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc }));
+		}
+	}
+
+	/*
+	 * Filter the rows with each filter type, and add a candidate for each
+	 * to the candidates.
+	 */
+	private Map<PngFilterType, List<byte[]>> applyEachFilter(List<byte[]> originalScanlines, int sampleBitCount, Map<String, byte[]> candidates)
+	{
+		Map<PngFilterType, List<byte[]>> filteredScanlines = new HashMap<PngFilterType, List<byte[]>>();
+		for (PngFilterType filterType : PngFilterType.standardValues())
+		{
+			this.log.debug("Applying filter: %s", filterType);
+			List<byte[]> scanlines = this.copyScanlines(originalScanlines);
+			this.pngFilterHandler.applyFiltering(filterType, scanlines, sampleBitCount);
+
+			filteredScanlines.put(filterType, scanlines);
+		}
+
+		// build a candidate for each filter type
+		for (Entry<PngFilterType, List<byte[]>> entry : filteredScanlines.entrySet())
+			candidates.put(entry.getKey().toString(), this.serialize(entry.getValue()));
+
+		return filteredScanlines;
+	}
+
 	/* */
 	private List<byte[]> getScanlines(byte[] inflatedImageData, int sampleBitCount, int rowLength, long height)
 	{
@@ -266,6 +817,125 @@ public class PngOptimizer
 		return rows;
 	}
 
+	/*
+	 * Deflate the candidates for writing the image Adam7 interlaced.  Each
+	 * pass is filtered as an image of its own, with every filter type and
+	 * adaptive filter heuristic, so adaptive filters are chosen pass by pass.
+	 */
+	private Map<String, byte[]> deflateInterlaced(List<byte[]> scanlines, int width, int height, int sampleBitCount, Integer compressionLevel) throws IOException
+	{
+		List<byte[]> interlacedScanlines = this.pngInterlaceHander.interlace(width, height, sampleBitCount, this.serialize(scanlines));
+		List<List<byte[]>> passes = this.pngInterlaceHander.getPasses(width, height, interlacedScanlines);
+
+		Map<PngFilterType, List<byte[]>> filteredScanlines = new HashMap<PngFilterType, List<byte[]>>();
+		for (PngFilterType filterType : PngFilterType.standardValues())
+		{
+			List<byte[]> filtered = new ArrayList<byte[]>(interlacedScanlines.size());
+			for (List<byte[]> pass : passes)
+			{
+				if (pass.isEmpty())
+					continue;
+
+				List<byte[]> passScanlines = this.copyScanlines(pass);
+				this.pngFilterHandler.applyFiltering(filterType, passScanlines, sampleBitCount);
+				filtered.addAll(passScanlines);
+			}
+			filteredScanlines.put(filterType, filtered);
+		}
+
+		Map<PngFilterHeuristic, PngFilterType[]> adaptiveFilterTypes = new LinkedHashMap<PngFilterHeuristic, PngFilterType[]>();
+		for (PngFilterHeuristic heuristic : this.filterHeuristics)
+			adaptiveFilterTypes.put(heuristic, new PngFilterType[interlacedScanlines.size()]);
+
+		int row = 0;
+		for (List<byte[]> pass : passes)
+		{
+			if (pass.isEmpty())
+				continue;
+
+			Map<PngFilterType, List<byte[]>> passScanlines = new HashMap<PngFilterType, List<byte[]>>();
+			for (Entry<PngFilterType, List<byte[]>> entry : filteredScanlines.entrySet())
+				passScanlines.put(entry.getKey(), entry.getValue().subList(row, row + pass.size()));
+
+			for (Entry<PngFilterHeuristic, PngFilterType[]> entry : this.pngFilterHandler.chooseAdaptiveFilters(passScanlines, this.filterHeuristics).entrySet())
+				System.arraycopy(entry.getValue(), 0, adaptiveFilterTypes.get(entry.getKey()), row, pass.size());
+			row += pass.size();
+		}
+
+		Map<String, byte[]> candidates = new LinkedHashMap<String, byte[]>();
+		for (Entry<PngFilterType, List<byte[]>> entry : filteredScanlines.entrySet())
+			candidates.put("INTERLACED " + entry.getKey(), this.serialize(entry.getValue()));
+		for (Entry<PngFilterHeuristic, PngFilterType[]> entry : adaptiveFilterTypes.entrySet())
+			candidates.put("INTERLACED " + PngFilterType.ADAPTIVE + " " + entry.getKey(), this.serialize(filteredScanlines, entry.getValue()));
+
+		return this.deflateConcurrently(candidates, compressionLevel);
+	}
+
+	/* */
+	private Map<String, byte[]> getCandidates(Future<Map<String, byte[]>> candidates) throws IOException
+	{
+		try
+		{
+			return candidates.get();
+		}
+		catch (final InterruptedException e)
+		{
+			candidates.cancel(true);
+			throw new IOException("Interrupted while compressing image data");
+		}
+		catch (final ExecutionException e)
+		{
+			throw new IOException("Error compressing image data: " + e.getCause());
+		}
+	}
+
+	/*
+	 * Deflate each candidate in its own thread; the compression handler
+	 * already spreads each candidate's strategies across threads, but a
+	 * single candidate rarely keeps every core busy.
+	 */
+	private Map<String, byte[]> deflateConcurrently(final Map<String, byte[]> candidates, final Integer compressionLevel) throws IOException
+	{
+		if (candidates.isEmpty())
+			return new LinkedHashMap<String, byte[]>();
+
+		final Map<String, Future<byte[]>> futures = new LinkedHashMap<String, Future<byte[]>>();
+		final ExecutorService candidateThreadPool = Executors.newFixedThreadPool(Math.min(candidates.size(), Runtime.getRuntime().availableProcessors()));
+		try
+		{
+			for (final Entry<String, byte[]> entry : candidates.entrySet())
+			{
+				futures.put(entry.getKey(), candidateThreadPool.submit(new Callable<byte[]>()
+				{
+					public byte[] call() throws IOException
+					{
+						return PngOptimizer.this.pngCompressionHandler.deflate(entry.getValue(), compressionLevel);
+					}
+				}));
+			}
+
+			final Map<String, byte[]> results = new LinkedHashMap<String, byte[]>();
+			for (final Entry<String, Future<byte[]>> entry : futures.entrySet())
+				results.put(entry.getKey(), entry.getValue().get());
+
+			return results;
+		}
+		catch (final InterruptedException e)
+		{
+			// the candidates still being compressed are interrupted too
+			candidateThreadPool.shutdownNow();
+			throw new IOException("Interrupted while compressing image data");
+		}
+		catch (final ExecutionException e)
+		{
+			throw new IOException("Error compressing image data: " + e.getCause());
+		}
+		finally
+		{
+			candidateThreadPool.shutdown();
+		}
+	}
+
 	/* */
 	private List<byte[]> copyScanlines(List<byte[]> original)
 	{
@@ -276,21 +946,47 @@ public class PngOptimizer
 		return copy;
 	}
 
-	/* */
+	/* Serialize scanlines, which may differ in length, as in the passes of an interlaced image */
 	private byte[] serialize(List<byte[]> scanlines)
 	{
-		int scanlineLength = scanlines.get(0).length;
-		byte[] imageData = new byte[scanlineLength * scanlines.size()];
-		for (int i = 0; i < scanlines.size(); i++)
+		int length = 0;
+		for (byte[] scanline : scanlines)
+			length += scanline.length;
+
+		byte[] imageData = new byte[length];
+		int offset = 0;
+		for (byte[] scanline : scanlines)
 		{
-			int offset = i * scanlineLength;
-			byte[] scanline = scanlines.get(i);
-			System.arraycopy(scanline, 0, imageData, offset, scanlineLength);
+			System.arraycopy(scanline, 0, imageData, offset, scanline.length);
+			offset += scanline.length;
 		}
 
 		return imageData;
 	}
 
+	/*
+	 * Serialize adaptively filtered image data, taking each row from the
+	 * scanlines filtered with the filter type chosen for that row.
+	 */
+	private byte[] serialize(Map<PngFilterType, List<byte[]>> filteredScanlines, PngFilterType[] filterTypes)
+	{
+		List<byte[]> scanlines = new ArrayList<byte[]>(filterTypes.length);
+		for (int i = 0; i < filterTypes.length; i++)
+			scanlines.add(filteredScanlines.get(filterTypes[i]).get(i));
+
+		return this.serialize(scanlines);
+	}
+
+	/* */
+	private PngFilterType[] getFilterTypes(List<byte[]> scanlines)
+	{
+		PngFilterType[] filterTypes = new PngFilterType[scanlines.size()];
+		for (int i = 0; i < filterTypes.length; i++)
+			filterTypes[i] = PngFilterType.forValue(scanlines.get(i)[0]);
+
+		return filterTypes;
+	}
+
 	/* */
 	@SuppressWarnings("unused")
 	private Set<PngPixel> getColors(PngImage original, List<byte[]> rows) throws IOException
@@ -437,11 +1133,22 @@ public class PngOptimizer
 		private long optimizedFileSize;
 		public long getOptimizedFileSize() { return this.optimizedFileSize; }
 
+		/** whether the image was skipped as already optimized */
+		private boolean skipped;
+		public boolean isSkipped() { return this.skipped; }
+
 		/** */
 		public Stats(long originalFileSize, long optimizedFileSize)
+		{
+			this(originalFileSize, optimizedFileSize, false);
+		}
+
+		/** */
+		public Stats(long originalFileSize, long optimizedFileSize, boolean skipped)
 		{
 			this.originalFileSize = originalFileSize;
 			this.optimizedFileSize = optimizedFileSize;
+			this.skipped = skipped;
 		}
 	}
 
@@ -453,12 +1160,35 @@ public class PngOptimizer
 	public long getTotalSavings()
 	{
 		long totalSavings = 0;
-		for (PngOptimizer.Stats stat : this.getStats())
-			totalSavings += (stat.getOriginalFileSize() - stat.getOptimizedFileSize());
+		synchronized (this.stats)
+		{
+			for (PngOptimizer.Stats stat : this.getStats())
+				totalSavings += (stat.getOriginalFileSize() - stat.getOptimizedFileSize());
+		}
 
 		return totalSavings;
 	}
 
+	/**
+	 * Get the number of images skipped as already optimized so far
+	 *
+	 * @return The number of images skipped
+	 */
+	public int getSkippedCount()
+	{
+		int skipped = 0;
+		synchronized (this.stats)
+		{
+			for (PngOptimizer.Stats stat : this.getStats())
+			{
+				if (stat.isSkipped())
+					skipped++;
+			}
+		}
+
+		return skipped;
+	}
+
 	/* */
 	@SuppressWarnings("unused")
 	private void printData(byte[] inflatedImageData)
@@ -0,0 +1,543 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import com.googlecode.pngtastic.core.processing.PngFilterHandler;
+
+/**
+ * Runs the per row work of optimizing a non-interlaced image as a pipeline
+ * rather than in phases: inflating the image data, undoing its filters,
+ * applying each standard filter, and collecting (and, where possible,
+ * deflating) the filtered rows each run on their own thread, handing batches
+ * of rows to the next stage through bounded queues.  A stage starts on the
+ * first batch as soon as the stage before has produced it, and the queues
+ * keep a fast stage from running too far ahead of a slow one.
+ * <p>
+ * The deflate stage can only stream when the compression level is fixed and
+ * java.util.zip does the compressing; then every standard filter candidate
+ * is deflated with every strategy as its rows arrive.  Otherwise the rows
+ * are just collected and deflated afterwards, since the other encoders need
+ * all of the data at once.
+ * <p>
+ * Each stage records how long it spent working and waiting, so the stage
+ * holding the others up can be found from {@link #getStats()}.
+ * <p>
+ * A stage hands on the end of its rows only when it finishes normally.  A
+ * stage that fails or is interrupted leaves the end behind only if there
+ * is room for it, since the stages after it may be gone and its queue
+ * full; the pipeline then cancels every stage, and rethrows.
+ */
+public class PngPipeline
+{
+	/** */
+	private final Logger log;
+
+	/** */
+	private final PngFilterHandler pngFilterHandler;
+
+	/** the approximate number of bytes of rows in each batch, and the batches each queue holds */
+	private static final int BATCH_BYTES = 256 * 1024;
+	private static final int QUEUE_CAPACITY = 4;
+
+	/** */
+	private static final List<Integer> compressionStrategies = Arrays.asList(Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY);
+
+	/** marks the end of a queue */
+	private static final RowBatch END = new RowBatch(Collections.<byte[]>emptyList(), null);
+
+	/** */
+	private final int sampleBitCount;
+	private final int scanlineLength;
+	private final long height;
+	private final int batchRows;
+
+	/** the compression level to stream the standard filter candidates at, or null to not stream */
+	private final Integer streamingLevel;
+
+	/** */
+	private final List<StageStats> stats = new ArrayList<StageStats>();
+	public List<StageStats> getStats() { return this.stats; }
+
+	/** */
+	private final List<byte[]> scanlines = new ArrayList<byte[]>();
+	public List<byte[]> getScanlines() { return this.scanlines; }
+
+	/** */
+	private final Map<PngFilterType, List<byte[]>> filteredScanlines = new HashMap<PngFilterType, List<byte[]>>();
+	public Map<PngFilterType, List<byte[]>> getFilteredScanlines() { return this.filteredScanlines; }
+
+	/** */
+	private final Map<PngFilterType, byte[]> deflated = new HashMap<PngFilterType, byte[]>();
+	public Map<PngFilterType, byte[]> getDeflated() { return this.deflated; }
+
+	/**
+	 * @param log The logger
+	 * @param pngFilterHandler The filter handler
+	 * @param sampleBitCount The bits per pixel of the image
+	 * @param scanlineLength The length of each row including its filter type byte
+	 * @param height The number of rows
+	 * @param streamingLevel The compression level to deflate the standard filter candidates at
+	 * as they're filtered, or null to only collect them
+	 */
+	public PngPipeline(Logger log, PngFilterHandler pngFilterHandler, int sampleBitCount, int scanlineLength, long height, Integer streamingLevel)
+	{
+		this.log = log;
+		this.pngFilterHandler = pngFilterHandler;
+		this.sampleBitCount = sampleBitCount;
+		this.scanlineLength = scanlineLength;
+		this.height = height;
+		this.batchRows = Math.max(1, BATCH_BYTES / scanlineLength);
+		this.streamingLevel = streamingLevel;
+
+		for (PngFilterType filterType : PngFilterType.standardValues())
+			this.filteredScanlines.put(filterType, new ArrayList<byte[]>((int)Math.min(height, Integer.MAX_VALUE)));
+	}
+
+	/**
+	 * Run the pipeline over compressed image data.  Afterwards the original
+	 * rows, the rows filtered with each standard filter type, and any
+	 * streamed deflate results are available from the getters.
+	 *
+	 * @param imageBytes The compressed image data
+	 * @throws IOException if any stage fails
+	 */
+	public void run(final ByteArrayOutputStream imageBytes) throws IOException
+	{
+		final BlockingQueue<RowBatch> inflated = new ArrayBlockingQueue<RowBatch>(QUEUE_CAPACITY);
+		final BlockingQueue<RowBatch> defiltered = new ArrayBlockingQueue<RowBatch>(QUEUE_CAPACITY);
+		final BlockingQueue<RowBatch> filtered = new ArrayBlockingQueue<RowBatch>(QUEUE_CAPACITY);
+
+		final StageStats inflateStats = new StageStats("inflate");
+		final StageStats defilterStats = new StageStats("defilter");
+		final StageStats filterStats = new StageStats("filter");
+		final StageStats deflateStats = new StageStats((this.streamingLevel == null) ? "collect" : "deflate");
+		this.stats.addAll(Arrays.asList(inflateStats, defilterStats, filterStats, deflateStats));
+
+		final List<Callable<Object>> stages = new ArrayList<Callable<Object>>();
+		stages.add(new Callable<Object>()
+		{
+			public Object call() throws Exception
+			{
+				PngPipeline.this.inflate(imageBytes, inflated, inflateStats);
+				return null;
+			}
+		});
+		stages.add(new Callable<Object>()
+		{
+			public Object call() throws Exception
+			{
+				PngPipeline.this.defilter(inflated, defiltered, defilterStats);
+				return null;
+			}
+		});
+		stages.add(new Callable<Object>()
+		{
+			public Object call() throws Exception
+			{
+				PngPipeline.this.filter(defiltered, filtered, filterStats);
+				return null;
+			}
+		});
+		stages.add(new Callable<Object>()
+		{
+			public Object call() throws Exception
+			{
+				PngPipeline.this.deflate(filtered, deflateStats);
+				return null;
+			}
+		});
+
+		final ExecutorService stageThreadPool = Executors.newFixedThreadPool(stages.size());
+		try
+		{
+			// wait in order of completion, so a failed stage is seen even while others are blocked
+			final CompletionService<Object> completionService = new ExecutorCompletionService<Object>(stageThreadPool);
+			for (Callable<Object> stage : stages)
+				completionService.submit(stage);
+
+			for (int i = 0; i < stages.size(); i++)
+				completionService.take().get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while processing image data");
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Error processing image data: " + e.getCause());
+		}
+		finally
+		{
+			// a failed stage leaves its neighbours blocked on the queues, so interrupt them
+			stageThreadPool.shutdownNow();
+		}
+
+		for (StageStats stat : this.stats)
+			this.log.debug("Pipeline stage %s: %d rows, %d bytes, %d ms working, %d ms waiting, %.1f MB/s",
+					stat.getName(), stat.getRows(), stat.getBytes(), stat.getWorkMillis(), stat.getWaitMillis(), stat.getThroughput());
+	}
+
+	/* Inflate the image data a batch of rows at a time */
+	private void inflate(ByteArrayOutputStream imageBytes, BlockingQueue<RowBatch> out, StageStats stats) throws IOException, InterruptedException
+	{
+		InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(imageBytes.toByteArray()));
+		try
+		{
+			long row = 0;
+			boolean more = true;
+			while (more && row < this.height)
+			{
+				long start = System.nanoTime();
+				List<byte[]> rows = new ArrayList<byte[]>(this.batchRows);
+				for (int i = 0; i < this.batchRows && row < this.height; i++, row++)
+				{
+					byte[] scanline = new byte[this.scanlineLength];
+					int length = 0;
+					int read;
+					while (length < scanline.length && (read = inflater.read(scanline, length, scanline.length - length)) != -1)
+						length += read;
+
+					if (length < scanline.length)
+					{
+						this.log.error("Error: image data ends after %d rows", row);
+						more = false;
+						break;
+					}
+					rows.add(scanline);
+				}
+				stats.work(start, rows.size(), (long)rows.size() * this.scanlineLength);
+				this.put(out, new RowBatch(rows, null), stats);
+			}
+			this.put(out, END, stats);
+		}
+		finally
+		{
+			inflater.close();
+			out.offer(END);
+		}
+	}
+
+	/* Undo the filtering of each row, in order */
+	private void defilter(BlockingQueue<RowBatch> in, BlockingQueue<RowBatch> out, StageStats stats) throws InterruptedException
+	{
+		try
+		{
+			byte[] previousRow = new byte[this.scanlineLength];
+			RowBatch batch;
+			while ((batch = this.take(in, stats)) != END)
+			{
+				long start = System.nanoTime();
+				List<byte[]> rows = new ArrayList<byte[]>(batch.rows.size());
+				for (byte[] row : batch.rows)
+				{
+					try
+					{
+						this.pngFilterHandler.deFilter(row, previousRow, this.sampleBitCount);
+						rows.add(row);
+
+						previousRow = row.clone();
+					}
+					catch (PngException e)
+					{
+						this.log.error("Error: %s", e.getMessage());
+					}
+				}
+				this.scanlines.addAll(rows);
+				stats.work(start, rows.size(), (long)rows.size() * this.scanlineLength);
+				this.put(out, new RowBatch(rows, null), stats);
+			}
+			this.put(out, END, stats);
+		}
+		finally
+		{
+			out.offer(END);
+		}
+	}
+
+	/* Apply every standard filter type to each batch of rows */
+	private void filter(BlockingQueue<RowBatch> in, BlockingQueue<RowBatch> out, StageStats stats) throws InterruptedException
+	{
+		try
+		{
+			byte[] lastRow = new byte[this.scanlineLength];
+			RowBatch batch;
+			while ((batch = this.take(in, stats)) != END)
+			{
+				long start = System.nanoTime();
+				Map<PngFilterType, List<byte[]>> filteredRows = new HashMap<PngFilterType, List<byte[]>>();
+				for (PngFilterType filterType : PngFilterType.standardValues())
+				{
+					List<byte[]> rows = new ArrayList<byte[]>(batch.rows.size());
+					byte[] previousRow = lastRow.clone();
+					for (byte[] row : batch.rows)
+					{
+						byte[] scanline = row.clone();
+						scanline[0] = filterType.getValue();
+						byte[] previous = scanline.clone();
+						try
+						{
+							this.pngFilterHandler.filter(scanline, previousRow, this.sampleBitCount);
+						}
+						catch (PngException e)
+						{
+							this.log.error("Error during filtering: %s", e.getMessage());
+						}
+						rows.add(scanline);
+						previousRow = previous;
+					}
+					filteredRows.put(filterType, rows);
+				}
+				if (!batch.rows.isEmpty())
+					lastRow = batch.rows.get(batch.rows.size() - 1);
+
+				stats.work(start, batch.rows.size(), (long)batch.rows.size() * this.scanlineLength * filteredRows.size());
+				this.put(out, new RowBatch(batch.rows, filteredRows), stats);
+			}
+			this.put(out, END, stats);
+		}
+		finally
+		{
+			out.offer(END);
+		}
+	}
+
+	/*
+	 * Collect the filtered rows.  If streaming, each standard filter
+	 * candidate is also deflated with each strategy as its rows arrive, the
+	 * streams of each batch being fed concurrently.
+	 */
+	private void deflate(BlockingQueue<RowBatch> in, StageStats stats) throws InterruptedException, ExecutionException
+	{
+		final List<DeflateStream> streams = new ArrayList<DeflateStream>();
+		if (this.streamingLevel != null)
+		{
+			for (PngFilterType filterType : PngFilterType.standardValues())
+			{
+				for (int strategy : compressionStrategies)
+					streams.add(new DeflateStream(filterType, this.streamingLevel, strategy));
+			}
+		}
+
+		final ExecutorService deflateThreadPool = Executors.newFixedThreadPool(Math.max(1, Math.min(streams.size(), Runtime.getRuntime().availableProcessors())));
+		try
+		{
+			RowBatch batch;
+			while ((batch = this.take(in, stats)) != END)
+			{
+				long start = System.nanoTime();
+				final Map<PngFilterType, byte[]> data = new HashMap<PngFilterType, byte[]>();
+				for (Entry<PngFilterType, List<byte[]>> entry : batch.filteredRows.entrySet())
+				{
+					this.filteredScanlines.get(entry.getKey()).addAll(entry.getValue());
+					if (!streams.isEmpty())
+						data.put(entry.getKey(), serialize(entry.getValue(), this.scanlineLength));
+				}
+
+				List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(streams.size());
+				for (final DeflateStream stream : streams)
+				{
+					tasks.add(new Callable<Object>()
+					{
+						public Object call()
+						{
+							stream.write(data.get(stream.filterType));
+							return null;
+						}
+					});
+				}
+				for (Future<Object> future : deflateThreadPool.invokeAll(tasks))
+					future.get();
+
+				stats.work(start, batch.rows.size(), (long)batch.rows.size() * this.scanlineLength * batch.filteredRows.size());
+			}
+
+			long start = System.nanoTime();
+			for (DeflateStream stream : streams)
+			{
+				byte[] result = stream.finish();
+				byte[] best = this.deflated.get(stream.filterType);
+				if (best == null || result.length < best.length)
+					this.deflated.put(stream.filterType, result);
+			}
+			stats.work(start, 0, 0);
+		}
+		finally
+		{
+			deflateThreadPool.shutdown();
+			for (DeflateStream stream : streams)
+				stream.end();
+		}
+	}
+
+	/* */
+	private static byte[] serialize(List<byte[]> rows, int scanlineLength)
+	{
+		byte[] data = new byte[rows.size() * scanlineLength];
+		for (int i = 0; i < rows.size(); i++)
+			System.arraycopy(rows.get(i), 0, data, i * scanlineLength, scanlineLength);
+
+		return data;
+	}
+
+	/* */
+	private void put(BlockingQueue<RowBatch> queue, RowBatch batch, StageStats stats) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		queue.put(batch);
+		stats.waited(start);
+	}
+
+	/* */
+	private RowBatch take(BlockingQueue<RowBatch> queue, StageStats stats) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		RowBatch batch = queue.take();
+		stats.waited(start);
+
+		return batch;
+	}
+
+	/**
+	 * One candidate deflated with one strategy, a piece at a time.
+	 */
+	private static class DeflateStream
+	{
+		/** */
+		private final PngFilterType filterType;
+		private final Deflater deflater;
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		private final byte[] buffer = new byte[8192];
+
+		/** */
+		public DeflateStream(PngFilterType filterType, int level, int strategy)
+		{
+			this.filterType = filterType;
+			this.deflater = new Deflater(level);
+			this.deflater.setStrategy(strategy);
+		}
+
+		/** */
+		public void write(byte[] data)
+		{
+			this.deflater.setInput(data);
+			while (!this.deflater.needsInput())
+				this.output.write(this.buffer, 0, this.deflater.deflate(this.buffer));
+		}
+
+		/** */
+		public byte[] finish()
+		{
+			this.deflater.finish();
+			while (!this.deflater.finished())
+				this.output.write(this.buffer, 0, this.deflater.deflate(this.buffer));
+
+			return this.output.toByteArray();
+		}
+
+		/** */
+		public void end()
+		{
+			this.deflater.end();
+		}
+	}
+
+	/**
+	 * A batch of consecutive rows, and once filtered, the rows filtered with
+	 * each standard filter type.
+	 */
+	private static class RowBatch
+	{
+		/** */
+		private final List<byte[]> rows;
+		private final Map<PngFilterType, List<byte[]>> filteredRows;
+
+		/** */
+		public RowBatch(List<byte[]> rows, Map<PngFilterType, List<byte[]>> filteredRows)
+		{
+			this.rows = rows;
+			this.filteredRows = filteredRows;
+		}
+	}
+
+	/**
+	 * How much a pipeline stage processed, and how long it spent working and
+	 * waiting on the queues to either side.  The stage that waits least is
+	 * the bottleneck.
+	 */
+	public static class StageStats
+	{
+		/** */
+		private final String name;
+		public String getName() { return this.name; }
+
+		/** */
+		private long rows;
+		public long getRows() { return this.rows; }
+
+		/** */
+		private long bytes;
+		public long getBytes() { return this.bytes; }
+
+		/** */
+		private long workNanos;
+		public long getWorkMillis() { return this.workNanos / 1000000; }
+
+		/** */
+		private long waitNanos;
+		public long getWaitMillis() { return this.waitNanos / 1000000; }
+
+		/** */
+		public StageStats(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * @return The bytes processed per second of work, in megabytes
+		 */
+		public double getThroughput()
+		{
+			return (this.workNanos == 0) ? 0 : (this.bytes / 1048576D) / (this.workNanos / 1000000000D);
+		}
+
+		/* */
+		private void work(long startNanos, long rows, long bytes)
+		{
+			this.workNanos += System.nanoTime() - startNanos;
+			this.rows += rows;
+			this.bytes += bytes;
+		}
+
+		/* */
+		private void waited(long startNanos)
+		{
+			this.waitNanos += System.nanoTime() - startNanos;
+		}
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A queue of work shared by separate processes on one machine through a
+ * spool directory, so that a batch can be spread over several JVMs, each
+ * with a heap and garbage collector of its own.  A coordinator splits the
+ * files into shards, each a file in the spool listing its input and output
+ * file names, and workers claim the shards one at a time.
+ * <p>
+ * A worker claims a shard by taking a lock on its file, which it holds
+ * until the shard is complete.  The operating system releases the lock of
+ * a worker that dies, so its shard is claimed by another worker, which
+ * resumes it from the shard's journal.  A complete shard is marked with a
+ * done file, and its journal holds the stats of its files.
+ */
+public class PngShardQueue
+{
+	/** */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** */
+	public static final int DEFAULT_SHARD_SIZE = 32;
+
+	/** */
+	private static final String SHARD_PREFIX = "shard-";
+	private static final String SHARD_SUFFIX = ".txt";
+	private static final String JOURNAL_SUFFIX = ".journal";
+	private static final String DONE_SUFFIX = ".done";
+
+	/** written once every shard is in the spool */
+	private static final String SHARDED = "sharded";
+
+	/** */
+	private final Path spool;
+
+	/** the number of shards added by this coordinator */
+	private int shardCount;
+
+	/** the shards left to try in this pass over the spool */
+	private Iterator<Path> candidates = Collections.<Path>emptyList().iterator();
+
+	/**
+	 * @param spool The spool directory, which is created if need be
+	 * @throws IOException if the spool directory can't be created
+	 */
+	public PngShardQueue(File spool) throws IOException
+	{
+		this.spool = spool.toPath();
+		Files.createDirectories(this.spool);
+	}
+
+	/**
+	 * Add a shard.  It is written under a temporary name and then renamed,
+	 * so workers never see part of one.
+	 *
+	 * @param files The output file name for each input file name
+	 * @throws IOException if the shard couldn't be written
+	 */
+	public void add(Map<String, String> files) throws IOException
+	{
+		StringBuilder lines = new StringBuilder();
+		for (Entry<String, String> file : files.entrySet())
+			lines.append(PngJournal.escape(file.getKey())).append('\t').append(PngJournal.escape(file.getValue())).append('\n');
+
+		String name = String.format("%s%08d%s", SHARD_PREFIX, this.shardCount++, SHARD_SUFFIX);
+		Path temp = this.spool.resolve("." + name + ".tmp");
+		Files.write(temp, lines.toString().getBytes(UTF8));
+		Files.move(temp, this.spool.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Mark the spool as having every shard, so that workers stop once they
+	 * are all complete.
+	 *
+	 * @throws IOException if the marker couldn't be written
+	 */
+	public void finish() throws IOException
+	{
+		Files.write(this.spool.resolve(SHARDED), new byte[0]);
+	}
+
+	/**
+	 * Whether every shard has been added, such as by a coordinator that
+	 * was stopped before the shards were all complete.
+	 */
+	public boolean isSharded()
+	{
+		return Files.exists(this.spool.resolve(SHARDED));
+	}
+
+	/**
+	 * Whether every shard has been added and completed.
+	 *
+	 * @throws IOException if the spool couldn't be read
+	 */
+	public boolean isComplete() throws IOException
+	{
+		return this.isSharded() && this.getRemaining() == 0;
+	}
+
+	/**
+	 * @return The number of shards not yet complete
+	 * @throws IOException if the spool couldn't be read
+	 */
+	public int getRemaining() throws IOException
+	{
+		int remaining = 0;
+		for (Path shard : this.listShards())
+		{
+			if (!Files.exists(sibling(shard, DONE_SUFFIX)))
+				remaining++;
+		}
+		return remaining;
+	}
+
+	/**
+	 * Claim a shard that is neither complete nor claimed by a live worker.
+	 *
+	 * @return The shard, or null if there is none to claim right now
+	 * @throws IOException if the spool couldn't be read
+	 */
+	public Shard claim() throws IOException
+	{
+		for (int pass = 0; pass < 2; pass++)
+		{
+			while (this.candidates.hasNext())
+			{
+				Path shard = this.candidates.next();
+				if (Files.exists(sibling(shard, DONE_SUFFIX)))
+					continue;
+
+				FileChannel channel;
+				try
+				{
+					channel = FileChannel.open(shard, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				}
+				catch (NoSuchFileException e)
+				{
+					continue;
+				}
+
+				FileLock lock = channel.tryLock();
+				if (lock == null || Files.exists(sibling(shard, DONE_SUFFIX)))
+				{
+					channel.close();
+					continue;
+				}
+				return new Shard(shard, channel);
+			}
+			// start a new pass, which finds the shards added since, and those of workers that died
+			this.candidates = this.listShards().iterator();
+		}
+		return null;
+	}
+
+	/**
+	 * @return The stats of every file completed so far, from the journals of the shards
+	 * @throws IOException if a journal couldn't be read
+	 */
+	public List<PngOptimizer.Stats> getStats() throws IOException
+	{
+		List<PngOptimizer.Stats> stats = new ArrayList<PngOptimizer.Stats>();
+		for (Path shard : this.listShards())
+		{
+			Path journalFile = sibling(shard, JOURNAL_SUFFIX);
+			if (!Files.exists(journalFile))
+				continue;
+
+			stats.addAll(PngJournal.readStats(journalFile.toFile()));
+		}
+		return stats;
+	}
+
+	/**
+	 * Delete the spool and everything in it.
+	 *
+	 * @throws IOException if a file couldn't be deleted
+	 */
+	public void delete() throws IOException
+	{
+		DirectoryStream<Path> files = Files.newDirectoryStream(this.spool);
+		try
+		{
+			for (Path file : files)
+				Files.deleteIfExists(file);
+		}
+		finally
+		{
+			files.close();
+		}
+		Files.deleteIfExists(this.spool);
+	}
+
+	/* The shards in the spool, in the order they were added */
+	private List<Path> listShards() throws IOException
+	{
+		List<Path> shards = new ArrayList<Path>();
+		DirectoryStream<Path> files = Files.newDirectoryStream(this.spool, SHARD_PREFIX + "*" + SHARD_SUFFIX);
+		try
+		{
+			for (Path file : files)
+				shards.add(file);
+		}
+		finally
+		{
+			files.close();
+		}
+		Collections.sort(shards);
+		return shards;
+	}
+
+	/* */
+	private static Path sibling(Path shard, String suffix)
+	{
+		String name = shard.getFileName().toString();
+		return shard.resolveSibling(name.substring(0, name.length() - SHARD_SUFFIX.length()) + suffix);
+	}
+
+	/** A shard claimed by this worker, which holds its lock until it is complete or released */
+	public static class Shard
+	{
+		/** */
+		private final Path file;
+		private final FileChannel channel;
+
+		/** */
+		private Shard(Path file, FileChannel channel)
+		{
+			this.file = file;
+			this.channel = channel;
+		}
+
+		/** */
+		public String getName()
+		{
+			return this.file.getFileName().toString();
+		}
+
+		/**
+		 * @return The output file name for each input file name, in the order they were added
+		 * @throws IOException if the shard couldn't be read
+		 */
+		public Map<String, String> getFiles() throws IOException
+		{
+			// read through the locked channel, since closing any other channel to the file would release the lock
+			ByteBuffer bytes = ByteBuffer.allocate((int) this.channel.size());
+			while (bytes.hasRemaining())
+			{
+				if (this.channel.read(bytes, bytes.position()) < 0)
+					break;
+			}
+
+			Map<String, String> files = new LinkedHashMap<String, String>();
+			for (String line : new String(bytes.array(), 0, bytes.position(), UTF8).split("\n"))
+			{
+				String[] fields = line.split("\t", -1);
+				if (fields.length == 2)
+					files.put(PngJournal.unescape(fields[0]), PngJournal.unescape(fields[1]));
+			}
+			return files;
+		}
+
+		/**
+		 * @return The journal of the shard, which holds the files done by any worker that claimed it before
+		 * @throws IOException if the journal couldn't be opened
+		 */
+		public PngJournal openJournal() throws IOException
+		{
+			return new PngJournal(sibling(this.file, JOURNAL_SUFFIX).toFile(), true, PngJournal.DEFAULT_BATCH_SIZE);
+		}
+
+		/**
+		 * Mark the shard complete, and release it.
+		 *
+		 * @throws IOException if the done file couldn't be written
+		 */
+		public void complete() throws IOException
+		{
+			try
+			{
+				Files.write(sibling(this.file, DONE_SUFFIX), new byte[0]);
+			}
+			finally
+			{
+				this.release();
+			}
+		}
+
+		/**
+		 * Release the shard without completing it, so that another worker
+		 * can claim it.
+		 *
+		 * @throws IOException if the lock couldn't be released
+		 */
+		public void release() throws IOException
+		{
+			this.channel.close();
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.googlecode.pngtastic.core.processing.PngFilterHandler;
+import com.googlecode.pngtastic.core.processing.PngFilterHeuristic;
+import com.googlecode.pngtastic.core.processing.PngInterlaceHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticFilterHeuristic;
+
+/**
+ * Estimates how small the optimizer could make an image, for telling the
+ * images worth optimizing from those that are optimized already, at a small
+ * part of the cost of optimizing them.  A few strips of rows spread evenly
+ * over the image are filtered with each filter type, and adaptively, and
+ * each sample of strips is deflated once, at the best level.  The smallest
+ * is scaled up to the whole image.
+ * <p>
+ * The sample is deflated with a single strategy, and without the context of
+ * the rows between its strips, so the estimate is usually a little larger
+ * than what the optimizer goes on to find.  Skipping by it errs towards
+ * skipping.
+ */
+public class PngSizeEstimator
+{
+	/** the rows sampled from an image, in bytes, beyond which only some strips of it are sampled */
+	private static final int SAMPLE_LENGTH = 256 * 1024;
+
+	/** the least length of a strip, in bytes, which is the size of the deflate window */
+	private static final int STRIP_LENGTH = 32 * 1024;
+
+	/** the zlib header and adler32 checksum */
+	private static final int ZLIB_OVERHEAD = 6;
+
+	/** */
+	private static final List<PngFilterHeuristic> HEURISTICS = Arrays.<PngFilterHeuristic>asList(PngtasticFilterHeuristic.MINIMUM_SUM);
+
+	/** */
+	private final Logger log;
+	private final PngFilterHandler pngFilterHandler;
+	private final PngInterlaceHandler pngInterlaceHandler;
+
+	/** */
+	PngSizeEstimator(Logger log, PngFilterHandler pngFilterHandler, PngInterlaceHandler pngInterlaceHandler)
+	{
+		this.log = log;
+		this.pngFilterHandler = pngFilterHandler;
+		this.pngInterlaceHandler = pngInterlaceHandler;
+	}
+
+	/**
+	 * Estimate the size of an image once optimized.
+	 *
+	 * @param image The image, read in full
+	 * @param extraLength The length of any chunks the optimizer adds to the image
+	 * @return The estimate, or null if the image isn't one the optimizer can make smaller
+	 * @throws IOException if the image data couldn't be inflated
+	 */
+	public Estimate estimate(PngImage image, int extraLength) throws IOException
+	{
+		// the optimizer leaves these as they are
+		if (image.getInterlace() == 1 && image.getSampleBitCount() < 8)
+			return null;
+
+		long keptLength = 8 + extraLength;
+		ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+		for (PngChunk chunk : image.getChunks())
+		{
+			if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString()))
+				imageData.write(chunk.getData());
+			else if (chunk.isRequired())
+				keptLength += 12 + chunk.getLength();
+		}
+
+		int sampleBitCount = image.getSampleBitCount();
+		int rowLength = (int) ((image.getWidth() * sampleBitCount + 7) / 8 + 1);
+		byte[] inflated = inflate(imageData.toByteArray(), PngOptimizer.getInflatedSize(image.getChunks().get(0)));
+		List<byte[]> rows = (image.getInterlace() == 1)
+				? this.pngInterlaceHandler.deInterlace((int) image.getWidth(), (int) image.getHeight(), sampleBitCount, inflated)
+				: this.getRows(inflated, sampleBitCount, rowLength, (int) image.getHeight());
+		if (rows.isEmpty())
+			return null;
+
+		long totalLength = (long) rows.size() * rowLength;
+		int stripRows = Math.min(rows.size(), Math.max(1, STRIP_LENGTH / rowLength));
+		int stripCount = (totalLength <= SAMPLE_LENGTH) ? 1 : Math.max(1, SAMPLE_LENGTH / (stripRows * rowLength));
+		if (totalLength <= SAMPLE_LENGTH)
+			stripRows = rows.size();
+
+		// a sample for each filter type, and one filtered adaptively
+		Map<String, ByteArrayOutputStream> samples = new LinkedHashMap<String, ByteArrayOutputStream>();
+		for (int s = 0; s < stripCount; s++)
+		{
+			// spread the strips evenly from the top of the image to the bottom
+			int first = (stripCount == 1) ? 0 : (int) ((long) s * (rows.size() - stripRows) / (stripCount - 1));
+			for (Entry<String, byte[]> strip : this.filter(rows, first, stripRows, sampleBitCount).entrySet())
+			{
+				if (!samples.containsKey(strip.getKey()))
+					samples.put(strip.getKey(), new ByteArrayOutputStream());
+				samples.get(strip.getKey()).write(strip.getValue());
+			}
+		}
+
+		long sampledLength = (long) stripCount * stripRows * rowLength;
+		long deflatedLength = Long.MAX_VALUE;
+		for (Entry<String, ByteArrayOutputStream> sample : samples.entrySet())
+		{
+			long length = deflate(sample.getValue().toByteArray());
+			this.log.debug("Sample filtered %s: %d bytes", sample.getKey(), length);
+			deflatedLength = Math.min(deflatedLength, length);
+		}
+
+		long imageDataLength = Math.round(deflatedLength * (double) totalLength / sampledLength) + ZLIB_OVERHEAD;
+		Estimate estimate = new Estimate(image.getFileLength(), keptLength + 12 + imageDataLength, sampledLength / (double) totalLength);
+		this.log.debug("Estimated %s at %d bytes from %d%% of its rows, %5.2f%% smaller", image.getFileName(),
+				estimate.getEstimatedFileLength(), Math.round(estimate.getSampledFraction() * 100), estimate.getGain() * 100);
+
+		return estimate;
+	}
+
+	/* The defiltered rows of a non-interlaced image */
+	private List<byte[]> getRows(byte[] inflated, int sampleBitCount, int rowLength, int height)
+	{
+		List<byte[]> rows = new ArrayList<byte[]>(height);
+		byte[] previousRow = new byte[rowLength];
+		for (int i = 0; i < height && (i + 1) * (long) rowLength <= inflated.length; i++)
+		{
+			byte[] row = Arrays.copyOfRange(inflated, i * rowLength, (i + 1) * rowLength);
+			try
+			{
+				this.pngFilterHandler.deFilter(row, previousRow, sampleBitCount);
+			}
+			catch (PngException e)
+			{
+				this.log.error("Error: %s", e.getMessage());
+				break;
+			}
+			rows.add(row);
+			previousRow = row.clone();
+		}
+		return rows;
+	}
+
+	/*
+	 * Filter a strip of rows with each filter type, and adaptively as the
+	 * optimizer would, with the row above the strip as the context of its
+	 * first row.
+	 */
+	private Map<String, byte[]> filter(List<byte[]> rows, int first, int count, int sampleBitCount)
+	{
+		int context = (first > 0) ? 1 : 0;
+		Map<PngFilterType, List<byte[]>> filteredRows = new HashMap<PngFilterType, List<byte[]>>();
+		for (PngFilterType filterType : PngFilterType.standardValues())
+		{
+			List<byte[]> strip = new ArrayList<byte[]>(count + context);
+			for (byte[] row : rows.subList(first - context, first + count))
+				strip.add(row.clone());
+
+			this.pngFilterHandler.applyFiltering(filterType, strip, sampleBitCount);
+			filteredRows.put(filterType, strip.subList(context, strip.size()));
+		}
+
+		Map<String, byte[]> strips = new LinkedHashMap<String, byte[]>();
+		for (PngFilterType filterType : PngFilterType.standardValues())
+			strips.put(filterType.toString(), serialize(filteredRows, filterType, null));
+
+		PngFilterType[] filterTypes = this.pngFilterHandler.chooseAdaptiveFilters(filteredRows, HEURISTICS).get(PngtasticFilterHeuristic.MINIMUM_SUM);
+		strips.put(PngFilterType.ADAPTIVE.toString(), serialize(filteredRows, null, filterTypes));
+
+		return strips;
+	}
+
+	/* Serialize filtered rows, taken from those of one filter type, or those of the filter type chosen for each row */
+	private static byte[] serialize(Map<PngFilterType, List<byte[]>> filteredRows, PngFilterType filterType, PngFilterType[] filterTypes)
+	{
+		List<byte[]> rows = filteredRows.get(PngFilterType.standardValues()[0]);
+		int rowLength = rows.get(0).length;
+		byte[] strip = new byte[rows.size() * rowLength];
+		for (int i = 0; i < rows.size(); i++)
+			System.arraycopy(filteredRows.get((filterTypes == null) ? filterType : filterTypes[i]).get(i), 0, strip, i * rowLength, rowLength);
+
+		return strip;
+	}
+
+	/* Inflate at most the size the header allows, ignoring any more */
+	private static byte[] inflate(byte[] deflated, long inflatedSize) throws IOException
+	{
+		Inflater inflater = new Inflater();
+		try
+		{
+			inflater.setInput(deflated);
+			ByteArrayOutputStream inflated = new ByteArrayOutputStream((int) Math.min(inflatedSize, 4L * deflated.length + 8192));
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished() && inflated.size() < inflatedSize)
+			{
+				int length = inflater.inflate(buffer, 0, (int) Math.min(buffer.length, inflatedSize - inflated.size()));
+				if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+
+				inflated.write(buffer, 0, length);
+			}
+			return inflated.toByteArray();
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Bad image data: " + e.getMessage());
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
+	/* The deflated length of the data, without the zlib header and checksum */
+	private static long deflate(byte[] data)
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try
+		{
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] buffer = new byte[8192];
+			long length = 0;
+			while (!deflater.finished())
+				length += deflater.deflate(buffer);
+
+			return length;
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	/** How small an image is estimated to get */
+	public static class Estimate
+	{
+		/** */
+		private final long fileLength;
+		public long getFileLength() { return this.fileLength; }
+
+		/** */
+		private final long estimatedFileLength;
+		public long getEstimatedFileLength() { return this.estimatedFileLength; }
+
+		/** the share of the rows that were deflated for the estimate */
+		private final double sampledFraction;
+		public double getSampledFraction() { return this.sampledFraction; }
+
+		/** */
+		public Estimate(long fileLength, long estimatedFileLength, double sampledFraction)
+		{
+			this.fileLength = fileLength;
+			this.estimatedFileLength = estimatedFileLength;
+			this.sampledFraction = sampledFraction;
+		}
+
+		/**
+		 * @return The estimated saving as a fraction of the file length, which is negative if the file would grow
+		 */
+		public double getGain()
+		{
+			return (this.fileLength == 0) ? 0 : (this.fileLength - this.estimatedFileLength) / (double) this.fileLength;
+		}
+	}
+}
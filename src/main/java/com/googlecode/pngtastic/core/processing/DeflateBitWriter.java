@@ -0,0 +1,78 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.util.Arrays;
+
+/**
+ * Collects a deflate bit stream, least significant bit first.
+ */
+class DeflateBitWriter
+{
+	/** */
+	private byte[] bytes;
+	private int size;
+
+	/** */
+	private long bitBuffer;
+	private int bitCount;
+
+	/** */
+	DeflateBitWriter(final int capacity)
+	{
+		this.bytes = new byte[Math.max(64, capacity)];
+	}
+
+	/** Write the low count bits of value */
+	void writeBits(final int value, final int count)
+	{
+		this.bitBuffer |= (long) value << this.bitCount;
+		this.bitCount += count;
+		while (this.bitCount >= 8)
+		{
+			this.put((byte) this.bitBuffer);
+			this.bitBuffer >>>= 8;
+			this.bitCount -= 8;
+		}
+	}
+
+	/** Pad with zero bits up to the next byte boundary */
+	void alignToByte()
+	{
+		if (this.bitCount > 0)
+			this.writeBits(0, 8 - this.bitCount);
+	}
+
+	/** The number of bits written past the last byte boundary */
+	int getBitOffset()
+	{
+		return this.bitCount;
+	}
+
+	/** Write whole bytes; the stream must be byte aligned */
+	void writeBytes(final byte[] data, final int offset, final int length)
+	{
+		if (this.size + length > this.bytes.length)
+			this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + length));
+
+		System.arraycopy(data, offset, this.bytes, this.size, length);
+		this.size += length;
+	}
+
+	/** The bytes written so far, which excludes any bits past the last byte boundary */
+	byte[] toByteArray()
+	{
+		return Arrays.copyOf(this.bytes, this.size);
+	}
+
+	/* */
+	private void put(final byte b)
+	{
+		if (this.size == this.bytes.length)
+			this.bytes = Arrays.copyOf(this.bytes, this.bytes.length * 2);
+
+		this.bytes[this.size++] = b;
+	}
+}
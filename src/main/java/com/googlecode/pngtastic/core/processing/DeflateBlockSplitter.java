@@ -0,0 +1,178 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses where to end deflate blocks so that each block gets Huffman codes
+ * suited to its own part of the data.  Following zopfli, the most expensive
+ * block is split in two at the point that minimizes the cost of the halves,
+ * for as long as splitting saves bits and the block limit isn't reached.
+ */
+final class DeflateBlockSplitter
+{
+	/** blocks shorter than this many symbols are never split */
+	private static final int MIN_BLOCK_SYMBOLS = 10;
+
+	/** the number of split points costed per round when narrowing down the best one */
+	private static final int PROBES = 9;
+
+	/** splits are costed exhaustively in blocks shorter than this */
+	private static final int EXHAUSTIVE_SYMBOLS = 1024;
+
+	/** */
+	private final DeflateSymbols symbols;
+
+	/** the byte offset of each symbol from the start of the parse, and the total */
+	private final int[] byteOffsets;
+
+	/* */
+	private DeflateBlockSplitter(final DeflateSymbols symbols)
+	{
+		this.symbols = symbols;
+		this.byteOffsets = new int[symbols.size() + 1];
+		for (int i = 0; i < symbols.size(); i++)
+			this.byteOffsets[i + 1] = this.byteOffsets[i] + symbols.byteLength(i);
+	}
+
+	/**
+	 * Split a parse into blocks.
+	 *
+	 * @param symbols The parse
+	 * @param maxBlocks The most blocks to split it into
+	 * @return The index of the first symbol of each block, starting with 0,
+	 * followed by the number of symbols
+	 */
+	static int[] split(final DeflateSymbols symbols, final int maxBlocks)
+	{
+		final DeflateBlockSplitter splitter = new DeflateBlockSplitter(symbols);
+
+		final List<Integer> starts = new ArrayList<Integer>();
+		starts.add(0);
+		starts.add(symbols.size());
+		final List<Integer> unsplittable = new ArrayList<Integer>();
+
+		while (starts.size() - 1 < maxBlocks)
+		{
+			// the largest block not yet known to be unsplittable
+			int from = -1;
+			int to = -1;
+			for (int i = 0; i < starts.size() - 1; i++)
+			{
+				final int start = starts.get(i);
+				final int end = starts.get(i + 1);
+				if (!unsplittable.contains(start) && end - start >= MIN_BLOCK_SYMBOLS && (from < 0 || end - start > to - from))
+				{
+					from = start;
+					to = end;
+				}
+			}
+			if (from < 0)
+				break;
+
+			final int split = splitter.bestSplit(from, to);
+			if (split <= from + 1 || split >= to || splitter.cost(from, split) + splitter.cost(split, to) >= splitter.cost(from, to))
+			{
+				unsplittable.add(from);
+			}
+			else
+			{
+				starts.add(split);
+				Collections.sort(starts);
+			}
+		}
+
+		final int[] result = new int[starts.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = starts.get(i);
+
+		return result;
+	}
+
+	/**
+	 * The size in bits of a parse coded as the given blocks.
+	 *
+	 * @param symbols The parse
+	 * @param starts The blocks, as returned by split
+	 */
+	static long cost(final DeflateSymbols symbols, final int[] starts)
+	{
+		final DeflateBlockSplitter splitter = new DeflateBlockSplitter(symbols);
+		long bits = 0;
+		for (int i = 0; i < starts.length - 1; i++)
+			bits += splitter.cost(starts[i], starts[i + 1]);
+
+		return bits;
+	}
+
+	/*
+	 * The split point in from..to that makes the two halves cheapest.  Small
+	 * blocks are searched exhaustively; larger ones by costing evenly spaced
+	 * points and narrowing in on the best, which assumes the cost is roughly
+	 * unimodal in the split point.
+	 */
+	private int bestSplit(int from, int to)
+	{
+		if (to - from < EXHAUSTIVE_SYMBOLS)
+		{
+			int best = from;
+			long bestBits = Long.MAX_VALUE;
+			for (int split = from + 1; split < to; split++)
+			{
+				final long bits = this.splitCost(from, split, to);
+				if (bits < bestBits)
+				{
+					best = split;
+					bestBits = bits;
+				}
+			}
+			return best;
+		}
+
+		final int blockFrom = from;
+		final int blockTo = to;
+		int best = from;
+		long bestBits = Long.MAX_VALUE;
+		final int[] points = new int[PROBES];
+		while (to - from > PROBES)
+		{
+			int bestProbe = 0;
+			long bestProbeBits = Long.MAX_VALUE;
+			for (int i = 0; i < PROBES; i++)
+			{
+				points[i] = from + (i + 1) * ((to - from) / (PROBES + 1));
+				final long bits = this.splitCost(blockFrom, points[i], blockTo);
+				if (bits < bestProbeBits)
+				{
+					bestProbe = i;
+					bestProbeBits = bits;
+				}
+			}
+			if (bestProbeBits > bestBits)
+				break;
+
+			from = (bestProbe == 0) ? from : points[bestProbe - 1];
+			to = (bestProbe == PROBES - 1) ? to : points[bestProbe + 1];
+			best = points[bestProbe];
+			bestBits = bestProbeBits;
+		}
+		return best;
+	}
+
+	/* */
+	private long splitCost(final int from, final int split, final int to)
+	{
+		return this.cost(from, split) + this.cost(split, to);
+	}
+
+	/* */
+	private long cost(final int from, final int to)
+	{
+		return DeflateBlockWriter.cost(this.symbols, from, to, this.byteOffsets[to] - this.byteOffsets[from]);
+	}
+}
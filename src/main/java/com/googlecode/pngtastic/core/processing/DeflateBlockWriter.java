@@ -0,0 +1,378 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.util.Arrays;
+
+/**
+ * Codes a run of LZ77 symbols as a deflate block.  Every block is costed
+ * as stored, fixed Huffman and dynamic Huffman, and written as whichever is
+ * smallest.  The dynamic codes are either optimal for the block's own
+ * statistics or, as in zopfli, built from counts smoothed so the code
+ * lengths run length code into a smaller header, whichever is smaller
+ * overall.
+ */
+final class DeflateBlockWriter
+{
+	/** */
+	private static final int[] CODE_LENGTH_ORDER = new int[] { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+	private static final int MAX_STORED_LENGTH = 65535;
+
+	/** */
+	private static final int STORED = 0;
+	private static final int FIXED = 1;
+	private static final int DYNAMIC = 2;
+
+	/* */
+	private DeflateBlockWriter() { }
+
+	/**
+	 * The size in bits of the smallest block that can code the symbols
+	 * from..to, which cover byteLength bytes of data.
+	 */
+	static long cost(final DeflateSymbols symbols, final int from, final int to, final int byteLength)
+	{
+		final int[] litLenCounts = new int[DeflateSymbols.LITERAL_LENGTH_CODES];
+		final int[] distanceCounts = new int[DeflateSymbols.DISTANCE_CODES];
+		symbols.countCodes(from, to, litLenCounts, distanceCounts);
+
+		final DynamicHeader header = dynamicHeader(litLenCounts, distanceCounts);
+		final long dynamic = header.bits + dataBits(litLenCounts, distanceCounts, header.litLenLengths, header.distanceLengths);
+		final long fixed = dataBits(litLenCounts, distanceCounts, DeflateHuffman.FIXED_LITERAL_LENGTH_LENGTHS, DeflateHuffman.FIXED_DISTANCE_LENGTHS);
+
+		return 3 + Math.min(storedBits(byteLength, -1), Math.min(fixed, dynamic));
+	}
+
+	/**
+	 * Write the symbols from..to as one block, of whichever type is smallest.
+	 *
+	 * @param out The stream to write to
+	 * @param symbols The parse
+	 * @param from The first symbol of the block
+	 * @param to One past the last symbol of the block
+	 * @param data The data the symbols were parsed from, needed for stored blocks
+	 * @param byteStart The position in data of the first byte the block covers
+	 * @param byteEnd One past the position of the last byte the block covers
+	 * @param last Whether this is the final block of the stream
+	 */
+	static void write(final DeflateBitWriter out, final DeflateSymbols symbols, final int from, final int to,
+			final byte[] data, final int byteStart, final int byteEnd, final boolean last)
+	{
+		final int[] litLenCounts = new int[DeflateSymbols.LITERAL_LENGTH_CODES];
+		final int[] distanceCounts = new int[DeflateSymbols.DISTANCE_CODES];
+		symbols.countCodes(from, to, litLenCounts, distanceCounts);
+
+		final DynamicHeader header = dynamicHeader(litLenCounts, distanceCounts);
+		final long dynamic = header.bits + dataBits(litLenCounts, distanceCounts, header.litLenLengths, header.distanceLengths);
+		final long fixed = dataBits(litLenCounts, distanceCounts, DeflateHuffman.FIXED_LITERAL_LENGTH_LENGTHS, DeflateHuffman.FIXED_DISTANCE_LENGTHS);
+		final long stored = storedBits(byteEnd - byteStart, out.getBitOffset());
+
+		final int type = (stored <= fixed && stored <= dynamic) ? STORED : ((fixed <= dynamic) ? FIXED : DYNAMIC);
+		if (type == STORED)
+		{
+			writeStored(out, data, byteStart, byteEnd, last);
+			return;
+		}
+
+		out.writeBits(last ? 1 : 0, 1);
+		out.writeBits(type, 2);
+
+		final int[] litLenLengths;
+		final int[] distanceLengths;
+		if (type == FIXED)
+		{
+			litLenLengths = DeflateHuffman.FIXED_LITERAL_LENGTH_LENGTHS;
+			distanceLengths = DeflateHuffman.FIXED_DISTANCE_LENGTHS;
+		}
+		else
+		{
+			header.write(out);
+			litLenLengths = header.litLenLengths;
+			distanceLengths = header.distanceLengths;
+		}
+
+		final int[] litLenCodes = DeflateHuffman.codes(litLenLengths);
+		final int[] distanceCodes = DeflateHuffman.codes(distanceLengths);
+		for (int i = from; i < to; i++)
+		{
+			final int distance = symbols.distance(i);
+			if (distance == 0)
+			{
+				final int literal = symbols.litLen(i);
+				out.writeBits(litLenCodes[literal], litLenLengths[literal]);
+			}
+			else
+			{
+				final int length = symbols.litLen(i);
+				final int lengthSymbol = DeflateSymbols.lengthSymbol(length);
+				out.writeBits(litLenCodes[lengthSymbol], litLenLengths[lengthSymbol]);
+				out.writeBits(DeflateSymbols.lengthExtraValue(length), DeflateSymbols.lengthExtraBits(length));
+
+				final int distanceCode = DeflateSymbols.distanceCode(distance);
+				out.writeBits(distanceCodes[distanceCode], distanceLengths[distanceCode]);
+				out.writeBits(DeflateSymbols.distanceExtraValue(distance), DeflateSymbols.distanceExtraBits(distanceCode));
+			}
+		}
+		out.writeBits(litLenCodes[DeflateSymbols.END_OF_BLOCK], litLenLengths[DeflateSymbols.END_OF_BLOCK]);
+	}
+
+	/**
+	 * Write data as stored blocks, as many as needed for the 64k limit.
+	 */
+	static void writeStored(final DeflateBitWriter out, final byte[] data, final int byteStart, final int byteEnd, final boolean last)
+	{
+		int pos = byteStart;
+		do
+		{
+			final int length = Math.min(MAX_STORED_LENGTH, byteEnd - pos);
+			out.writeBits((last && pos + length == byteEnd) ? 1 : 0, 1);
+			out.writeBits(STORED, 2);
+			out.alignToByte();
+			out.writeBits(length, 16);
+			out.writeBits(~length & 0xffff, 16);
+			out.writeBytes(data, pos, length);
+			pos += length;
+		}
+		while (pos < byteEnd);
+	}
+
+	/* The dynamic header that codes the block in the fewest bits */
+	private static DynamicHeader dynamicHeader(final int[] litLenCounts, final int[] distanceCounts)
+	{
+		final DynamicHeader plain = new DynamicHeader(
+				DeflateHuffman.lengths(litLenCounts, DeflateHuffman.MAX_BITS),
+				DeflateHuffman.lengths(distanceCounts, DeflateHuffman.MAX_BITS));
+		final DynamicHeader tuned = new DynamicHeader(
+				DeflateHuffman.lengths(smoothForRunLength(litLenCounts), DeflateHuffman.MAX_BITS),
+				DeflateHuffman.lengths(smoothForRunLength(distanceCounts), DeflateHuffman.MAX_BITS));
+
+		final long plainBits = plain.bits + dataBits(litLenCounts, distanceCounts, plain.litLenLengths, plain.distanceLengths);
+		final long tunedBits = tuned.bits + dataBits(litLenCounts, distanceCounts, tuned.litLenLengths, tuned.distanceLengths);
+		return (tunedBits < plainBits) ? tuned : plain;
+	}
+
+	/*
+	 * A copy of the counts in which runs of similar counts are made equal,
+	 * following zopfli's OptimizeHuffmanForRle.  Equal counts get equal code
+	 * lengths, which the header codes as repeats.  Used symbols keep a
+	 * nonzero count, so they all still get codes.
+	 */
+	private static int[] smoothForRunLength(final int[] original)
+	{
+		final int[] counts = original.clone();
+		int length = counts.length;
+		while (length > 0 && counts[length - 1] == 0)
+			length--;
+		if (length == 0)
+			return counts;
+
+		// runs that already code as repeats are left alone
+		final boolean[] goodForRunLength = new boolean[length];
+		int symbol = counts[0];
+		int stride = 0;
+		for (int i = 0; i <= length; i++)
+		{
+			if (i == length || counts[i] != symbol)
+			{
+				if ((symbol == 0 && stride >= 5) || (symbol != 0 && stride >= 7))
+					Arrays.fill(goodForRunLength, i - stride, i, true);
+
+				stride = 1;
+				if (i != length)
+					symbol = counts[i];
+			}
+			else
+			{
+				stride++;
+			}
+		}
+
+		// other runs of counts near their average are replaced with the average
+		stride = 0;
+		long sum = 0;
+		long limit = counts[0];
+		for (int i = 0; i <= length; i++)
+		{
+			if (i == length || goodForRunLength[i] || Math.abs(counts[i] - limit) >= 4)
+			{
+				if (stride >= 4 || (stride >= 3 && sum == 0))
+				{
+					final int count = (sum == 0) ? 0 : (int) Math.max(1, (sum + stride / 2) / stride);
+					Arrays.fill(counts, i - stride, i, count);
+				}
+				stride = 0;
+				sum = 0;
+				if (i < length - 3)
+					limit = (counts[i] + counts[i + 1] + counts[i + 2] + counts[i + 3] + 2L) / 4;
+				else if (i < length)
+					limit = counts[i];
+				else
+					limit = 0;
+			}
+			stride++;
+			if (i != length)
+				sum += counts[i];
+		}
+		return counts;
+	}
+
+	/* The bits needed for data coded with the given lengths, including extra bits */
+	private static long dataBits(final int[] litLenCounts, final int[] distanceCounts, final int[] litLenLengths, final int[] distanceLengths)
+	{
+		long bits = 0;
+		for (int code = 0; code < litLenCounts.length; code++)
+			bits += (long) litLenCounts[code] * (litLenLengths[code] + DeflateSymbols.litLenCodeExtraBits(code));
+
+		for (int code = 0; code < distanceCounts.length; code++)
+			bits += (long) distanceCounts[code] * (distanceLengths[code] + DeflateSymbols.distanceExtraBits(code));
+
+		return bits;
+	}
+
+	/*
+	 * The bits needed to store the data, excluding the first 3 bit block
+	 * header.  The padding depends on where the block starts, so a negative
+	 * bit offset assumes the worst.
+	 */
+	private static long storedBits(final int byteLength, final int bitOffset)
+	{
+		final int blocks = Math.max(1, (byteLength + MAX_STORED_LENGTH - 1) / MAX_STORED_LENGTH);
+		final int padding = (bitOffset < 0) ? 7 : (8 - (bitOffset + 3) % 8) % 8;
+		return padding + (blocks - 1) * 8L + blocks * 32L + byteLength * 8L;
+	}
+
+	/**
+	 * The code lengths of a dynamic block and the run length coded header
+	 * that describes them.
+	 */
+	private static class DynamicHeader
+	{
+		/** */
+		private final int[] litLenLengths;
+		private final int[] distanceLengths;
+
+		/** */
+		private final int litLenCount;
+		private final int distanceCount;
+		private final int codeLengthCount;
+
+		/** */
+		private final int[] codeLengthLengths;
+		private final int[] runSymbols;
+		private final int[] runExtras;
+		private int runCount;
+
+		/** the size of the header in bits, excluding the 3 bit block header */
+		private final long bits;
+
+		/** */
+		public DynamicHeader(final int[] litLenLengths, final int[] distanceLengths)
+		{
+			this.litLenLengths = litLenLengths;
+			this.distanceLengths = distanceLengths;
+
+			int litLenCount = DeflateSymbols.LITERAL_LENGTH_CODES;
+			while (litLenCount > 257 && this.litLenLengths[litLenCount - 1] == 0)
+				litLenCount--;
+			int distanceCount = DeflateSymbols.DISTANCE_CODES;
+			while (distanceCount > 1 && this.distanceLengths[distanceCount - 1] == 0)
+				distanceCount--;
+			this.litLenCount = litLenCount;
+			this.distanceCount = distanceCount;
+
+			final int[] lengths = new int[litLenCount + distanceCount];
+			System.arraycopy(this.litLenLengths, 0, lengths, 0, litLenCount);
+			System.arraycopy(this.distanceLengths, 0, lengths, litLenCount, distanceCount);
+
+			this.runSymbols = new int[lengths.length];
+			this.runExtras = new int[lengths.length];
+			final int[] codeLengthCounts = new int[CODE_LENGTH_ORDER.length];
+			int i = 0;
+			while (i < lengths.length)
+			{
+				final int length = lengths[i];
+				int run = 1;
+				while (i + run < lengths.length && lengths[i + run] == length)
+					run++;
+
+				if (length == 0)
+				{
+					while (run >= 11)
+					{
+						final int repeat = Math.min(run, 138);
+						this.addRun(codeLengthCounts, 18, repeat - 11);
+						run -= repeat;
+						i += repeat;
+					}
+					if (run >= 3)
+					{
+						this.addRun(codeLengthCounts, 17, run - 3);
+						i += run;
+						run = 0;
+					}
+				}
+				else
+				{
+					this.addRun(codeLengthCounts, length, 0);
+					run--;
+					i++;
+					while (run >= 3)
+					{
+						final int repeat = Math.min(run, 6);
+						this.addRun(codeLengthCounts, 16, repeat - 3);
+						run -= repeat;
+						i += repeat;
+					}
+				}
+				for (; run > 0; run--, i++)
+					this.addRun(codeLengthCounts, length, 0);
+			}
+
+			this.codeLengthLengths = DeflateHuffman.lengths(codeLengthCounts, DeflateHuffman.MAX_CODE_LENGTH_BITS);
+			int codeLengthCount = CODE_LENGTH_ORDER.length;
+			while (codeLengthCount > 4 && this.codeLengthLengths[CODE_LENGTH_ORDER[codeLengthCount - 1]] == 0)
+				codeLengthCount--;
+			this.codeLengthCount = codeLengthCount;
+
+			long bits = 5 + 5 + 4 + 3 * codeLengthCount;
+			for (int run = 0; run < this.runCount; run++)
+				bits += this.codeLengthLengths[this.runSymbols[run]] + extraBits(this.runSymbols[run]);
+			this.bits = bits;
+		}
+
+		/** */
+		public void write(final DeflateBitWriter out)
+		{
+			out.writeBits(this.litLenCount - 257, 5);
+			out.writeBits(this.distanceCount - 1, 5);
+			out.writeBits(this.codeLengthCount - 4, 4);
+			for (int i = 0; i < this.codeLengthCount; i++)
+				out.writeBits(this.codeLengthLengths[CODE_LENGTH_ORDER[i]], 3);
+
+			final int[] codes = DeflateHuffman.codes(this.codeLengthLengths);
+			for (int run = 0; run < this.runCount; run++)
+			{
+				final int symbol = this.runSymbols[run];
+				out.writeBits(codes[symbol], this.codeLengthLengths[symbol]);
+				out.writeBits(this.runExtras[run], extraBits(symbol));
+			}
+		}
+
+		/* */
+		private void addRun(final int[] codeLengthCounts, final int symbol, final int extra)
+		{
+			codeLengthCounts[symbol]++;
+			this.runSymbols[this.runCount] = symbol;
+			this.runExtras[this.runCount] = extra;
+			this.runCount++;
+		}
+
+		/* */
+		private static int extraBits(final int symbol)
+		{
+			return (symbol == 16) ? 2 : ((symbol == 17) ? 3 : ((symbol == 18) ? 7 : 0));
+		}
+	}
+}
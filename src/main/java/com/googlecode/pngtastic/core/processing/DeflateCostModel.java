@@ -0,0 +1,93 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+/**
+ * Estimated cost in bits of each literal and match, used to find the
+ * cheapest parse.  The estimates come from the symbol statistics of an
+ * earlier parse, so each optimal parse can improve on the one before it.
+ */
+class DeflateCostModel
+{
+	/** */
+	private final float[] literalCosts = new float[256];
+	private final float[] lengthCosts = new float[DeflateMatchFinder.MAX_MATCH + 1];
+	private final float[] distanceCodeCosts = new float[DeflateSymbols.DISTANCE_CODES];
+
+	/**
+	 * Build a cost model from the symbol statistics of a parse.
+	 *
+	 * @param symbols The parse to take statistics from
+	 */
+	DeflateCostModel(final DeflateSymbols symbols)
+	{
+		final int[] litLenCounts = new int[DeflateSymbols.LITERAL_LENGTH_CODES];
+		final int[] distanceCounts = new int[DeflateSymbols.DISTANCE_CODES];
+		symbols.countCodes(0, symbols.size(), litLenCounts, distanceCounts);
+		this.setCounts(litLenCounts, distanceCounts);
+	}
+
+	/**
+	 * Build a cost model from literal/length and distance code counts.
+	 *
+	 * @param litLenCounts The number of times each literal/length code is used
+	 * @param distanceCounts The number of times each distance code is used
+	 */
+	DeflateCostModel(final int[] litLenCounts, final int[] distanceCounts)
+	{
+		this.setCounts(litLenCounts, distanceCounts);
+	}
+
+	/* */
+	private void setCounts(final int[] litLenCounts, final int[] distanceCounts)
+	{
+		final float[] litLenCosts = entropy(litLenCounts);
+		final float[] distanceCosts = entropy(distanceCounts);
+
+		System.arraycopy(litLenCosts, 0, this.literalCosts, 0, 256);
+		for (int length = DeflateMatchFinder.MIN_MATCH; length <= DeflateMatchFinder.MAX_MATCH; length++)
+			this.lengthCosts[length] = litLenCosts[DeflateSymbols.lengthSymbol(length)] + DeflateSymbols.lengthExtraBits(length);
+
+		for (int code = 0; code < DeflateSymbols.DISTANCE_CODES; code++)
+			this.distanceCodeCosts[code] = distanceCosts[code] + DeflateSymbols.distanceExtraBits(code);
+	}
+
+	/** */
+	float literalCost(final int literal)
+	{
+		return this.literalCosts[literal];
+	}
+
+	/** */
+	float lengthCost(final int length)
+	{
+		return this.lengthCosts[length];
+	}
+
+	/** */
+	float distanceCost(final int distance)
+	{
+		return this.distanceCodeCosts[DeflateSymbols.distanceCode(distance)];
+	}
+
+	/*
+	 * The ideal code length of each symbol, log2(total / count).  Unused
+	 * symbols cost as much as a symbol used once, so the parse may still
+	 * pick them if they save enough elsewhere.
+	 */
+	private static float[] entropy(final int[] counts)
+	{
+		long total = 0;
+		for (final int count : counts)
+			total += count;
+
+		final float[] costs = new float[counts.length];
+		final double log2Total = Math.log(Math.max(1, total)) / Math.log(2);
+		for (int i = 0; i < counts.length; i++)
+			costs[i] = (float) ((counts[i] == 0) ? log2Total : log2Total - Math.log(counts[i]) / Math.log(2));
+
+		return costs;
+	}
+}
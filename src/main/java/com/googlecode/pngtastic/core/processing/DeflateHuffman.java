@@ -0,0 +1,184 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Length limited Huffman codes for deflate.  Code lengths are computed with
+ * the package-merge algorithm, which gives optimal lengths under the limit
+ * rather than patching up an unlimited tree the way zlib does.
+ */
+final class DeflateHuffman
+{
+	/** */
+	static final int MAX_BITS = 15;
+	static final int MAX_CODE_LENGTH_BITS = 7;
+
+	/** */
+	static final int[] FIXED_LITERAL_LENGTH_LENGTHS = new int[288];
+	static final int[] FIXED_DISTANCE_LENGTHS = new int[32];
+
+	static
+	{
+		Arrays.fill(FIXED_LITERAL_LENGTH_LENGTHS, 0, 144, 8);
+		Arrays.fill(FIXED_LITERAL_LENGTH_LENGTHS, 144, 256, 9);
+		Arrays.fill(FIXED_LITERAL_LENGTH_LENGTHS, 256, 280, 7);
+		Arrays.fill(FIXED_LITERAL_LENGTH_LENGTHS, 280, 288, 8);
+		Arrays.fill(FIXED_DISTANCE_LENGTHS, 5);
+	}
+
+	/* */
+	private DeflateHuffman() { }
+
+	/**
+	 * Compute optimal code lengths no longer than maxBits for the given
+	 * symbol counts.  Symbols with a count of 0 get no code.  If fewer than
+	 * two symbols are used, unused symbols are given codes so that the code
+	 * is complete, which every inflater accepts.
+	 *
+	 * @param counts The number of times each symbol is used
+	 * @param maxBits The maximum code length
+	 * @return The code length of each symbol
+	 */
+	static int[] lengths(final int[] counts, final int maxBits)
+	{
+		final int[] lengths = new int[counts.length];
+
+		int used = 0;
+		for (final int count : counts)
+		{
+			if (count > 0)
+				used++;
+		}
+		if (used < 2)
+		{
+			int assigned = 0;
+			for (int i = 0; i < counts.length; i++)
+			{
+				if (counts[i] > 0)
+				{
+					lengths[i] = 1;
+					assigned++;
+				}
+			}
+			for (int i = 0; i < counts.length && assigned < 2; i++)
+			{
+				if (lengths[i] == 0)
+				{
+					lengths[i] = 1;
+					assigned++;
+				}
+			}
+			return lengths;
+		}
+
+		// leaves sorted by count, ties by symbol
+		final long[] leaves = new long[used];
+		for (int i = 0, n = 0; i < counts.length; i++)
+		{
+			if (counts[i] > 0)
+				leaves[n++] = ((long) counts[i] << 16) | i;
+		}
+		Arrays.sort(leaves);
+
+		// each level holds the leaves merged with the packages made from pairs of the level below
+		final List<int[]> children = new ArrayList<int[]>(maxBits);
+
+		long[] levelWeights = new long[used];
+		int[] levelChildren = new int[used];
+		for (int i = 0; i < used; i++)
+		{
+			levelWeights[i] = leaves[i] >>> 16;
+			levelChildren[i] = -1 - i;
+		}
+		children.add(levelChildren);
+
+		for (int level = 1; level < maxBits; level++)
+		{
+			final long[] below = levelWeights;
+			final int packages = below.length / 2;
+			levelWeights = new long[used + packages];
+			levelChildren = new int[used + packages];
+
+			int leaf = 0;
+			int pkg = 0;
+			for (int i = 0; i < levelWeights.length; i++)
+			{
+				final long packageWeight = (pkg < packages) ? below[2 * pkg] + below[2 * pkg + 1] : Long.MAX_VALUE;
+				if (leaf < used && (leaves[leaf] >>> 16) <= packageWeight)
+				{
+					levelWeights[i] = leaves[leaf] >>> 16;
+					levelChildren[i] = -1 - leaf;
+					leaf++;
+				}
+				else
+				{
+					levelWeights[i] = packageWeight;
+					levelChildren[i] = 2 * pkg;
+					pkg++;
+				}
+			}
+			children.add(levelChildren);
+		}
+
+		// every appearance of a leaf in the first 2n - 2 items of the top level adds a bit to its code
+		final int[] leafBits = new int[used];
+		int selected = 2 * used - 2;
+		for (int level = maxBits - 1; level >= 0; level--)
+		{
+			final int[] items = children.get(level);
+			int packageCount = 0;
+			for (int i = 0; i < selected; i++)
+			{
+				if (items[i] < 0)
+					leafBits[-1 - items[i]]++;
+				else
+					packageCount++;
+			}
+			// packages are made in order, so the selected ones use the first items of the level below
+			selected = 2 * packageCount;
+		}
+
+		for (int i = 0; i < used; i++)
+			lengths[(int) (leaves[i] & 0xffff)] = leafBits[i];
+
+		return lengths;
+	}
+
+	/**
+	 * Compute the canonical codes for the given code lengths, bit reversed so
+	 * they can be written least significant bit first.
+	 *
+	 * @param lengths The code length of each symbol
+	 * @return The code of each symbol
+	 */
+	static int[] codes(final int[] lengths)
+	{
+		final int[] lengthCounts = new int[MAX_BITS + 1];
+		for (final int length : lengths)
+			lengthCounts[length]++;
+		lengthCounts[0] = 0;
+
+		final int[] nextCode = new int[MAX_BITS + 1];
+		int code = 0;
+		for (int bits = 1; bits <= MAX_BITS; bits++)
+		{
+			code = (code + lengthCounts[bits - 1]) << 1;
+			nextCode[bits] = code;
+		}
+
+		final int[] codes = new int[lengths.length];
+		for (int symbol = 0; symbol < lengths.length; symbol++)
+		{
+			final int length = lengths[symbol];
+			if (length != 0)
+				codes[symbol] = Integer.reverse(nextCode[length]++) >>> (32 - length);
+		}
+		return codes;
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.util.Arrays;
+
+/**
+ * Index of the LZ77 matches available at every position of a range of data,
+ * built once so that any number of parses can be derived from it without
+ * searching again.
+ * <p>
+ * Positions are kept in a binary tree of the suffixes in the 32k window,
+ * as in LZMA's bt3 match finder, with the most recent position at the root.
+ * Walking down the tree visits ever older positions sharing ever longer
+ * prefixes with the current one, so a single walk finds the nearest match
+ * for every length.  Only the matches that are longer than every nearer
+ * match are kept, in order of increasing length and distance; the best
+ * distance for any length is that of the first kept match at least that long.
+ */
+class DeflateMatchFinder
+{
+	/** */
+	static final int MIN_MATCH = 3;
+	static final int MAX_MATCH = 258;
+	static final int WINDOW_SIZE = 32768;
+
+	/** */
+	private static final int HASH_BITS = 16;
+	private static final int CYCLIC_SIZE = WINDOW_SIZE + 1;
+
+	/** */
+	private final byte[] data;
+	public byte[] getData() { return this.data; }
+
+	/** */
+	private final int start;
+	public int getStart() { return this.start; }
+
+	/** */
+	private final int end;
+	public int getEnd() { return this.end; }
+
+	/** index of the first match of each position in matches, plus one past the last */
+	private final int[] matchStart;
+
+	/** packed (length << 16 | distance) */
+	private int[] matches;
+	private int matchCount;
+
+	/** the hash of the first three bytes to the most recent position starting with them */
+	private final int[] head = new int[1 << HASH_BITS];
+
+	/** the smaller and larger subtrees of each position in the window */
+	private final int[] children = new int[2 * CYCLIC_SIZE];
+
+	/**
+	 * Index the matches for the positions from start to end.  Matches may
+	 * reach back up to 32k before start, but never past end.
+	 *
+	 * @param data The data to index
+	 * @param start The first position to index
+	 * @param end One past the last position to index
+	 * @param maxDepth The number of earlier positions to compare each position with
+	 */
+	DeflateMatchFinder(final byte[] data, final int start, final int end, final int maxDepth)
+	{
+		this.data = data;
+		this.start = start;
+		this.end = end;
+		this.matchStart = new int[end - start + 1];
+		this.matches = new int[Math.max(16, end - start)];
+		Arrays.fill(this.head, -1);
+
+		for (int pos = Math.max(0, start - WINDOW_SIZE); pos < start; pos++)
+			this.insert(pos, Math.min(MAX_MATCH, end - pos), maxDepth, false);
+
+		for (int pos = start; pos < end; pos++)
+		{
+			this.matchStart[pos - start] = this.matchCount;
+			this.insert(pos, Math.min(MAX_MATCH, end - pos), maxDepth, true);
+		}
+		this.matchStart[end - start] = this.matchCount;
+	}
+
+	/** The index of the first match at the given position */
+	int firstMatch(final int pos)
+	{
+		return this.matchStart[pos - this.start];
+	}
+
+	/** One past the index of the last (longest) match at the given position */
+	int lastMatch(final int pos)
+	{
+		return this.matchStart[pos - this.start + 1];
+	}
+
+	/** */
+	int length(final int match)
+	{
+		return this.matches[match] >>> 16;
+	}
+
+	/** */
+	int distance(final int match)
+	{
+		return this.matches[match] & 0xffff;
+	}
+
+	/** The longest match length at the given position, or 0 if there is none */
+	int longestLength(final int pos)
+	{
+		final int last = this.lastMatch(pos);
+		return (last == this.firstMatch(pos)) ? 0 : this.length(last - 1);
+	}
+
+	/*
+	 * Insert a position at the root of the tree, splitting the old tree into
+	 * the suffixes that sort before and after it, and record the matches
+	 * met on the way down.
+	 */
+	private void insert(final int pos, final int lengthLimit, final int maxDepth, final boolean record)
+	{
+		if (lengthLimit < MIN_MATCH)
+			return;
+
+		final byte[] data = this.data;
+		final int[] children = this.children;
+		final int hash = hash(data, pos);
+		int candidate = this.head[hash];
+		this.head[hash] = pos;
+
+		final int cyclicPos = pos % CYCLIC_SIZE;
+		int smaller = cyclicPos << 1;
+		int larger = smaller + 1;
+		int smallerLength = 0;
+		int largerLength = 0;
+		int best = MIN_MATCH - 1;
+		int depth = maxDepth;
+		while (true)
+		{
+			final int distance = pos - candidate;
+			if (candidate < 0 || distance > WINDOW_SIZE || depth-- == 0)
+			{
+				children[smaller] = -1;
+				children[larger] = -1;
+				return;
+			}
+
+			final int pair = (cyclicPos - distance + ((distance > cyclicPos) ? CYCLIC_SIZE : 0)) << 1;
+			int length = Math.min(smallerLength, largerLength);
+			if (data[candidate + length] == data[pos + length])
+			{
+				while (++length < lengthLimit && data[candidate + length] == data[pos + length]);
+
+				if (length > best)
+				{
+					best = length;
+					if (record)
+						this.add(length, distance);
+				}
+				if (length == lengthLimit)
+				{
+					// the candidate is replaced by the new position, which it can't be told apart from
+					children[smaller] = children[pair];
+					children[larger] = children[pair + 1];
+					return;
+				}
+			}
+
+			if ((data[candidate + length] & 0xff) < (data[pos + length] & 0xff))
+			{
+				children[smaller] = candidate;
+				smaller = pair + 1;
+				candidate = children[smaller];
+				smallerLength = length;
+			}
+			else
+			{
+				children[larger] = candidate;
+				larger = pair;
+				candidate = children[larger];
+				largerLength = length;
+			}
+		}
+	}
+
+	/* */
+	private void add(final int length, final int distance)
+	{
+		if (this.matchCount == this.matches.length)
+			this.matches = Arrays.copyOf(this.matches, this.matches.length * 2);
+
+		this.matches[this.matchCount++] = (length << 16) | distance;
+	}
+
+	/* */
+	private static int hash(final byte[] data, final int pos)
+	{
+		final int bytes = ((data[pos] & 0xff) << 16) | ((data[pos + 1] & 0xff) << 8) | (data[pos + 2] & 0xff);
+		return (bytes * 0x9e3779b1) >>> (32 - HASH_BITS);
+	}
+}
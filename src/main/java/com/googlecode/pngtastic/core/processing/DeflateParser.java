@@ -0,0 +1,182 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.util.Arrays;
+
+/**
+ * Turns a match index into LZ77 parses.  The greedy and lazy parses match
+ * what zlib does at its fast and default levels; the optimal parse finds the
+ * cheapest sequence of literals and matches under a cost model.
+ */
+final class DeflateParser
+{
+	/* */
+	private DeflateParser() { }
+
+	/**
+	 * Literals only, no string matching at all.
+	 */
+	static DeflateSymbols literals(final byte[] data, final int start, final int end)
+	{
+		final DeflateSymbols symbols = new DeflateSymbols(end - start);
+		for (int pos = start; pos < end; pos++)
+			symbols.addLiteral(data[pos] & 0xff);
+
+		return symbols;
+	}
+
+	/**
+	 * Always take the longest match.
+	 */
+	static DeflateSymbols greedy(final DeflateMatchFinder finder)
+	{
+		final byte[] data = finder.getData();
+		final DeflateSymbols symbols = new DeflateSymbols((finder.getEnd() - finder.getStart()) / 2);
+
+		int pos = finder.getStart();
+		while (pos < finder.getEnd())
+		{
+			final int length = finder.longestLength(pos);
+			if (length >= DeflateMatchFinder.MIN_MATCH)
+			{
+				symbols.addMatch(length, finder.distance(finder.lastMatch(pos) - 1));
+				pos += length;
+			}
+			else
+			{
+				symbols.addLiteral(data[pos] & 0xff);
+				pos++;
+			}
+		}
+		return symbols;
+	}
+
+	/**
+	 * Take the longest match unless the match starting at the next position
+	 * is longer, in which case emit a literal and look again from there.
+	 */
+	static DeflateSymbols lazy(final DeflateMatchFinder finder)
+	{
+		final byte[] data = finder.getData();
+		final DeflateSymbols symbols = new DeflateSymbols((finder.getEnd() - finder.getStart()) / 2);
+
+		int pos = finder.getStart();
+		while (pos < finder.getEnd())
+		{
+			final int length = finder.longestLength(pos);
+			if (length >= DeflateMatchFinder.MIN_MATCH && (pos + 1 >= finder.getEnd() || finder.longestLength(pos + 1) <= length))
+			{
+				symbols.addMatch(length, finder.distance(finder.lastMatch(pos) - 1));
+				pos += length;
+			}
+			else
+			{
+				symbols.addLiteral(data[pos] & 0xff);
+				pos++;
+			}
+		}
+		return symbols;
+	}
+
+	/**
+	 * Find the parse with the lowest total cost under the given model, by
+	 * a shortest path search over every position and every match length.
+	 * Where a match runs the full 258 bytes only that length is tried, which
+	 * keeps long runs of repeated data from costing 258 steps per byte.
+	 */
+	static DeflateSymbols optimal(final DeflateMatchFinder finder, final DeflateCostModel model)
+	{
+		return optimal(finder, model, finder.getStart(), finder.getEnd());
+	}
+
+	/**
+	 * The optimal parse of the part of the finder's range from start to end.
+	 * Matches found there may run past end, so only those that fit are used.
+	 */
+	static DeflateSymbols optimal(final DeflateMatchFinder finder, final DeflateCostModel model, final int start, final int end)
+	{
+		final byte[] data = finder.getData();
+		final int length = end - start;
+
+		final float[] costs = new float[length + 1];
+		final int[] arrivalLengths = new int[length + 1];
+		final int[] arrivalDistances = new int[length + 1];
+		Arrays.fill(costs, Float.MAX_VALUE);
+		costs[0] = 0;
+
+		for (int i = 0; i < length; i++)
+		{
+			final int pos = start + i;
+			final float cost = costs[i];
+
+			final float literalCost = cost + model.literalCost(data[pos] & 0xff);
+			if (literalCost < costs[i + 1])
+			{
+				costs[i + 1] = literalCost;
+				arrivalLengths[i + 1] = 1;
+				arrivalDistances[i + 1] = 0;
+			}
+
+			final int first = finder.firstMatch(pos);
+			final int last = finder.lastMatch(pos);
+			if (first == last)
+				continue;
+
+			final int room = length - i;
+			if (finder.length(last - 1) == DeflateMatchFinder.MAX_MATCH && room >= DeflateMatchFinder.MAX_MATCH)
+			{
+				final int distance = finder.distance(last - 1);
+				final float matchCost = cost + model.lengthCost(DeflateMatchFinder.MAX_MATCH) + model.distanceCost(distance);
+				final int to = i + DeflateMatchFinder.MAX_MATCH;
+				if (matchCost < costs[to])
+				{
+					costs[to] = matchCost;
+					arrivalLengths[to] = DeflateMatchFinder.MAX_MATCH;
+					arrivalDistances[to] = distance;
+				}
+				continue;
+			}
+
+			int matchLength = DeflateMatchFinder.MIN_MATCH;
+			for (int match = first; match < last && matchLength <= room; match++)
+			{
+				final int distance = finder.distance(match);
+				final float distanceCost = cost + model.distanceCost(distance);
+				for (final int longest = Math.min(room, finder.length(match)); matchLength <= longest; matchLength++)
+				{
+					final float matchCost = distanceCost + model.lengthCost(matchLength);
+					if (matchCost < costs[i + matchLength])
+					{
+						costs[i + matchLength] = matchCost;
+						arrivalLengths[i + matchLength] = matchLength;
+						arrivalDistances[i + matchLength] = distance;
+					}
+				}
+			}
+		}
+
+		// walk back from the end to recover the path, then emit it forwards
+		int count = 0;
+		for (int i = length; i > 0; i -= arrivalLengths[i])
+			count++;
+
+		final int[] path = new int[count];
+		for (int i = length, n = count; i > 0; i -= arrivalLengths[i])
+			path[--n] = i;
+
+		final DeflateSymbols symbols = new DeflateSymbols(count);
+		int previous = 0;
+		for (final int to : path)
+		{
+			if (arrivalDistances[to] == 0)
+				symbols.addLiteral(data[start + previous] & 0xff);
+			else
+				symbols.addMatch(arrivalLengths[to], arrivalDistances[to]);
+			previous = to;
+		}
+		return symbols;
+	}
+}
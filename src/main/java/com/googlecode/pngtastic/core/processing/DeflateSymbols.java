@@ -0,0 +1,198 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.util.Arrays;
+
+/**
+ * An LZ77 parse of a range of data: a sequence of literals and
+ * (length, distance) matches, along with the deflate symbol tables needed
+ * to code them.
+ *
+ * @see <a href="http://www.ietf.org/rfc/rfc1951.txt">RFC 1951</a>
+ */
+class DeflateSymbols
+{
+	/** */
+	static final int END_OF_BLOCK = 256;
+	static final int LITERAL_LENGTH_CODES = 286;
+	static final int DISTANCE_CODES = 30;
+
+	/** */
+	private static final int[] LENGTH_BASE = new int[] {
+		3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+	private static final int[] LENGTH_EXTRA = new int[] {
+		0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] DISTANCE_BASE = new int[] {
+		1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final int[] DISTANCE_EXTRA = new int[] {
+		0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+
+	/** symbol, extra bit count and extra bit value for each match length */
+	private static final int[] lengthSymbol = new int[DeflateMatchFinder.MAX_MATCH + 1];
+	private static final int[] lengthExtraBits = new int[DeflateMatchFinder.MAX_MATCH + 1];
+	private static final int[] lengthExtraValue = new int[DeflateMatchFinder.MAX_MATCH + 1];
+
+	/** distance code for each distance */
+	private static final byte[] distanceCode = new byte[DeflateMatchFinder.WINDOW_SIZE + 1];
+
+	static
+	{
+		for (int code = 0; code < LENGTH_BASE.length; code++)
+		{
+			final int last = (code == LENGTH_BASE.length - 1) ? LENGTH_BASE[code] : LENGTH_BASE[code] + (1 << LENGTH_EXTRA[code]) - 1;
+			for (int length = LENGTH_BASE[code]; length <= last; length++)
+			{
+				lengthSymbol[length] = 257 + code;
+				lengthExtraBits[length] = LENGTH_EXTRA[code];
+				lengthExtraValue[length] = length - LENGTH_BASE[code];
+			}
+		}
+		// 258 has its own code, even though 284 with all extra bits set could also express it
+		lengthSymbol[258] = 285;
+		lengthExtraBits[258] = 0;
+		lengthExtraValue[258] = 0;
+
+		for (int code = 0; code < DISTANCE_BASE.length; code++)
+		{
+			final int last = Math.min(DeflateMatchFinder.WINDOW_SIZE, DISTANCE_BASE[code] + (1 << DISTANCE_EXTRA[code]) - 1);
+			for (int distance = DISTANCE_BASE[code]; distance <= last; distance++)
+				distanceCode[distance] = (byte) code;
+		}
+	}
+
+	/** literal byte or match length, and 0 or match distance */
+	private int[] litLens;
+	private int[] distances;
+
+	/** */
+	private int size;
+	public int size() { return this.size; }
+
+	/** */
+	DeflateSymbols(final int capacity)
+	{
+		this.litLens = new int[Math.max(16, capacity)];
+		this.distances = new int[this.litLens.length];
+	}
+
+	/** */
+	void addLiteral(final int literal)
+	{
+		this.add(literal, 0);
+	}
+
+	/** */
+	void addMatch(final int length, final int distance)
+	{
+		this.add(length, distance);
+	}
+
+	/** Add all the symbols of another parse after these */
+	void append(final DeflateSymbols other)
+	{
+		for (int i = 0; i < other.size; i++)
+			this.add(other.litLens[i], other.distances[i]);
+	}
+
+	/** The literal byte, or the match length */
+	int litLen(final int i)
+	{
+		return this.litLens[i];
+	}
+
+	/** The match distance, or 0 for a literal */
+	int distance(final int i)
+	{
+		return this.distances[i];
+	}
+
+	/** The number of bytes the symbol at i covers */
+	int byteLength(final int i)
+	{
+		return (this.distances[i] == 0) ? 1 : this.litLens[i];
+	}
+
+	/** The literal/length code of the symbol at i */
+	int litLenCode(final int i)
+	{
+		return (this.distances[i] == 0) ? this.litLens[i] : lengthSymbol[this.litLens[i]];
+	}
+
+	/** Count the literal/length and distance codes of the symbols from..to; the end of block code is counted once */
+	void countCodes(final int from, final int to, final int[] litLenCounts, final int[] distanceCounts)
+	{
+		Arrays.fill(litLenCounts, 0);
+		Arrays.fill(distanceCounts, 0);
+		for (int i = from; i < to; i++)
+		{
+			if (this.distances[i] == 0)
+			{
+				litLenCounts[this.litLens[i]]++;
+			}
+			else
+			{
+				litLenCounts[lengthSymbol[this.litLens[i]]]++;
+				distanceCounts[distanceCode[this.distances[i]]]++;
+			}
+		}
+		litLenCounts[END_OF_BLOCK]++;
+	}
+
+	/* */
+	private void add(final int litLen, final int distance)
+	{
+		if (this.size == this.litLens.length)
+		{
+			this.litLens = Arrays.copyOf(this.litLens, this.size * 2);
+			this.distances = Arrays.copyOf(this.distances, this.size * 2);
+		}
+		this.litLens[this.size] = litLen;
+		this.distances[this.size] = distance;
+		this.size++;
+	}
+
+	/** */
+	static int lengthSymbol(final int length)
+	{
+		return lengthSymbol[length];
+	}
+
+	/** */
+	static int lengthExtraBits(final int length)
+	{
+		return lengthExtraBits[length];
+	}
+
+	/** */
+	static int lengthExtraValue(final int length)
+	{
+		return lengthExtraValue[length];
+	}
+
+	/** The number of extra bits that follow the given literal/length code */
+	static int litLenCodeExtraBits(final int code)
+	{
+		return (code <= END_OF_BLOCK) ? 0 : LENGTH_EXTRA[code - 257];
+	}
+
+	/** */
+	static int distanceCode(final int distance)
+	{
+		return distanceCode[distance];
+	}
+
+	/** */
+	static int distanceExtraBits(final int code)
+	{
+		return DISTANCE_EXTRA[code];
+	}
+
+	/** */
+	static int distanceExtraValue(final int distance)
+	{
+		return distance - DISTANCE_BASE[distanceCode[distance]];
+	}
+}
@@ -14,8 +14,12 @@ import java.io.IOException;
  */
 public interface PngCompressionHandler
 {
+	/** the image data is held in a single array, so it can never inflate to more than this */
+	public static final long DEFAULT_MAX_INFLATED_SIZE = Integer.MAX_VALUE - 8;
+
 	/**
-	 * Inflate (decompress) the compressed image data
+	 * Inflate (decompress) the compressed image data, up to
+	 * {@link #DEFAULT_MAX_INFLATED_SIZE} bytes.
 	 *
 	 * @param deflatedImageData A stream containing the compressed image data
 	 * @return A byte array containing the uncompressed data
@@ -23,6 +27,18 @@ public interface PngCompressionHandler
 	 */
 	public byte[] inflate(ByteArrayOutputStream deflatedImageData) throws IOException;
 
+	/**
+	 * Inflate (decompress) the compressed image data, stopping at the most
+	 * the image's header allows, so that data inflating far beyond what the
+	 * header claims can't exhaust the heap.
+	 *
+	 * @param deflatedImageData A stream containing the compressed image data
+	 * @param maxInflatedSize The most bytes to inflate; any beyond are ignored
+	 * @return A byte array containing the uncompressed data
+	 * @throws IOException
+	 */
+	public byte[] inflate(ByteArrayOutputStream deflatedImageData, long maxInflatedSize) throws IOException;
+
 	/**
 	 * Deflate (compress) the inflated data using the given compression level.
 	 * If compressionLevel is null then do a brute force trial of all
@@ -38,6 +38,31 @@ public interface PngFilterHandler
 	 */
 	public void applyAdaptiveFiltering(byte[] inflatedImageData, List<byte[]> scanlines, Map<PngFilterType, List<byte[]>> filteredScanLines, int sampleSize) throws IOException;
 
+	/**
+	 * Choose a filter type for every row with each of the given heuristics.
+	 * The statistics of every filtered row are gathered once and shared by
+	 * all the heuristics.
+	 *
+	 * @param filteredScanLines The scanlines already filtered with each standard filter type
+	 * @param heuristics The heuristics to choose filter types with
+	 * @return The filter type chosen for each row, for each heuristic
+	 */
+	public Map<PngFilterHeuristic, PngFilterType[]> chooseAdaptiveFilters(Map<PngFilterType, List<byte[]>> filteredScanLines, List<PngFilterHeuristic> heuristics);
+
+	/**
+	 * Apply adaptive filtering, choosing the filter for each row by how many
+	 * bytes it actually adds to a deflate stream holding the rows chosen
+	 * before it.  Much slower than {@link #applyAdaptiveFiltering}, but it
+	 * measures the real cost rather than guessing at it.
+	 *
+	 * @param scanlines The unfiltered scanlines, filtered in place
+	 * @param filteredScanLines The scanlines already filtered with each standard filter type
+	 * @param sampleBitCount The number of bits per sample
+	 * @param compressionLevel The compression level used to measure each row, or null for the best
+	 * @throws IOException
+	 */
+	public void applyDeflateCostFiltering(List<byte[]> scanlines, Map<PngFilterType, List<byte[]>> filteredScanLines, int sampleBitCount, Integer compressionLevel) throws IOException;
+
 	/**
 	 * Do filtering as described in the png spec:
 	 * The scanline starts with a filter type byte, then continues with the image data.
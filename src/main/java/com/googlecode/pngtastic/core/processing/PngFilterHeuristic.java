@@ -0,0 +1,28 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import com.googlecode.pngtastic.core.PngFilterType;
+
+/**
+ * Scores a filtered scanline so adaptive filtering can pick a filter type
+ * for each row without compressing anything.  Implementations only see the
+ * statistics gathered in the single pass over the filtered rows, so adding a
+ * heuristic doesn't add another pass over the image data.
+ *
+ * @see PngtasticFilterHeuristic
+ */
+public interface PngFilterHeuristic
+{
+	/**
+	 * Score a row filtered with the given filter type; lower is better.
+	 *
+	 * @param statistics The statistics of the row after filtering
+	 * @param filterType The filter type the row was filtered with
+	 * @param previousFilterType The filter type this heuristic chose for the previous row, or null for the first row
+	 * @return The cost of using the filter type for this row
+	 */
+	public double score(PngScanlineStatistics statistics, PngFilterType filterType, PngFilterType previousFilterType);
+}
@@ -24,6 +24,28 @@ public interface PngInterlaceHandler {
 	 */
 	public List<byte[]> interlace(int width, int height, int sampleBitCount, byte[] inflatedImageData);
 
+	/**
+	 * Do png interlacing on the data given into a single buffer
+	 *
+	 * @param width The image width
+	 * @param height The image height
+	 * @param sampleBitCount The number of bits per sample
+	 * @param inflatedImageData The uncompressed, unfiltered image data, not interlaced
+	 * @return The scanlines of the seven passes one after another, each with filter type 0
+	 */
+	public byte[] interlaceImageData(int width, int height, int sampleBitCount, byte[] inflatedImageData);
+
+	/**
+	 * Split interlaced scanlines into the seven passes, each of which is
+	 * filtered as an image of its own
+	 *
+	 * @param width The image width
+	 * @param height The image height
+	 * @param interlacedScanlines The scanlines returned by interlace
+	 * @return The scanlines of each pass, empty for passes with no pixels
+	 */
+	public List<List<byte[]>> getPasses(int width, int height, List<byte[]> interlacedScanlines);
+
 	/**
 	 * Do png deinterlacing on the given data
 	 *
@@ -35,4 +57,15 @@ public interface PngInterlaceHandler {
 	 */
 	public List<byte[]> deInterlace(int width, int height, int sampleBitCount, byte[] inflatedImageData);
 
+	/**
+	 * Do png deinterlacing on the given data into a single buffer
+	 *
+	 * @param width The image width
+	 * @param height The image height
+	 * @param sampleBitCount The number of bits per sample
+	 * @param inflatedImageData The uncompressed image data, in interlaced form
+	 * @return The image data as non-interlaced scanlines, each with filter type 0
+	 */
+	public byte[] deInterlaceImageData(int width, int height, int sampleBitCount, byte[] inflatedImageData);
+
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+/**
+ * Statistics of one filtered scanline, gathered in a single pass and shared
+ * by every {@link PngFilterHeuristic}.  Instances are reset and reused from
+ * row to row.
+ */
+public class PngScanlineStatistics
+{
+	/** */
+	private final int[] histogram = new int[256];
+
+	/** */
+	private int length;
+	public int getLength() { return this.length; }
+
+	/** */
+	private long sumOfAbsoluteValues;
+	public long getSumOfAbsoluteValues() { return this.sumOfAbsoluteValues; }
+
+	/** */
+	private int distinctByteCount;
+	public int getDistinctByteCount() { return this.distinctByteCount; }
+
+	/** */
+	private double entropy = -1;
+
+	/**
+	 * Gather the statistics of a filtered scanline, skipping its filter type byte.
+	 *
+	 * @param scanline The filtered scanline
+	 */
+	public void collect(final byte[] scanline)
+	{
+		for (int i = 0; i < this.histogram.length; i++)
+			this.histogram[i] = 0;
+
+		long sum = 0;
+		int distinct = 0;
+		for (int i = 1; i < scanline.length; i++)
+		{
+			final byte b = scanline[i];
+			sum += (b < 0) ? -b : b;
+			if (this.histogram[b & 0xff]++ == 0)
+				distinct++;
+		}
+		this.length = scanline.length - 1;
+		this.sumOfAbsoluteValues = sum;
+		this.distinctByteCount = distinct;
+		this.entropy = -1;
+	}
+
+	/**
+	 * The Shannon entropy of the row's bytes, in bits for the whole row.
+	 * Computed from the histogram on first use, so heuristics that don't ask
+	 * for it don't pay for it.
+	 *
+	 * @return The number of bits an order-0 entropy coder would need for the row
+	 */
+	public double getEntropy()
+	{
+		if (this.entropy < 0)
+		{
+			double bits = 0;
+			if (this.length > 0)
+			{
+				final double logLength = Math.log(this.length);
+				for (final int count : this.histogram)
+				{
+					if (count > 0)
+						bits += count * (logLength - Math.log(count));
+				}
+				bits /= Math.log(2);
+			}
+			this.entropy = bits;
+		}
+		return this.entropy;
+	}
+}
@@ -7,6 +7,7 @@ package com.googlecode.pngtastic.core.processing;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -44,14 +45,28 @@ public class PngtasticCompressionHandler implements PngCompressionHandler
 	 * @inheritDoc
 	 */
 	public byte[] inflate(final ByteArrayOutputStream imageBytes) throws IOException
+	{
+		return this.inflate(imageBytes, DEFAULT_MAX_INFLATED_SIZE);
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public byte[] inflate(final ByteArrayOutputStream imageBytes, final long maxInflatedSize) throws IOException
 	{
 		final InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(imageBytes.toByteArray()));
 		final ByteArrayOutputStream inflatedOut = new ByteArrayOutputStream();
 
 		int readLength;
+		long remaining = maxInflatedSize;
 		final byte[] block = new byte[8192];
-		while ((readLength = inflater.read(block)) != -1)
+		while (remaining > 0 && (readLength = inflater.read(block, 0, (int) Math.min(block.length, remaining))) != -1)
+		{
 			inflatedOut.write(block, 0, readLength);
+			remaining -= readLength;
+		}
+		if (remaining == 0 && inflater.read() != -1)
+			this.log.debug("Ignoring image data beyond the %d bytes the header allows", maxInflatedSize);
 
 		final byte[] inflatedImageData = inflatedOut.toByteArray();
 		return inflatedImageData;
@@ -71,6 +86,8 @@ public class PngtasticCompressionHandler implements PngCompressionHandler
 			if (result == null || (data.length < result.length))
 				result = data;
 		}
+		if (result == null)
+			throw new IOException("Every compression strategy failed");
 		this.log.debug("Image bytes=%d", result.length);
 
 		return result;
@@ -79,9 +96,10 @@ public class PngtasticCompressionHandler implements PngCompressionHandler
 	/*
 	 * Do the work of deflating (compressing) the image data with the
 	 * different compression strategies in separate threads to take
-	 * advantage of multiple core architectures.
+	 * advantage of multiple core architectures.  Interrupted, it throws
+	 * rather than return the strategies that happened to finish.
 	 */
-	private List<byte[]> deflateImageDataConcurrently(final byte[] inflatedImageData, final Integer compressionLevel)
+	private List<byte[]> deflateImageDataConcurrently(final byte[] inflatedImageData, final Integer compressionLevel) throws InterruptedIOException
 	{
 		final Collection<byte[]> results = new ConcurrentLinkedQueue<byte[]>();
 
@@ -109,7 +127,12 @@ public class PngtasticCompressionHandler implements PngCompressionHandler
 		{
 			compressionThreadPool.invokeAll(tasks);
 		}
-		catch (final InterruptedException ex) {  }
+		catch (final InterruptedException ex)
+		{
+			// the strategies not yet done are cancelled
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing image data");
+		}
 		finally
 		{
 			compressionThreadPool.shutdown();
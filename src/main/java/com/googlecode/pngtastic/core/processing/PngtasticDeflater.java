@@ -0,0 +1,196 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import com.googlecode.pngtastic.core.Logger;
+
+/**
+ * A deflate encoder written in plain Java that produces zlib streams.
+ * <p>
+ * Where brute forcing java.util.zip runs zlib's match finder from scratch
+ * for every strategy and level, this finds the matches at every position
+ * once, derives several parses from them (literals only, greedy, lazy and
+ * cost based optimal parses, each optimal pass using the statistics of the
+ * cheapest parse before it), and codes each parse with several block sizes
+ * using optimal length limited Huffman codes.  The smallest combination is
+ * written.
+ */
+public class PngtasticDeflater
+{
+	/** */
+	private final Logger log;
+
+	/** the number of symbols per block tried when coding each parse */
+	private static final int[] BLOCK_SIZES = new int[] { 2048, 8192, 16383, 65536 };
+
+	/** the match finder depth used at each compression level, and with no level */
+	private static final int[] MAX_DEPTH = new int[] { 0, 4, 8, 16, 16, 24, 32, 48, 64, 128, 256 };
+
+	/** */
+	private final int maxDepth;
+	private final boolean lazy;
+	private final int optimalPasses;
+
+	/**
+	 * Create an encoder whose effort follows the zlib compression levels:
+	 * 0 does no string matching, 1-3 take the longest match greedily, 4-6
+	 * also try a lazy parse, and 7-9 add an optimal parse.  A null level
+	 * searches hardest and makes two optimal passes.
+	 *
+	 * @param log The logger
+	 * @param compressionLevel The compression level, or null for the most effort
+	 */
+	public PngtasticDeflater(final Logger log, final Integer compressionLevel)
+	{
+		this.log = log;
+
+		final int level = (compressionLevel == null || compressionLevel > 9) ? 10 : Math.max(0, compressionLevel);
+		this.maxDepth = MAX_DEPTH[level];
+		this.lazy = level >= 4;
+		this.optimalPasses = (level <= 6) ? 0 : ((level <= 9) ? 1 : 2);
+	}
+
+	/**
+	 * Compress the data into a zlib stream.
+	 *
+	 * @param data The data to compress
+	 * @return The zlib stream
+	 */
+	public byte[] deflate(final byte[] data)
+	{
+		final Candidate best = new Candidate();
+		best.consider("literals", DeflateParser.literals(data, 0, data.length));
+		if (this.maxDepth > 0)
+		{
+			final DeflateMatchFinder finder = new DeflateMatchFinder(data, 0, data.length, this.maxDepth);
+			best.consider("greedy", DeflateParser.greedy(finder));
+			if (this.lazy)
+				best.consider("lazy", DeflateParser.lazy(finder));
+
+			for (int pass = 0; pass < this.optimalPasses; pass++)
+				best.consider("optimal " + (pass + 1), DeflateParser.optimal(finder, new DeflateCostModel(best.parse)));
+		}
+
+		final DeflateBitWriter out = new DeflateBitWriter((int) (best.bits / 8) + 16);
+		writeHeader(out);
+		writeBlocks(out, best.parse, best.blockSize, data, 0, data.length, true);
+		out.alignToByte();
+		writeTrailer(out, adler32(1, data, 0, data.length));
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * The cheapest parse and block size seen so far.
+	 */
+	private class Candidate
+	{
+		/** */
+		private DeflateSymbols parse;
+		private int blockSize;
+		private long bits = Long.MAX_VALUE;
+
+		/** */
+		public void consider(final String name, final DeflateSymbols symbols)
+		{
+			for (final int size : BLOCK_SIZES)
+			{
+				final long cost = cost(symbols, size);
+				PngtasticDeflater.this.log.debug("Deflate parse: %s, block size=%d, bytes=%d", name, size, (cost + 7) / 8);
+				if (cost < this.bits)
+				{
+					this.parse = symbols;
+					this.blockSize = size;
+					this.bits = cost;
+				}
+			}
+		}
+	}
+
+	/* The size in bits of a parse coded in blocks of blockSize symbols */
+	static long cost(final DeflateSymbols symbols, final int blockSize)
+	{
+		long bits = 0;
+		int from = 0;
+		do
+		{
+			final int to = Math.min(symbols.size(), from + blockSize);
+			int byteLength = 0;
+			for (int i = from; i < to; i++)
+				byteLength += symbols.byteLength(i);
+
+			bits += DeflateBlockWriter.cost(symbols, from, to, byteLength);
+			from = to;
+		}
+		while (from < symbols.size());
+
+		return bits;
+	}
+
+	/* Write a parse of data[start..end) in blocks of blockSize symbols */
+	static void writeBlocks(final DeflateBitWriter out, final DeflateSymbols symbols, final int blockSize,
+			final byte[] data, final int start, final int end, final boolean last)
+	{
+		int from = 0;
+		int byteStart = start;
+		do
+		{
+			final int to = Math.min(symbols.size(), from + blockSize);
+			int byteEnd = byteStart;
+			for (int i = from; i < to; i++)
+				byteEnd += symbols.byteLength(i);
+
+			DeflateBlockWriter.write(out, symbols, from, to, data, byteStart, byteEnd, last && to == symbols.size());
+			from = to;
+			byteStart = byteEnd;
+		}
+		while (from < symbols.size());
+	}
+
+	/* The zlib header: deflate with a 32k window, maximum compression */
+	static void writeHeader(final DeflateBitWriter out)
+	{
+		out.writeBits(0x78, 8);
+		out.writeBits(0xda, 8);
+	}
+
+	/* The zlib trailer: the adler32 checksum of the uncompressed data, most significant byte first */
+	static void writeTrailer(final DeflateBitWriter out, final long adler32)
+	{
+		for (int shift = 24; shift >= 0; shift -= 8)
+			out.writeBits((int) (adler32 >>> shift) & 0xff, 8);
+	}
+
+	/**
+	 * Update an adler32 checksum with the given data.
+	 *
+	 * @param adler32 The checksum so far, 1 to start a new one
+	 * @param data The data
+	 * @param offset The start of the data to add
+	 * @param length The number of bytes to add
+	 * @return The updated checksum
+	 */
+	static long adler32(final long adler32, final byte[] data, final int offset, final int length)
+	{
+		long a = adler32 & 0xffff;
+		long b = (adler32 >>> 16) & 0xffff;
+
+		int pos = offset;
+		final int end = offset + length;
+		while (pos < end)
+		{
+			// 5552 is the most bytes that can be summed before b may overflow 32 bits
+			final int chunkEnd = Math.min(end, pos + 5552);
+			for (; pos < chunkEnd; pos++)
+			{
+				a += data[pos] & 0xff;
+				b += a;
+			}
+			a %= 65521;
+			b %= 65521;
+		}
+		return (b << 16) | a;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.googlecode.pngtastic.core.Logger;
+
+/**
+ * Implements PNG compression with {@link PngtasticDeflater}, the pure Java
+ * deflate encoder, instead of java.util.zip.  Decompression still goes
+ * through java.util.zip.
+ */
+public class PngtasticDeflaterCompressionHandler implements PngCompressionHandler
+{
+	/** */
+	private final Logger log;
+
+	/** */
+	private final PngCompressionHandler inflater;
+
+	/** */
+	public PngtasticDeflaterCompressionHandler(final Logger log)
+	{
+		this.log = log;
+		this.inflater = new PngtasticCompressionHandler(log);
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public byte[] inflate(final ByteArrayOutputStream imageBytes) throws IOException
+	{
+		return this.inflate(imageBytes, DEFAULT_MAX_INFLATED_SIZE);
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public byte[] inflate(final ByteArrayOutputStream imageBytes, final long maxInflatedSize) throws IOException
+	{
+		return this.inflater.inflate(imageBytes, maxInflatedSize);
+	}
+
+	/**
+	 * @inheritDoc
+	 *
+	 * Rather than trying every level, a null compression level makes the
+	 * encoder search hardest, which finds everything the lower levels would.
+	 */
+	public byte[] deflate(final byte[] inflatedImageData, final Integer compressionLevel) throws IOException
+	{
+		final byte[] result = new PngtasticDeflater(this.log, compressionLevel).deflate(inflatedImageData);
+		this.log.debug("Image bytes=%d", result.length);
+
+		return result;
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import com.googlecode.pngtastic.core.PngFilterType;
+
+/**
+ * The adaptive filter heuristics that come with pngtastic.  None of them is
+ * best for every image, so the optimizer can try several and keep whichever
+ * compresses smallest.
+ */
+public enum PngtasticFilterHeuristic implements PngFilterHeuristic
+{
+	/**
+	 * Minimum sum of absolute differences, treating filtered bytes as signed.
+	 * This is the heuristic suggested by the png spec.
+	 */
+	MINIMUM_SUM
+	{
+		public double score(final PngScanlineStatistics statistics, final PngFilterType filterType, final PngFilterType previousFilterType)
+		{
+			return statistics.getSumOfAbsoluteValues();
+		}
+	},
+
+	/** Lowest order-0 Shannon entropy of the row's bytes */
+	ENTROPY
+	{
+		public double score(final PngScanlineStatistics statistics, final PngFilterType filterType, final PngFilterType previousFilterType)
+		{
+			return statistics.getEntropy();
+		}
+	},
+
+	/** Fewest distinct byte values, ties broken by the minimum sum */
+	DISTINCT_BYTES
+	{
+		public double score(final PngScanlineStatistics statistics, final PngFilterType filterType, final PngFilterType previousFilterType)
+		{
+			return statistics.getDistinctByteCount() + statistics.getSumOfAbsoluteValues() / (128D * statistics.getLength() + 1);
+		}
+	},
+
+	/**
+	 * Minimum sum, discounted when the filter type is the same as the one
+	 * chosen for the previous row.  Runs of the same filter tend to leave
+	 * longer repeated sequences for deflate to match.
+	 */
+	WEIGHTED_SUM
+	{
+		public double score(final PngScanlineStatistics statistics, final PngFilterType filterType, final PngFilterType previousFilterType)
+		{
+			final double sum = statistics.getSumOfAbsoluteValues();
+			return (filterType == previousFilterType) ? sum * PREVIOUS_FILTER_WEIGHT : sum;
+		}
+	};
+
+	/** */
+	private static final double PREVIOUS_FILTER_WEIGHT = 0.9;
+}
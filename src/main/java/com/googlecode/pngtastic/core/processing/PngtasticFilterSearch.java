@@ -0,0 +1,326 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import com.googlecode.pngtastic.core.Logger;
+import com.googlecode.pngtastic.core.PngFilterType;
+
+/**
+ * Evolutionary search over the filter type chosen for each row, in the
+ * spirit of pngwolf.  The population starts from the vectors chosen by the
+ * fixed filters and adaptive heuristics, and new vectors are bred by
+ * crossover and mutation and scored by actually deflating them.
+ * <p>
+ * Every core runs its own breeding loop with its own deflater and buffers,
+ * sharing one population so each thread builds on the best vectors found by
+ * the others.  The search stops when the iteration budget or the time budget
+ * runs out, whichever comes first, or when the calling thread is
+ * interrupted, in which case the interrupt is kept and the best vector found
+ * so far is returned.  It is meant for images that are served
+ * often enough to be worth minutes of CPU time.
+ */
+public class PngtasticFilterSearch
+{
+	/** */
+	private final Logger log;
+
+	/** */
+	private static final int POPULATION_SIZE = 20;
+
+	/** */
+	private final int maxIterations;
+
+	/** */
+	private final long maxMillis;
+
+	/**
+	 * @param log The logger
+	 * @param maxIterations The number of filter vectors to try, or 0 for no limit
+	 * @param maxMillis The time to search for in milliseconds, or 0 for no limit
+	 */
+	public PngtasticFilterSearch(final Logger log, final int maxIterations, final long maxMillis)
+	{
+		if (maxIterations <= 0 && maxMillis <= 0)
+			throw new IllegalArgumentException("Filter search needs an iteration or time budget");
+
+		this.log = log;
+		this.maxIterations = (maxIterations <= 0) ? Integer.MAX_VALUE : maxIterations;
+		this.maxMillis = (maxMillis <= 0) ? Long.MAX_VALUE : maxMillis;
+	}
+
+	/**
+	 * Search for the filter type of each row that deflates smallest.
+	 *
+	 * @param filteredScanlines The scanlines already filtered with each standard filter type
+	 * @param seeds The filter vectors to start from, e.g. those chosen by the adaptive heuristics
+	 * @param compressionLevel The compression level used to score vectors, or null for the best
+	 * @return The best filter type for each row found within the budget
+	 */
+	public PngFilterType[] search(final Map<PngFilterType, List<byte[]>> filteredScanlines, final List<PngFilterType[]> seeds, final Integer compressionLevel)
+	{
+		final long deadline = (this.maxMillis == Long.MAX_VALUE) ? Long.MAX_VALUE : System.currentTimeMillis() + this.maxMillis;
+		final int level = (compressionLevel == null || compressionLevel > Deflater.BEST_COMPRESSION || compressionLevel < Deflater.NO_COMPRESSION)
+				? Deflater.BEST_COMPRESSION
+				: compressionLevel;
+
+		final PngFilterType[] filterTypes = PngFilterType.standardValues();
+		final int rowCount = filteredScanlines.get(filterTypes[0]).size();
+		if (rowCount == 0 || seeds.isEmpty())
+			return (seeds.isEmpty()) ? new PngFilterType[rowCount] : seeds.get(0);
+
+		final byte[][][] rows = new byte[filterTypes.length][][];
+		for (final PngFilterType filterType : filterTypes)
+			rows[filterType.getValue()] = filteredScanlines.get(filterType).toArray(new byte[rowCount][]);
+
+		final Population population = new Population();
+		final Random random = new Random(rowCount);
+		final Scorer seedScorer = new Scorer(rows, level);
+		try
+		{
+			for (final PngFilterType[] seed : seeds)
+			{
+				final byte[] genes = new byte[rowCount];
+				for (int i = 0; i < rowCount; i++)
+					genes[i] = seed[i].getValue();
+				population.offer(new Individual(genes, seedScorer.score(genes)));
+			}
+			while (population.size() < POPULATION_SIZE)
+			{
+				final byte[] genes = population.select(random).genes.clone();
+				this.mutate(genes, random);
+				population.offer(new Individual(genes, seedScorer.score(genes)));
+			}
+		}
+		finally
+		{
+			seedScorer.end();
+		}
+		final int seedSize = population.best().size;
+
+		final AtomicInteger iterations = new AtomicInteger();
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(threads);
+		for (int t = 0; t < threads; t++)
+		{
+			final long seed = random.nextLong();
+			tasks.add(Executors.callable(new Runnable()
+			{
+				public void run()
+				{
+					final Random random = new Random(seed);
+					final Scorer scorer = new Scorer(rows, level);
+					try
+					{
+						while (iterations.getAndIncrement() < PngtasticFilterSearch.this.maxIterations && System.currentTimeMillis() < deadline
+								&& !Thread.currentThread().isInterrupted())
+						{
+							final byte[] genes = PngtasticFilterSearch.this.crossover(population.select(random), population.select(random), random);
+							PngtasticFilterSearch.this.mutate(genes, random);
+							population.offer(new Individual(genes, scorer.score(genes)));
+						}
+					}
+					catch (final Throwable e)
+					{
+						PngtasticFilterSearch.this.log.error("Uncaught Exception: %s", e.getMessage());
+					}
+					finally
+					{
+						scorer.end();
+					}
+				}
+			}));
+		}
+
+		final ExecutorService searchThreadPool = Executors.newFixedThreadPool(threads);
+		try
+		{
+			searchThreadPool.invokeAll(tasks);
+		}
+		catch (final InterruptedException ex)
+		{
+			// stop the breeding loops, and keep the best vector found so far
+			searchThreadPool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			searchThreadPool.shutdown();
+		}
+
+		final Individual best = population.best();
+		this.log.debug("Filter search: %d iterations, %d bytes -> %d bytes", Math.min(iterations.get(), this.maxIterations), seedSize, best.size);
+
+		final PngFilterType[] result = new PngFilterType[rowCount];
+		for (int i = 0; i < rowCount; i++)
+			result[i] = PngFilterType.forValue(best.genes[i]);
+
+		return result;
+	}
+
+	/* Two point crossover: the rows between two random points come from the second parent */
+	private byte[] crossover(final Individual first, final Individual second, final Random random)
+	{
+		final byte[] genes = first.genes.clone();
+		final int a = random.nextInt(genes.length);
+		final int b = random.nextInt(genes.length);
+		System.arraycopy(second.genes, Math.min(a, b), genes, Math.min(a, b), Math.abs(a - b) + 1);
+
+		return genes;
+	}
+
+	/*
+	 * Either change the filter of a few random rows, or set a random run of
+	 * rows to the same filter, which single row changes are unlikely to find.
+	 */
+	private void mutate(final byte[] genes, final Random random)
+	{
+		final int filterTypeCount = PngFilterType.standardValues().length;
+		if (random.nextInt(4) == 0)
+		{
+			final int start = random.nextInt(genes.length);
+			final int end = Math.min(genes.length, start + 1 + random.nextInt(Math.max(1, genes.length / 8)));
+			final byte filterType = (byte) random.nextInt(filterTypeCount);
+			for (int i = start; i < end; i++)
+				genes[i] = filterType;
+		}
+		else
+		{
+			final int changes = 1 + random.nextInt(3);
+			for (int i = 0; i < changes; i++)
+				genes[random.nextInt(genes.length)] = (byte) random.nextInt(filterTypeCount);
+		}
+	}
+
+	/**
+	 * A filter vector and its deflated size
+	 */
+	private static class Individual
+	{
+		/** */
+		private final byte[] genes;
+		private final int size;
+
+		/** */
+		public Individual(final byte[] genes, final int size)
+		{
+			this.genes = genes;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * The shared population, kept sorted smallest first.  New individuals
+	 * only get in by beating the current worst.
+	 */
+	private static class Population
+	{
+		/** */
+		private final List<Individual> individuals = new ArrayList<Individual>();
+
+		/** */
+		private static final Comparator<Individual> BY_SIZE = new Comparator<Individual>()
+		{
+			public int compare(final Individual a, final Individual b)
+			{
+				return (a.size < b.size) ? -1 : ((a.size == b.size) ? 0 : 1);
+			}
+		};
+
+		/** */
+		public synchronized int size()
+		{
+			return this.individuals.size();
+		}
+
+		/** */
+		public synchronized Individual best()
+		{
+			return this.individuals.get(0);
+		}
+
+		/* Tournament selection, which favours the smaller of two random individuals */
+		public synchronized Individual select(final Random random)
+		{
+			final int a = random.nextInt(this.individuals.size());
+			final int b = random.nextInt(this.individuals.size());
+			return this.individuals.get(Math.min(a, b));
+		}
+
+		/** */
+		public synchronized void offer(final Individual individual)
+		{
+			if (this.individuals.size() >= POPULATION_SIZE)
+			{
+				if (individual.size >= this.individuals.get(this.individuals.size() - 1).size)
+					return;
+				this.individuals.remove(this.individuals.size() - 1);
+			}
+			final int index = Collections.binarySearch(this.individuals, individual, BY_SIZE);
+			this.individuals.add((index < 0) ? -(index + 1) : index, individual);
+		}
+	}
+
+	/**
+	 * Scores filter vectors by deflating them, reusing one deflater and one
+	 * set of buffers.  Not thread safe; each search thread has its own.
+	 */
+	private static class Scorer
+	{
+		/** */
+		private final byte[][][] rows;
+		private final byte[] imageData;
+		private final byte[] buffer = new byte[8192];
+		private final Deflater deflater;
+
+		/** */
+		public Scorer(final byte[][][] rows, final int level)
+		{
+			this.rows = rows;
+			final byte[][] first = rows[PngFilterType.NONE.getValue()];
+			this.imageData = new byte[(first.length == 0) ? 0 : first.length * first[0].length];
+			this.deflater = new Deflater(level);
+		}
+
+		/** */
+		public int score(final byte[] genes)
+		{
+			int offset = 0;
+			for (int i = 0; i < genes.length; i++)
+			{
+				final byte[] row = this.rows[genes[i]][i];
+				System.arraycopy(row, 0, this.imageData, offset, row.length);
+				offset += row.length;
+			}
+
+			this.deflater.reset();
+			this.deflater.setInput(this.imageData);
+			this.deflater.finish();
+
+			int size = 0;
+			while (!this.deflater.finished())
+				size += this.deflater.deflate(this.buffer);
+
+			return size;
+		}
+
+		/** */
+		public void end()
+		{
+			this.deflater.end();
+		}
+	}
+}
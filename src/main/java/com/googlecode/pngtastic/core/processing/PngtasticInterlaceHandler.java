@@ -5,7 +5,13 @@
 package com.googlecode.pngtastic.core.processing;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.googlecode.pngtastic.core.Logger;
 import com.googlecode.pngtastic.core.PngException;
@@ -29,6 +35,9 @@ public class PngtasticInterlaceHandler implements PngInterlaceHandler
 	private static final int[] interlaceRowFrequency	= new int[] { 8, 8, 8, 4, 4, 2, 2 };
 	private static final int[] interlaceRowOffset		= new int[] { 0, 0, 4, 0, 2, 0, 1 };
 
+	/** images with less data than this are deinterlaced on the calling thread */
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+
 	/** */
 	public PngtasticInterlaceHandler(final Logger log, final PngFilterHandler pngFilterHandler)
 	{
@@ -39,73 +48,278 @@ public class PngtasticInterlaceHandler implements PngInterlaceHandler
 	/**
 	 * @inheritDoc
 	 *
-	 * Throws a runtime exception.
-	 * <p>
-	 * NOTE: This is left unimplemented currently.  Interlacing should make
-	 * most images larger in filesize, so pngtastic currently deinterlaces
-	 * all images passed through it.  There may be rare exceptions that
-	 * actually benefit from interlacing, so there may come a time to revisit
-	 * this.
+	 * Interlacing usually makes images larger, but lets them be shown
+	 * progressively while they download.
+	 */
+	public List<byte[]> interlace(final int width, final int height, final int sampleBitCount, final byte[] inflatedImageData)
+	{
+		final byte[] interlacedImageData = this.interlaceImageData(width, height, sampleBitCount, inflatedImageData);
+
+		final List<byte[]> results = new ArrayList<byte[]>();
+		for (int pass = 0, offset = 0; pass < 7; pass++)
+		{
+			final int rowLength = passRowLength(pass, width, sampleBitCount);
+			for (int i = 0; i < passRows(pass, height) && rowLength > 0; i++, offset += rowLength)
+				results.add(Arrays.copyOfRange(interlacedImageData, offset, offset + rowLength));
+		}
+
+		return results;
+	}
+
+	/**
+	 * @inheritDoc
+	 *
+	 * Each pass gathers its own pixels into its own part of the output, so
+	 * the passes are built concurrently.
+	 */
+	public byte[] interlaceImageData(final int width, final int height, final int sampleBitCount, final byte[] inflatedImageData)
+	{
+		this.log.debug("Interlacing");
+
+		if (sampleBitCount < 8)
+			throw new IllegalArgumentException("Interlacing needs at least 8 bits per pixel");
+
+		final int scanlineLength = scanlineLength(width, sampleBitCount);
+		final int[] passOffsets = new int[8];
+		for (int pass = 0; pass < 7; pass++)
+			passOffsets[pass + 1] = passOffsets[pass] + passRows(pass, height) * passRowLength(pass, width, sampleBitCount);
+
+		final byte[] interlacedImageData = new byte[passOffsets[7]];
+		final List<Callable<Object>> passes = new ArrayList<Callable<Object>>(7);
+		for (int pass = 0; pass < 7; pass++)
+		{
+			final int p = pass;
+			passes.add(Executors.callable(new Runnable()
+			{
+				public void run()
+				{
+					PngtasticInterlaceHandler.interlacePass(p, width, height, sampleBitCount, inflatedImageData, scanlineLength, interlacedImageData, passOffsets[p]);
+				}
+			}));
+		}
+		this.runPasses(passes, interlacedImageData.length);
+
+		return interlacedImageData;
+	}
+
+	/**
+	 * @inheritDoc
 	 */
-	public List<byte[]> interlace(final int width, final int height, final int sampleBitCount, final byte[] inflatedImageData) {
-		throw new RuntimeException("Not implemented");
+	public List<List<byte[]>> getPasses(final int width, final int height, final List<byte[]> interlacedScanlines)
+	{
+		final List<List<byte[]>> results = new ArrayList<List<byte[]>>(7);
+		int row = 0;
+		for (int pass = 0; pass < 7; pass++)
+		{
+			final int rows = (passColumns(pass, width) == 0) ? 0 : passRows(pass, height);
+			results.add(interlacedScanlines.subList(row, row + rows));
+			row += rows;
+		}
+
+		return results;
+	}
+
+	/* Gather the pixels of one pass into unfiltered rows, each with filter type 0 */
+	private static void interlacePass(final int pass, final int width, final int height, final int sampleBitCount,
+			final byte[] inflatedImageData, final int scanlineLength, final byte[] interlacedImageData, final int passOffset)
+	{
+		final int passRows = passRows(pass, height);
+		final int passColumns = passColumns(pass, width);
+		final int rowLength = passRowLength(pass, width, sampleBitCount);
+
+		final int sampleSize = sampleBitCount / 8;
+		final int cf = interlaceColumnFrequency[pass] * sampleSize;
+		final int co = interlaceColumnOffset[pass] * sampleSize;
+		final int rf = interlaceRowFrequency[pass];
+		final int ro = interlaceRowOffset[pass];
+
+		for (int i = 0; i < passRows && passColumns > 0; i++)
+		{
+			final int rowStart = (i * rf + ro) * scanlineLength + 1;
+			final int offset = passOffset + i * rowLength;
+			for (int sample = 0; sample < passColumns; sample++)
+				System.arraycopy(inflatedImageData, rowStart + sample * cf + co, interlacedImageData, offset + 1 + sample * sampleSize, sampleSize);
+		}
 	}
 
 	/**
 	 * @inheritDoc
 	 */
 	public List<byte[]> deInterlace(final int width, final int height, final int sampleBitCount, final byte[] inflatedImageData)
+	{
+		final byte[] imageData = this.deInterlaceImageData(width, height, sampleBitCount, inflatedImageData);
+		final int scanlineLength = scanlineLength(width, sampleBitCount);
+
+		final List<byte[]> results = new ArrayList<byte[]>(height);
+		for (int i = 0; i < height; i++)
+			results.add(Arrays.copyOfRange(imageData, i * scanlineLength, (i + 1) * scanlineLength));
+
+		return results;
+	}
+
+	/**
+	 * @inheritDoc
+	 *
+	 * The offset of each pass in the interlaced data follows from the image
+	 * size alone, so the passes are defiltered and scattered concurrently,
+	 * each writing its own pixels of the output.  Each pass reuses two row
+	 * buffers rather than allocating for every row.  Images with fewer than
+	 * 8 bits per pixel have pixels of different passes sharing bytes, so
+	 * their passes are scattered one after another.
+	 */
+	public byte[] deInterlaceImageData(final int width, final int height, final int sampleBitCount, final byte[] inflatedImageData)
 	{
 		this.log.debug("Deinterlacing");
 
-		final List<byte[]> results = new ArrayList<byte[]>();
-		final int sampleSize = Math.max(1, sampleBitCount / 8);
-		final byte[][] rows = new byte[height][Double.valueOf(Math.ceil(width * sampleBitCount / 8D)).intValue() + 1];
+		final int scanlineLength = scanlineLength(width, sampleBitCount);
+		final byte[] imageData = new byte[height * scanlineLength];
 
-		int subImageOffset = 0;
-		for (int pass = 0; pass < 7; pass++)
+		final int[] passOffsets = new int[7];
+		for (int pass = 0, offset = 0; pass < 7; pass++)
 		{
-			final int subImageRows = height / interlaceRowFrequency[pass];
-			final int subImageColumns = width / interlaceColumnFrequency[pass];
-			final int rowLength = Double.valueOf(Math.ceil(subImageColumns * sampleBitCount / 8D)).intValue() + 1;
+			passOffsets[pass] = offset;
+			offset += passRows(pass, height) * passRowLength(pass, width, sampleBitCount);
+		}
 
-			byte[] previousRow = new byte[rowLength];
-			int offset = 0;
-			for (int i = 0; i < subImageRows; i++)
+		final List<Callable<Object>> passes = new ArrayList<Callable<Object>>(7);
+		for (int pass = 0; pass < 7; pass++)
+		{
+			final int p = pass;
+			passes.add(Executors.callable(new Runnable()
 			{
-				offset = subImageOffset + i * rowLength;
-				final byte[] row = new byte[rowLength];
-				System.arraycopy(inflatedImageData, offset, row, 0, rowLength);
-				try
+				public void run()
 				{
-					this.pngFilterHandler.deFilter(row, previousRow, sampleBitCount);
+					PngtasticInterlaceHandler.this.deInterlacePass(p, width, height, sampleBitCount, inflatedImageData, passOffsets[p], imageData, scanlineLength);
 				}
-				catch (final PngException e)
+			}));
+		}
+		this.runPasses(passes, (sampleBitCount < 8) ? 0 : imageData.length);
+
+		return imageData;
+	}
+
+	/* Defilter one pass and scatter its pixels into the non-interlaced image data */
+	private void deInterlacePass(final int pass, final int width, final int height, final int sampleBitCount,
+			final byte[] inflatedImageData, final int passOffset, final byte[] imageData, final int scanlineLength)
+	{
+		final int passRows = passRows(pass, height);
+		final int passColumns = passColumns(pass, width);
+		final int rowLength = passRowLength(pass, width, sampleBitCount);
+		if (passRows == 0 || passColumns == 0)
+			return;
+
+		final int sampleSize = sampleBitCount / 8;
+		final int cf = interlaceColumnFrequency[pass] * sampleSize;
+		final int co = interlaceColumnOffset[pass] * sampleSize;
+		final int rf = interlaceRowFrequency[pass];
+		final int ro = interlaceRowOffset[pass];
+
+		byte[] row = new byte[rowLength];
+		byte[] previousRow = new byte[rowLength];
+		for (int i = 0; i < passRows; i++)
+		{
+			final int offset = passOffset + i * rowLength;
+			if (offset + rowLength > inflatedImageData.length)
+			{
+				this.log.error("Error: image data ends in interlace pass %d", pass + 1);
+				return;
+			}
+			System.arraycopy(inflatedImageData, offset, row, 0, rowLength);
+			try
+			{
+				this.pngFilterHandler.deFilter(row, previousRow, sampleBitCount);
+			}
+			catch (final PngException e)
+			{
+				this.log.error("Error: %s", e.getMessage());
+			}
+
+			final int rowStart = (i * rf + ro) * scanlineLength + 1;
+			if (sampleBitCount < 8)
+			{
+				// the pixels are packed from the high bits of each byte down
+				final int mask = (1 << sampleBitCount) - 1;
+				for (int sample = 0; sample < passColumns; sample++)
 				{
-					this.log.error("Error: %s", e.getMessage());
+					final int from = sample * sampleBitCount;
+					final int to = (sample * interlaceColumnFrequency[pass] + interlaceColumnOffset[pass]) * sampleBitCount;
+					final int value = (row[1 + (from >> 3)] >> (8 - sampleBitCount - (from & 7))) & mask;
+					imageData[rowStart + (to >> 3)] |= value << (8 - sampleBitCount - (to & 7));
 				}
+			}
+			else
+			{
+				for (int sample = 0; sample < passColumns; sample++)
+					System.arraycopy(row, sample * sampleSize + 1, imageData, rowStart + sample * cf + co, sampleSize);
+			}
 
-				final int samples = (row.length - 1) / sampleSize;
-				for (int sample = 0; sample < samples; sample++)
+			final byte[] swap = previousRow;
+			previousRow = row;
+			row = swap;
+		}
+	}
+
+	/* Run the passes concurrently, unless the image is too small for that to pay */
+	private void runPasses(final List<Callable<Object>> passes, final int imageDataLength)
+	{
+		if (imageDataLength < PARALLEL_THRESHOLD)
+		{
+			for (final Callable<Object> pass : passes)
+			{
+				try
+				{
+					pass.call();
+				}
+				catch (final Exception e)
 				{
-					for (int b = 0; b < sampleSize; b++)
-					{
-						final int cf = interlaceColumnFrequency[pass] * sampleSize;
-						final int co = interlaceColumnOffset[pass] * sampleSize;
-						final int rf = interlaceRowFrequency[pass];
-						final int ro = interlaceRowOffset[pass];
-						rows[i * rf + ro][sample * cf + co + b + 1] = row[(sample * sampleSize) + b + 1];
-					}
+					this.log.error("Uncaught Exception: %s", e.getMessage());
 				}
-				previousRow = row.clone();
 			}
-			subImageOffset = offset + rowLength;
+			return;
+		}
+
+		final ExecutorService passThreadPool = Executors.newFixedThreadPool(Math.min(passes.size(), Runtime.getRuntime().availableProcessors()));
+		try
+		{
+			for (final Future<Object> future : passThreadPool.invokeAll(passes))
+				future.get();
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (final ExecutionException e)
+		{
+			this.log.error("Uncaught Exception: %s", e.getCause());
 		}
-		for (int i = 0; i < rows.length; i++)
+		finally
 		{
-			results.add(rows[i]);
+			passThreadPool.shutdown();
 		}
+	}
 
-		return results;
+	/* The number of rows in a pass, which is 0 when the image is too short to reach it */
+	private static int passRows(final int pass, final int height)
+	{
+		return Math.max(0, (height - interlaceRowOffset[pass] + interlaceRowFrequency[pass] - 1) / interlaceRowFrequency[pass]);
+	}
+
+	/* The number of pixels in each row of a pass, which is 0 when the image is too narrow to reach it */
+	private static int passColumns(final int pass, final int width)
+	{
+		return Math.max(0, (width - interlaceColumnOffset[pass] + interlaceColumnFrequency[pass] - 1) / interlaceColumnFrequency[pass]);
+	}
+
+	/* The length of each row of a pass including its filter type byte, or 0 for an empty pass */
+	private static int passRowLength(final int pass, final int width, final int sampleBitCount)
+	{
+		final int passColumns = passColumns(pass, width);
+		return (passColumns == 0) ? 0 : scanlineLength(passColumns, sampleBitCount);
+	}
+
+	/* */
+	private static int scanlineLength(final int width, final int sampleBitCount)
+	{
+		return (int) ((width * (long) sampleBitCount + 7) / 8) + 1;
 	}
 }
@@ -0,0 +1,67 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.googlecode.pngtastic.core.Logger;
+
+/**
+ * Implements PNG compression with {@link PngtasticMaxDeflater}, which trades
+ * a lot of CPU time for the smallest output.  Decompression still goes
+ * through java.util.zip.
+ */
+public class PngtasticMaxCompressionHandler implements PngCompressionHandler
+{
+	/** */
+	private final Logger log;
+
+	/** */
+	private final PngCompressionHandler inflater;
+
+	/** */
+	private final int iterations;
+
+	/**
+	 * @param log The logger
+	 * @param iterations The number of optimal parses made of each block
+	 */
+	public PngtasticMaxCompressionHandler(final Logger log, final int iterations)
+	{
+		this.log = log;
+		this.inflater = new PngtasticCompressionHandler(log);
+		this.iterations = iterations;
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public byte[] inflate(final ByteArrayOutputStream imageBytes) throws IOException
+	{
+		return this.inflate(imageBytes, DEFAULT_MAX_INFLATED_SIZE);
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public byte[] inflate(final ByteArrayOutputStream imageBytes, final long maxInflatedSize) throws IOException
+	{
+		return this.inflater.inflate(imageBytes, maxInflatedSize);
+	}
+
+	/**
+	 * @inheritDoc
+	 *
+	 * The compression level is ignored; this always searches hardest.
+	 */
+	public byte[] deflate(final byte[] inflatedImageData, final Integer compressionLevel) throws IOException
+	{
+		final byte[] result = new PngtasticMaxDeflater(this.log, this.iterations).deflate(inflatedImageData);
+		this.log.debug("Image bytes=%d", result.length);
+
+		return result;
+	}
+}
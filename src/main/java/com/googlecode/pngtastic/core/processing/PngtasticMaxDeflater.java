@@ -0,0 +1,301 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.googlecode.pngtastic.core.Logger;
+
+/**
+ * A zopfli style deflate encoder that spends as much CPU time as it is given
+ * on the smallest output, for images that are compressed once and served
+ * many times.
+ * <p>
+ * The data is first parsed quickly and split into blocks where the
+ * statistics change (see {@link DeflateBlockSplitter}).  Each block is then
+ * parsed on its own, on any free core: an optimal parse is repeated with the
+ * cost model taken from the last one, for the given number of iterations,
+ * and the cheapest parse is kept.  Finally the joined parse is split again
+ * if that beats the first split.  Block parses never cross block
+ * boundaries, but matches still reach back into earlier blocks, so the
+ * output doesn't depend on how many cores there are.
+ * <p>
+ * The blocks of every deflate, however many run at once, share one pool of
+ * a thread per core, so compressing several candidates concurrently doesn't
+ * multiply the threads.
+ */
+public class PngtasticMaxDeflater
+{
+	/** */
+	private final Logger log;
+
+	/** */
+	public static final int DEFAULT_ITERATIONS = 15;
+
+	/** the data is split into blocks this many bytes at a time */
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	/** */
+	private static final int MAX_BLOCKS_PER_CHUNK = 15;
+
+	/** the match finder depth used to split blocks, and to parse them */
+	private static final int SPLIT_DEPTH = 32;
+	private static final int PARSE_DEPTH = 512;
+
+	/** */
+	private final int iterations;
+
+	/** the pool parsing the blocks of every deflate; its threads stop when idle, and never keep the JVM alive */
+	private static final ThreadPoolExecutor blockThreadPool;
+	static
+	{
+		final int threads = Runtime.getRuntime().availableProcessors();
+		blockThreadPool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			public Thread newThread(final Runnable job)
+			{
+				final Thread thread = new Thread(job, "pngtastic-max-deflate");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		blockThreadPool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @param log The logger
+	 * @param iterations The number of optimal parses made of each block
+	 */
+	public PngtasticMaxDeflater(final Logger log, final int iterations)
+	{
+		if (iterations < 1)
+			throw new IllegalArgumentException("At least one iteration is needed");
+
+		this.log = log;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Compress the data into a zlib stream.
+	 *
+	 * @param data The data to compress
+	 * @return The zlib stream
+	 * @throws IOException if a block couldn't be compressed
+	 */
+	public byte[] deflate(final byte[] data) throws IOException
+	{
+		// the shared pool can't be shut down, so this deflate's own blocks are cancelled when it stops
+		final List<Future<?>> submitted = new ArrayList<Future<?>>();
+		try
+		{
+			// split each chunk into blocks
+			final List<Future<int[]>> splits = new ArrayList<Future<int[]>>();
+			for (int chunkStart = 0; chunkStart < data.length || chunkStart == 0; chunkStart += CHUNK_SIZE)
+			{
+				final int start = chunkStart;
+				final int end = Math.min(data.length, chunkStart + CHUNK_SIZE);
+				splits.add(blockThreadPool.submit(new Callable<int[]>()
+				{
+					public int[] call()
+					{
+						return PngtasticMaxDeflater.this.splitBlocks(data, start, end);
+					}
+				}));
+			}
+			submitted.addAll(splits);
+			final List<Integer> blockStarts = new ArrayList<Integer>();
+			for (final Future<int[]> split : splits)
+			{
+				for (final int blockStart : split.get())
+					blockStarts.add(blockStart);
+			}
+			blockStarts.add(data.length);
+
+			// parse each block
+			final List<Future<DeflateSymbols>> parses = new ArrayList<Future<DeflateSymbols>>();
+			for (int i = 0; i < blockStarts.size() - 1; i++)
+			{
+				final int start = blockStarts.get(i);
+				final int end = blockStarts.get(i + 1);
+				parses.add(blockThreadPool.submit(new Callable<DeflateSymbols>()
+				{
+					public DeflateSymbols call()
+					{
+						return PngtasticMaxDeflater.this.parseBlock(data, start, end);
+					}
+				}));
+			}
+			submitted.addAll(parses);
+			final DeflateSymbols symbols = new DeflateSymbols(data.length / 4);
+			final int[] starts = new int[parses.size() + 1];
+			for (int i = 0; i < parses.size(); i++)
+			{
+				starts[i] = symbols.size();
+				symbols.append(parses.get(i).get());
+			}
+			starts[parses.size()] = symbols.size();
+
+			// split again now that the final parse is known, if it helps
+			final int[] resplit = DeflateBlockSplitter.split(symbols, MAX_BLOCKS_PER_CHUNK * splits.size());
+			final long bits = DeflateBlockSplitter.cost(symbols, starts);
+			final long resplitBits = DeflateBlockSplitter.cost(symbols, resplit);
+			this.log.debug("Max deflate: %d blocks, bytes=%d, split again: %d blocks, bytes=%d",
+					starts.length - 1, (bits + 7) / 8, resplit.length - 1, (resplitBits + 7) / 8);
+
+			return write(symbols, (resplitBits < bits) ? resplit : starts, data, Math.min(bits, resplitBits));
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing image data");
+		}
+		catch (final ExecutionException e)
+		{
+			throw new IOException("Error compressing image data: " + e.getCause());
+		}
+		finally
+		{
+			for (final Future<?> block : submitted)
+				block.cancel(true);
+		}
+	}
+
+	/* The byte offsets of the blocks of a quick parse of data[start..end) */
+	private int[] splitBlocks(final byte[] data, final int start, final int end)
+	{
+		final DeflateSymbols symbols = DeflateParser.lazy(new DeflateMatchFinder(data, start, end, SPLIT_DEPTH));
+		final int[] splits = DeflateBlockSplitter.split(symbols, MAX_BLOCKS_PER_CHUNK);
+
+		final int[] blockStarts = new int[splits.length - 1];
+		int symbol = 0;
+		int offset = start;
+		for (int i = 0; i < blockStarts.length; i++)
+		{
+			for (; symbol < splits[i]; symbol++)
+				offset += symbols.byteLength(symbol);
+			blockStarts[i] = offset;
+		}
+		return blockStarts;
+	}
+
+	/*
+	 * The cheapest of several optimal parses of data[start..end), each using
+	 * the statistics of the one before.  As in zopfli, the statistics of the
+	 * last two parses are blended to keep the parses from oscillating, and
+	 * when the cost stops changing the best statistics so far are randomly
+	 * perturbed to escape the local minimum.
+	 */
+	private DeflateSymbols parseBlock(final byte[] data, final int start, final int end)
+	{
+		final DeflateMatchFinder finder = new DeflateMatchFinder(data, start, end, PARSE_DEPTH);
+		final Random random = new Random(start);
+
+		// start from whichever quick parse is cheaper; on noisy data that is no matches at all
+		DeflateSymbols best = DeflateParser.lazy(finder);
+		long bestBits = DeflateBlockWriter.cost(best, 0, best.size(), end - start);
+		final DeflateSymbols literals = DeflateParser.literals(data, start, end);
+		final long literalBits = DeflateBlockWriter.cost(literals, 0, literals.size(), end - start);
+		if (literalBits < bestBits)
+		{
+			best = literals;
+			bestBits = literalBits;
+		}
+		int[] litLenCounts = new int[DeflateSymbols.LITERAL_LENGTH_CODES];
+		int[] distanceCounts = new int[DeflateSymbols.DISTANCE_CODES];
+		best.countCodes(0, best.size(), litLenCounts, distanceCounts);
+		int[] bestLitLenCounts = litLenCounts.clone();
+		int[] bestDistanceCounts = distanceCounts.clone();
+
+		long lastBits = -1;
+		// an interrupted deflate is abandoned, so stop with the best parse so far
+		for (int i = 0; i < this.iterations && !Thread.currentThread().isInterrupted(); i++)
+		{
+			final DeflateSymbols symbols = DeflateParser.optimal(finder, new DeflateCostModel(litLenCounts, distanceCounts));
+			final long bits = DeflateBlockWriter.cost(symbols, 0, symbols.size(), end - start);
+
+			final int[] lastLitLenCounts = litLenCounts;
+			final int[] lastDistanceCounts = distanceCounts;
+			litLenCounts = new int[DeflateSymbols.LITERAL_LENGTH_CODES];
+			distanceCounts = new int[DeflateSymbols.DISTANCE_CODES];
+			symbols.countCodes(0, symbols.size(), litLenCounts, distanceCounts);
+
+			if (bits < bestBits)
+			{
+				best = symbols;
+				bestBits = bits;
+				bestLitLenCounts = litLenCounts.clone();
+				bestDistanceCounts = distanceCounts.clone();
+			}
+
+			if (i > 3)
+			{
+				blend(litLenCounts, lastLitLenCounts);
+				blend(distanceCounts, lastDistanceCounts);
+			}
+			if (i > 5 && bits == lastBits)
+			{
+				litLenCounts = perturb(bestLitLenCounts, random);
+				distanceCounts = perturb(bestDistanceCounts, random);
+				litLenCounts[DeflateSymbols.END_OF_BLOCK] = 1;
+			}
+			lastBits = bits;
+		}
+		this.log.debug("Max deflate block: %d..%d, bytes=%d", start, end, (bestBits + 7) / 8);
+
+		return best;
+	}
+
+	/* Weight the counts 2:1 against the previous ones */
+	private static void blend(final int[] counts, final int[] lastCounts)
+	{
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = 2 * counts[i] + lastCounts[i];
+	}
+
+	/* A copy of the counts with about a third of them replaced by other, random ones */
+	private static int[] perturb(final int[] counts, final Random random)
+	{
+		final int[] perturbed = counts.clone();
+		for (int i = 0; i < perturbed.length; i++)
+		{
+			if (random.nextInt(3) == 0)
+				perturbed[i] = counts[random.nextInt(counts.length)];
+		}
+		return perturbed;
+	}
+
+	/* Write the parse as a zlib stream, with blocks starting at the given symbols */
+	private static byte[] write(final DeflateSymbols symbols, final int[] starts, final byte[] data, final long bits)
+	{
+		final DeflateBitWriter out = new DeflateBitWriter((int) (bits / 8) + 16);
+		PngtasticDeflater.writeHeader(out);
+
+		int byteStart = 0;
+		for (int i = 0; i < starts.length - 1; i++)
+		{
+			int byteEnd = byteStart;
+			for (int symbol = starts[i]; symbol < starts[i + 1]; symbol++)
+				byteEnd += symbols.byteLength(symbol);
+
+			DeflateBlockWriter.write(out, symbols, starts[i], starts[i + 1], data, byteStart, byteEnd, i == starts.length - 2);
+			byteStart = byteEnd;
+		}
+		out.alignToByte();
+		PngtasticDeflater.writeTrailer(out, PngtasticDeflater.adler32(1, data, 0, data.length));
+
+		return out.toByteArray();
+	}
+}
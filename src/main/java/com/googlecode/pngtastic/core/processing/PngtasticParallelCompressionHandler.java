@@ -0,0 +1,256 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core.processing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import com.googlecode.pngtastic.core.Logger;
+
+/**
+ * Implements PNG compression by deflating blocks of the image data on all
+ * cores at once, as pigz does.  Each block is compressed by its own raw
+ * deflater primed with the last 32k of the block before it, so matches
+ * still reach across blocks, and all but the last block end with a sync
+ * flush so the pieces join into one valid deflate stream.  The adler32
+ * checksums of the blocks are computed in parallel too and then combined.
+ * <p>
+ * This costs a little compression at each block boundary in exchange for
+ * wall clock time on large images.  Each strategy is still tried, but only
+ * at one compression level; with no level the best compression is used.
+ * <p>
+ * The blocks of every deflate by a handler, however many run at once, share
+ * the handler's pool of a thread per core.
+ */
+public class PngtasticParallelCompressionHandler implements PngCompressionHandler
+{
+	/** */
+	private final Logger log;
+
+	/** */
+	private final PngCompressionHandler inflater;
+
+	/** */
+	private static final List<Integer> compressionStrategies = Arrays.asList(Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY);
+
+	/** the size of the blocks compressed in parallel, and of the dictionary each is primed with */
+	private static final int BLOCK_SIZE = 128 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	/** */
+	private static final int ADLER_BASE = 65521;
+
+	/** the pool compressing the blocks of every deflate; its threads stop when idle, and never keep the JVM alive */
+	private final ThreadPoolExecutor compressionThreadPool;
+
+	/** */
+	public PngtasticParallelCompressionHandler(final Logger log)
+	{
+		this.log = log;
+		this.inflater = new PngtasticCompressionHandler(log);
+
+		final int threads = Runtime.getRuntime().availableProcessors();
+		this.compressionThreadPool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			public Thread newThread(final Runnable job)
+			{
+				final Thread thread = new Thread(job, "pngtastic-parallel-deflate");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.compressionThreadPool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public byte[] inflate(final ByteArrayOutputStream imageBytes) throws IOException
+	{
+		return this.inflate(imageBytes, DEFAULT_MAX_INFLATED_SIZE);
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public byte[] inflate(final ByteArrayOutputStream imageBytes, final long maxInflatedSize) throws IOException
+	{
+		return this.inflater.inflate(imageBytes, maxInflatedSize);
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public byte[] deflate(final byte[] inflatedImageData, final Integer compressionLevel) throws IOException
+	{
+		final int level = (compressionLevel == null || compressionLevel > Deflater.BEST_COMPRESSION || compressionLevel < Deflater.NO_COMPRESSION)
+				? Deflater.BEST_COMPRESSION
+				: compressionLevel;
+		final int blockCount = Math.max(1, (inflatedImageData.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+		// the pool is shared, so this deflate's own blocks are cancelled when it stops
+		final List<Future<?>> submitted = new ArrayList<Future<?>>();
+		try
+		{
+			final List<Future<Long>> checksums = new ArrayList<Future<Long>>(blockCount);
+			for (int block = 0; block < blockCount; block++)
+			{
+				final int start = block * BLOCK_SIZE;
+				checksums.add(this.compressionThreadPool.submit(new Callable<Long>()
+				{
+					public Long call()
+					{
+						final Adler32 adler32 = new Adler32();
+						adler32.update(inflatedImageData, start, Math.min(BLOCK_SIZE, inflatedImageData.length - start));
+						return adler32.getValue();
+					}
+				}));
+			}
+			submitted.addAll(checksums);
+
+			final List<List<Future<byte[]>>> results = new ArrayList<List<Future<byte[]>>>();
+			for (final int strategy : compressionStrategies)
+			{
+				final List<Future<byte[]>> blocks = new ArrayList<Future<byte[]>>(blockCount);
+				for (int block = 0; block < blockCount; block++)
+				{
+					final int start = block * BLOCK_SIZE;
+					final boolean last = (block == blockCount - 1);
+					blocks.add(this.compressionThreadPool.submit(new Callable<byte[]>()
+					{
+						public byte[] call()
+						{
+							return PngtasticParallelCompressionHandler.deflateBlock(inflatedImageData, start, level, strategy, last);
+						}
+					}));
+				}
+				results.add(blocks);
+				submitted.addAll(blocks);
+			}
+
+			long adler32 = 1;
+			for (int block = 0; block < blockCount; block++)
+			{
+				final int length = Math.min(BLOCK_SIZE, inflatedImageData.length - block * BLOCK_SIZE);
+				adler32 = combineAdler32(adler32, checksums.get(block).get(), length);
+			}
+
+			byte[] result = null;
+			for (int i = 0; i < results.size(); i++)
+			{
+				final ByteArrayOutputStream deflatedOut = new ByteArrayOutputStream();
+				deflatedOut.write(0x78);
+				deflatedOut.write(zlibFlags(level));
+				for (final Future<byte[]> block : results.get(i))
+					deflatedOut.write(block.get());
+				for (int shift = 24; shift >= 0; shift -= 8)
+					deflatedOut.write((int) (adler32 >>> shift) & 0xff);
+
+				this.log.debug("Compression strategy: %s, compression level=%d, blocks=%d, bytes=%d", compressionStrategies.get(i), level, blockCount, deflatedOut.size());
+				if (result == null || result.length > deflatedOut.size())
+					result = deflatedOut.toByteArray();
+			}
+			this.log.debug("Image bytes=%d", result.length);
+
+			return result;
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing image data");
+		}
+		catch (final ExecutionException e)
+		{
+			throw new IOException("Error compressing image data: " + e.getCause());
+		}
+		finally
+		{
+			for (final Future<?> block : submitted)
+				block.cancel(true);
+		}
+	}
+
+	/*
+	 * Raw deflate one block, primed with the 32k before it.  The last block
+	 * finishes the stream; the others end byte aligned with a sync flush.
+	 */
+	private static byte[] deflateBlock(final byte[] data, final int start, final int level, final int strategy, final boolean last)
+	{
+		final int length = Math.min(BLOCK_SIZE, data.length - start);
+		final Deflater deflater = new Deflater(level, true);
+		try
+		{
+			deflater.setStrategy(strategy);
+			if (start > 0)
+			{
+				final int dictionaryLength = Math.min(DICTIONARY_SIZE, start);
+				deflater.setDictionary(data, start - dictionaryLength, dictionaryLength);
+			}
+			deflater.setInput(data, start, length);
+
+			final ByteArrayOutputStream deflatedOut = new ByteArrayOutputStream(length / 2 + 64);
+			final byte[] buffer = new byte[16384];
+			if (last)
+			{
+				deflater.finish();
+				while (!deflater.finished())
+					deflatedOut.write(buffer, 0, deflater.deflate(buffer));
+			}
+			else
+			{
+				// a short read only means the flush is done once all the input is taken;
+				// the first call may return early after applying the strategy
+				int deflatedLength;
+				do
+				{
+					deflatedLength = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					deflatedOut.write(buffer, 0, deflatedLength);
+				}
+				while (deflatedLength == buffer.length || !deflater.needsInput());
+			}
+			return deflatedOut.toByteArray();
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	/*
+	 * The adler32 of two pieces of data joined, from the checksum of each
+	 * piece and the length of the second, as in zlib's adler32_combine.
+	 */
+	static long combineAdler32(final long first, final long second, final long secondLength)
+	{
+		final long remainder = secondLength % ADLER_BASE;
+		long sum1 = first & 0xffff;
+		long sum2 = (remainder * sum1) % ADLER_BASE;
+		sum1 += (second & 0xffff) + ADLER_BASE - 1;
+		sum2 += ((first >>> 16) & 0xffff) + ((second >>> 16) & 0xffff) + ADLER_BASE - remainder;
+
+		sum1 %= ADLER_BASE;
+		sum2 %= ADLER_BASE;
+		return (sum2 << 16) | sum1;
+	}
+
+	/* The second zlib header byte, as zlib itself writes it for the level */
+	private static int zlibFlags(final int level)
+	{
+		return (level < 2) ? 0x01 : ((level < 6) ? 0x5e : ((level == 6) ? 0x9c : 0xda));
+	}
+}
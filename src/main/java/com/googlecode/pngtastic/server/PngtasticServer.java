@@ -0,0 +1,538 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.googlecode.pngtastic.core.PngImageType;
+import com.googlecode.pngtastic.core.PngOptimizer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP service that optimizes png images, for builds and servers that
+ * would otherwise start a JVM for every image.  It needs nothing but the
+ * HTTP server built into the JDK.
+ * <p>
+ * POST a png file to /optimize and the optimized file comes back, or the
+ * original if it couldn't be made smaller.  The query string may set the
+ * effort, one of fast, normal (the default), high or max, which trades time
+ * for size, and a deadline in milliseconds.  If the result isn't ready by
+ * the deadline the original comes back, marked with an
+ * X-Pngtastic-Deadline-Exceeded header.
+ * <p>
+ * Images are optimized by a fixed pool of workers behind a bounded queue.
+ * When the queue is full a request is refused with 503 at once, before its
+ * body is read, rather than left waiting, so that clients can back off and
+ * so that the images held in memory are bounded by the workers and the
+ * queue.  A job past its deadline is interrupted, and stops at its next
+ * step rather than holding its worker until the image is done.  Recent results are kept in a
+ * cache of limited size, by a digest of the effort and the image, so an
+ * image sent again comes straight back.  GET /metrics reports counters in
+ * the Prometheus text format.
+ */
+public class PngtasticServer
+{
+	/** */
+	private static final String HELP = "java -cp pngtastic-x.x.x.jar com.googlecode.pngtastic.server.PngtasticServer [options]\n"
+			+ "Options:\n"
+			+ "  --port             the port to listen on (default is 8080)\n"
+			+ "  --workers          the number of images optimized at once (default is one per core)\n"
+			+ "  --queue            the number of images waiting to be optimized before requests are refused (default is 64)\n"
+			+ "  --cacheSize        the size of the result cache in megabytes (default is 64)\n"
+			+ "  --logLevel         the level of logging output (none, debug, info, or error)\n";
+
+	/** */
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+	public static final long DEFAULT_CACHE_BYTES = 64L << 20;
+
+	/** requests with larger bodies are refused */
+	private static final int MAX_REQUEST_BYTES = 64 << 20;
+
+	/** images that would inflate to more bytes than this are refused before they are optimized */
+	private static final long MAX_INFLATED_SIZE = 256L << 20;
+
+	/** */
+	private static final String DEFAULT_EFFORT = "normal";
+
+	/** the optimizer and compression level for each effort */
+	private final Map<String, PngOptimizer> optimizers = new HashMap<String, PngOptimizer>();
+	private final Map<String, Integer> compressionLevels = new HashMap<String, Integer>();
+
+	/** */
+	private final HttpServer server;
+	private final ThreadPoolExecutor workerThreadPool;
+	private final ExecutorService handlerThreadPool;
+
+	/** a permit for each worker and each place in the queue, held from reading the body until the job has run */
+	private final Semaphore admissions;
+
+	/** */
+	private final ResultCache cache;
+
+	/** */
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong deadlinesExceeded = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong optimizations = new AtomicLong();
+	private final AtomicLong optimizeMillis = new AtomicLong();
+
+	/**
+	 * Create a server, which starts listening when started.
+	 *
+	 * @param logLevel The level of logging output of the optimizers
+	 * @param address The address to listen on
+	 * @param workerThreads The number of images optimized at once
+	 * @param queueCapacity The number of images waiting to be optimized before requests are refused
+	 * @param cacheBytes The total size of the results to keep
+	 */
+	public PngtasticServer(String logLevel, InetSocketAddress address, int workerThreads, int queueCapacity, long cacheBytes) throws IOException
+	{
+		this.addEffort("fast", logLevel, PngOptimizer.PARALLEL_COMPRESSOR, 9);
+		this.addEffort("normal", logLevel, PngOptimizer.ZLIB_COMPRESSOR, 9);
+		this.addEffort("high", logLevel, PngOptimizer.PNGTASTIC_COMPRESSOR, null);
+		this.addEffort("max", logLevel, PngOptimizer.MAX_COMPRESSOR, null);
+
+		this.cache = new ResultCache(cacheBytes);
+		this.admissions = new Semaphore(workerThreads + queueCapacity);
+		this.workerThreadPool = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity))
+		{
+			@Override
+			protected void afterExecute(Runnable job, Throwable t)
+			{
+				// jobs cancelled while still queued are run too, and do nothing, so each permit comes back
+				PngtasticServer.this.admissions.release();
+			}
+		};
+
+		// requests beyond the workers and the queue are refused before their bodies are read, so handlers needn't be limited
+		this.handlerThreadPool = Executors.newCachedThreadPool();
+		this.server = HttpServer.create(address, 0);
+		this.server.setExecutor(this.handlerThreadPool);
+		this.server.createContext("/optimize", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				PngtasticServer.this.optimize(exchange);
+			}
+		});
+		this.server.createContext("/metrics", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				PngtasticServer.this.metrics(exchange);
+			}
+		});
+	}
+
+	/** */
+	public void start()
+	{
+		this.server.start();
+	}
+
+	/**
+	 * Stop listening, and stop the workers.
+	 *
+	 * @param delay The most seconds to wait for requests in progress to finish
+	 */
+	public void stop(int delay)
+	{
+		this.server.stop(delay);
+		this.workerThreadPool.shutdownNow();
+		this.handlerThreadPool.shutdownNow();
+	}
+
+	/** */
+	public InetSocketAddress getAddress()
+	{
+		return this.server.getAddress();
+	}
+
+	/* */
+	private void addEffort(String effort, String logLevel, String compressor, Integer compressionLevel)
+	{
+		PngOptimizer optimizer = new PngOptimizer(logLevel);
+		optimizer.setCompressor(compressor);
+		this.optimizers.put(effort, optimizer);
+		this.compressionLevels.put(effort, compressionLevel);
+	}
+
+	/* Optimize the image in the request body */
+	private void optimize(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			this.requests.incrementAndGet();
+			if (!"POST".equals(exchange.getRequestMethod()))
+			{
+				this.sendText(exchange, 405, "Images must be sent with POST");
+				return;
+			}
+
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			final String effort = query.containsKey("effort") ? query.get("effort") : DEFAULT_EFFORT;
+			final PngOptimizer optimizer = this.optimizers.get(effort);
+			if (optimizer == null)
+			{
+				this.sendText(exchange, 400, "Unknown effort: " + effort);
+				return;
+			}
+
+			Long deadline = null;
+			try
+			{
+				deadline = query.containsKey("deadline") ? Long.valueOf(query.get("deadline")) : null;
+			}
+			catch (NumberFormatException e)
+			{
+				this.sendText(exchange, 400, "Bad deadline: " + query.get("deadline"));
+				return;
+			}
+
+			if (!this.admissions.tryAcquire())
+			{
+				this.refuse(exchange);
+				return;
+			}
+
+			boolean submitted = false;
+			try
+			{
+				final byte[] original = readBody(exchange.getRequestBody());
+				if (original == null)
+				{
+					this.sendText(exchange, 413, "Images may be at most " + MAX_REQUEST_BYTES + " bytes");
+					return;
+				}
+				this.bytesIn.addAndGet(original.length);
+
+				long inflatedSize = getInflatedSize(original);
+				if (inflatedSize < 0)
+				{
+					this.sendText(exchange, 400, "Not a png image");
+					return;
+				}
+				if (inflatedSize > MAX_INFLATED_SIZE)
+				{
+					this.sendText(exchange, 413, "Images may inflate to at most " + MAX_INFLATED_SIZE + " bytes");
+					return;
+				}
+
+				String key = digest(effort, original);
+				byte[] cached = this.cache.get(key);
+				if (cached != null)
+				{
+					this.cacheHits.incrementAndGet();
+					this.sendImage(exchange, cached);
+					return;
+				}
+
+				Future<byte[]> result;
+				try
+				{
+					result = this.workerThreadPool.submit(new Callable<byte[]>()
+					{
+						public byte[] call() throws IOException
+						{
+							long start = System.currentTimeMillis();
+							byte[] optimized = optimizer.optimize(original, PngtasticServer.this.compressionLevels.get(effort));
+							PngtasticServer.this.optimizations.incrementAndGet();
+							PngtasticServer.this.optimizeMillis.addAndGet(System.currentTimeMillis() - start);
+							return optimized;
+						}
+					});
+					submitted = true;
+				}
+				catch (RejectedExecutionException e)
+				{
+					this.refuse(exchange);
+					return;
+				}
+
+				byte[] optimized;
+				try
+				{
+					optimized = (deadline == null) ? result.get() : result.get(deadline, TimeUnit.MILLISECONDS);
+				}
+				catch (TimeoutException e)
+				{
+					// the optimizer stops at its next step once interrupted, which frees the worker and the permit
+					this.deadlinesExceeded.incrementAndGet();
+					result.cancel(true);
+					exchange.getResponseHeaders().set("X-Pngtastic-Deadline-Exceeded", "true");
+					this.sendImage(exchange, original);
+					return;
+				}
+				catch (ExecutionException e)
+				{
+					this.failures.incrementAndGet();
+					this.sendText(exchange, 400, "Couldn't optimize image: " + e.getCause().getMessage());
+					return;
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					this.sendText(exchange, 503, "Shutting down");
+					return;
+				}
+
+				this.cache.put(key, optimized);
+				this.sendImage(exchange, optimized);
+			}
+			finally
+			{
+				// a submitted job's permit comes back when the job has run, even if nobody waits for it any more
+				if (!submitted)
+					this.admissions.release();
+			}
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	/* Report the counters */
+	private void metrics(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			StringBuilder metrics = new StringBuilder();
+			metrics.append("pngtastic_requests_total ").append(this.requests.get()).append('\n');
+			metrics.append("pngtastic_refused_total ").append(this.refused.get()).append('\n');
+			metrics.append("pngtastic_failures_total ").append(this.failures.get()).append('\n');
+			metrics.append("pngtastic_deadlines_exceeded_total ").append(this.deadlinesExceeded.get()).append('\n');
+			metrics.append("pngtastic_cache_hits_total ").append(this.cacheHits.get()).append('\n');
+			metrics.append("pngtastic_cache_bytes ").append(this.cache.getSize()).append('\n');
+			metrics.append("pngtastic_bytes_in_total ").append(this.bytesIn.get()).append('\n');
+			metrics.append("pngtastic_bytes_out_total ").append(this.bytesOut.get()).append('\n');
+			metrics.append("pngtastic_optimizations_total ").append(this.optimizations.get()).append('\n');
+			metrics.append("pngtastic_optimize_milliseconds_total ").append(this.optimizeMillis.get()).append('\n');
+			metrics.append("pngtastic_queued_images ").append(this.workerThreadPool.getQueue().size()).append('\n');
+			metrics.append("pngtastic_active_workers ").append(this.workerThreadPool.getActiveCount()).append('\n');
+
+			this.sendText(exchange, 200, metrics.toString());
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	/* Refuse a request for want of room, asking the client to come back shortly */
+	private void refuse(HttpExchange exchange) throws IOException
+	{
+		this.refused.incrementAndGet();
+		exchange.getResponseHeaders().set("Retry-After", "1");
+		this.sendText(exchange, 503, "Too many images waiting to be optimized");
+	}
+
+	/* */
+	private void sendImage(HttpExchange exchange, byte[] image) throws IOException
+	{
+		this.bytesOut.addAndGet(image.length);
+		exchange.getResponseHeaders().set("Content-Type", "image/png");
+		send(exchange, 200, image);
+	}
+
+	/* */
+	private void sendText(HttpExchange exchange, int status, String text) throws IOException
+	{
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		send(exchange, status, (text + "\n").getBytes("UTF-8"));
+	}
+
+	/* */
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException
+	{
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/* The request body, or null if it is too large */
+	private static byte[] readBody(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int length;
+		while ((length = in.read(buffer)) != -1)
+		{
+			if (body.size() + length > MAX_REQUEST_BYTES)
+				return null;
+			body.write(buffer, 0, length);
+		}
+		return body.toByteArray();
+	}
+
+	/* The size of the image data once inflated, going by the header, or -1 if there is no valid header */
+	private static long getInflatedSize(byte[] png)
+	{
+		// the signature, then the header chunk's length and type, then its fields
+		if (png.length < 33 || (readInt(png, 0) & 0xffffffffL) != 0x89504e47L || readInt(png, 12) != 0x49484452)
+			return -1;
+
+		long width = readInt(png, 16) & 0xffffffffL;
+		long height = readInt(png, 20) & 0xffffffffL;
+		try
+		{
+			long sampleBitCount = PngImageType.forColorType(png[25]).channelCount() * (long) png[24];
+			return height * ((width * sampleBitCount + 7) / 8 + 1);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return -1;
+		}
+	}
+
+	/* */
+	private static int readInt(byte[] bytes, int offset)
+	{
+		return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+	}
+
+	/* */
+	private static String digest(String effort, byte[] image)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(effort.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(image);
+
+			StringBuilder result = new StringBuilder();
+			for (byte b : digest.digest())
+				result.append(String.format("%02x", b));
+			return result.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/* */
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException
+	{
+		Map<String, String> result = new HashMap<String, String>();
+		if (query == null)
+			return result;
+
+		for (String parameter : query.split("&"))
+		{
+			int equals = parameter.indexOf('=');
+			if (equals > 0)
+				result.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+		}
+		return result;
+	}
+
+	/**
+	 * The most recently used results, up to a total size in bytes
+	 */
+	private static class ResultCache
+	{
+		/** */
+		private final long capacity;
+
+		/** */
+		private long size;
+		public synchronized long getSize() { return this.size; }
+
+		/** */
+		private final LinkedHashMap<String, byte[]> results = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+		/** */
+		public ResultCache(long capacity)
+		{
+			this.capacity = capacity;
+		}
+
+		/** */
+		public synchronized byte[] get(String key)
+		{
+			return this.results.get(key);
+		}
+
+		/** */
+		public synchronized void put(String key, byte[] result)
+		{
+			if (result.length > this.capacity)
+				return;
+
+			byte[] old = this.results.put(key, result);
+			this.size += result.length - ((old == null) ? 0 : old.length);
+
+			Iterator<byte[]> eldest = this.results.values().iterator();
+			while (this.size > this.capacity)
+			{
+				this.size -= eldest.next().length;
+				eldest.remove();
+			}
+		}
+	}
+
+	/** */
+	public static void main(String[] args) throws IOException
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i < args.length; i++)
+		{
+			if (!args[i].startsWith("--") || i + 1 == args.length)
+			{
+				System.out.println(HELP);
+				return;
+			}
+			options.put(args[i], args[++i]);
+		}
+
+		int port = options.containsKey("--port") ? Integer.parseInt(options.get("--port")) : DEFAULT_PORT;
+		int workers = options.containsKey("--workers") ? Integer.parseInt(options.get("--workers")) : Runtime.getRuntime().availableProcessors();
+		int queue = options.containsKey("--queue") ? Integer.parseInt(options.get("--queue")) : DEFAULT_QUEUE_CAPACITY;
+		long cacheBytes = options.containsKey("--cacheSize") ? Long.parseLong(options.get("--cacheSize")) << 20 : DEFAULT_CACHE_BYTES;
+
+		PngtasticServer server = new PngtasticServer(options.get("--logLevel"), new InetSocketAddress(port), workers, queue, cacheBytes);
+		server.start();
+		System.out.println(String.format("Listening on %s", server.getAddress()));
+	}
+}
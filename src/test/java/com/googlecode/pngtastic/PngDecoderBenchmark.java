@@ -0,0 +1,235 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import com.googlecode.pngtastic.core.PngDecoder;
+import com.googlecode.pngtastic.core.PngException;
+import com.googlecode.pngtastic.core.PngFileWalker;
+import com.googlecode.pngtastic.core.PngImage;
+
+/**
+ * Compares the time and heap that PngDecoder and ImageIO.read take to
+ * decode png files held in memory, by default the bundled test images.
+ * Each file is decoded a number of times after as many warm up runs; the
+ * times are the mean of the timed runs.  That both decode the same samples
+ * is checked by PngDecoderTest.
+ * <p>
+ * The columns are the file, then the mean milliseconds and kilobytes
+ * allocated for ImageIO.read, for ImageIO.read and then BufferedImage.getRGB
+ * of the whole image, for PngDecoder with raw samples, and for PngDecoder
+ * with ARGB pixels.  Allocation is only measured on JVMs that can count the
+ * bytes each thread allocates.  It is run from the test classpath, and is
+ * not part of the jar:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes com.googlecode.pngtastic.PngDecoderBenchmark
+ * </pre>
+ */
+public class PngDecoderBenchmark
+{
+	/** */
+	private static final String HELP = "java -cp target/classes:target/test-classes com.googlecode.pngtastic.PngDecoderBenchmark [--iterations n] [file1|dir1 ..]\n"
+			+ "Options:\n"
+			+ "  --iterations       the number of timed decodes of each file, after as many to warm up (default is 20)\n"
+			+ "With no files the bundled test images are decoded.\n";
+
+	/** */
+	private static final int DEFAULT_ITERATIONS = 20;
+
+	/** */
+	private final PngDecoder decoder = new PngDecoder();
+
+	/** */
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/** the time and bytes allocated by each way of decoding over all files */
+	private final long[] totalNanos = new long[4];
+	private final long[] totalBytes = new long[4];
+
+	/** */
+	private final int iterations;
+
+	/** */
+	public PngDecoderBenchmark(int iterations)
+	{
+		this.iterations = iterations;
+	}
+
+	/* A way of decoding a file */
+	private interface Decode
+	{
+		public void decode(byte[] png) throws IOException, PngException;
+	}
+
+	/**
+	 * Decode a file every way, and print a line of the results.
+	 *
+	 * @param fileName The png file
+	 * @throws IOException if the file couldn't be read, or ImageIO couldn't decode it
+	 */
+	public void run(String fileName) throws IOException
+	{
+		byte[] png = Files.readAllBytes(Paths.get(fileName));
+		PngImage image = new PngImage(new ByteArrayInputStream(png));
+		if (ImageIO.read(new ByteArrayInputStream(png)) == null || !image.isComplete())
+		{
+			System.out.println(String.format("%-40s not a png that both can read", fileName));
+			return;
+		}
+
+		final int width = (int) image.getWidth();
+		final int height = (int) image.getHeight();
+		final ByteBuffer raw = ByteBuffer.allocate(PngDecoder.getRowLength(image) * height);
+		final int[] pixels = new int[width * height];
+
+		List<Decode> decodes = new ArrayList<Decode>();
+		decodes.add(new Decode()
+		{
+			public void decode(byte[] png) throws IOException
+			{
+				ImageIO.read(new ByteArrayInputStream(png));
+			}
+		});
+		decodes.add(new Decode()
+		{
+			public void decode(byte[] png) throws IOException
+			{
+				ImageIO.read(new ByteArrayInputStream(png)).getRGB(0, 0, width, height, pixels, 0, width);
+			}
+		});
+		decodes.add(new Decode()
+		{
+			public void decode(byte[] png) throws PngException
+			{
+				raw.clear();
+				PngDecoderBenchmark.this.decoder.decode(new PngImage(new ByteArrayInputStream(png)), raw);
+			}
+		});
+		decodes.add(new Decode()
+		{
+			public void decode(byte[] png) throws PngException
+			{
+				PngDecoderBenchmark.this.decoder.decodeArgb(new PngImage(new ByteArrayInputStream(png)), pixels, 0, width);
+			}
+		});
+
+		StringBuilder line = new StringBuilder(String.format("%-40s", fileName));
+		for (int i = 0; i < decodes.size(); i++)
+		{
+			long[] result = this.time(decodes.get(i), png);
+			this.totalNanos[i] += result[0];
+			this.totalBytes[i] += result[1];
+			line.append(String.format(" %9.3f %9d", result[0] / 1e6, result[1] / 1024));
+		}
+		System.out.println(line);
+	}
+
+	/* The mean nanoseconds and bytes allocated of the timed runs of a decode */
+	private long[] time(Decode decode, byte[] png) throws IOException
+	{
+		try
+		{
+			for (int i = 0; i < this.iterations; i++)
+				decode.decode(png);
+
+			long bytes = this.getAllocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < this.iterations; i++)
+				decode.decode(png);
+
+			long nanos = System.nanoTime() - start;
+			bytes = (bytes < 0) ? 0 : this.getAllocatedBytes() - bytes;
+			return new long[] { nanos / this.iterations, bytes / this.iterations };
+		}
+		catch (PngException e)
+		{
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/* The bytes this thread has allocated, or -1 if the JVM doesn't count them */
+	private long getAllocatedBytes()
+	{
+		if (this.threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) this.threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+
+		return -1;
+	}
+
+	/* The bundled test images, from the test classpath */
+	private static String getDefaultImages() throws IOException
+	{
+		URL images = PngDecoderBenchmark.class.getResource("/images");
+		if (images == null)
+			throw new IOException("The test images aren't on the classpath");
+
+		try
+		{
+			return new File(images.toURI()).getPath();
+		}
+		catch (URISyntaxException e)
+		{
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/** */
+	public static void main(String[] args) throws IOException
+	{
+		int iterations = DEFAULT_ITERATIONS;
+		List<String> fileNames = new ArrayList<String>(Arrays.asList(args));
+		if (fileNames.size() >= 2 && "--iterations".equals(fileNames.get(0)))
+		{
+			iterations = Integer.parseInt(fileNames.get(1));
+			fileNames = fileNames.subList(2, fileNames.size());
+		}
+		if (!fileNames.isEmpty() && fileNames.get(0).startsWith("--"))
+		{
+			System.out.println(HELP);
+			return;
+		}
+		if (fileNames.isEmpty())
+			fileNames = Arrays.asList(getDefaultImages());
+
+		PngDecoderBenchmark benchmark = new PngDecoderBenchmark(iterations);
+		System.out.println(String.format("%-40s %19s %19s %19s %19s", "file (ms, KB)", "ImageIO.read", "ImageIO ARGB", "PngDecoder raw", "PngDecoder ARGB"));
+		PngFileWalker files = new PngFileWalker(null, fileNames, null, null);
+		while (files.hasNext())
+		{
+			String fileName = files.next();
+			try
+			{
+				benchmark.run(fileName);
+			}
+			catch (IOException e)
+			{
+				System.out.println(String.format("%-40s %s", fileName, e.getMessage()));
+			}
+		}
+
+		StringBuilder total = new StringBuilder(String.format("%-40s", "total"));
+		for (int i = 0; i < benchmark.totalNanos.length; i++)
+			total.append(String.format(" %9.3f %9d", benchmark.totalNanos[i] / 1e6, benchmark.totalBytes[i] / 1024));
+		System.out.println(total);
+		System.out.println(String.format("PngDecoder ARGB took %.2f times as long as ImageIO.read, and %.2f times as long as ImageIO ARGB",
+				benchmark.totalNanos[3] / (double) benchmark.totalNanos[0], benchmark.totalNanos[3] / (double) benchmark.totalNanos[1]));
+	}
+}
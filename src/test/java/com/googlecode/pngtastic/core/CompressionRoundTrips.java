@@ -0,0 +1,115 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.googlecode.pngtastic.core.processing.PngCompressionHandler;
+
+/**
+ * Round trips shared by the compression handler tests: whatever a handler
+ * deflates must inflate, with the JDK's inflater, to the same bytes, and
+ * an image optimized with a compressor must keep its pixels.  The tests
+ * are in this package for the package's Logger.
+ */
+final class CompressionRoundTrips
+{
+	/** */
+	static final Logger LOG = new Logger(Logger.NONE);
+
+	/** */
+	private CompressionRoundTrips()
+	{
+	}
+
+	/**
+	 * Deflate each sample at the level, and check it inflates to the sample,
+	 * and that the handler's own inflate gives it back whole, or cut short
+	 */
+	static void assertRoundTrips(PngCompressionHandler handler, Integer level, List<byte[]> samples) throws Exception
+	{
+		for (byte[] sample : samples)
+		{
+			String message = "level " + level + ", " + sample.length + " bytes";
+			byte[] deflated = handler.deflate(sample, level);
+			assertArrayEquals(message, sample, inflate(deflated));
+
+			ByteArrayOutputStream deflatedOut = new ByteArrayOutputStream();
+			deflatedOut.write(deflated);
+			assertArrayEquals(message, sample, handler.inflate(deflatedOut));
+			assertArrayEquals(message, Arrays.copyOf(sample, sample.length / 2), handler.inflate(deflatedOut, sample.length / 2));
+		}
+	}
+
+	/** Optimize a bundled image with the compressor, and check its pixels are unchanged */
+	static void assertOptimizedKeepsPixels(String compressor) throws Exception
+	{
+		File image = new File(CompressionRoundTrips.class.getResource("/images/amigaball.png").toURI());
+		PngImage original = new PngImage(image.getPath());
+		int[] pixels = new PngDecoder().decodeArgb(original);
+
+		PngOptimizer optimizer = new PngOptimizer(Logger.NONE);
+		optimizer.setCompressor(compressor);
+		byte[] optimized = optimizer.getBytes(optimizer.optimize(original, 9));
+		assertArrayEquals(compressor, pixels, new PngDecoder().decodeArgb(new PngImage(new ByteArrayInputStream(optimized))));
+	}
+
+	/** Empty, tiny, random and repetitive data, of up to about the given length */
+	static List<byte[]> getSamples(int length)
+	{
+		List<byte[]> samples = new ArrayList<byte[]>();
+		samples.add(new byte[0]);
+		samples.add(new byte[] { 42 });
+
+		byte[] random = new byte[length / 3];
+		new Random(1).nextBytes(random);
+		samples.add(random);
+
+		// rows of a gradient with some noise, much like filtered image data
+		Random noise = new Random(2);
+		byte[] rows = new byte[length];
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = (byte) ((i % 1000 == 0) ? 1 : (i % 1000) / 4 + ((noise.nextInt(8) == 0) ? noise.nextInt(16) : 0));
+		samples.add(rows);
+
+		return samples;
+	}
+
+	/* */
+	private static byte[] inflate(byte[] deflated) throws DataFormatException
+	{
+		Inflater inflater = new Inflater();
+		try
+		{
+			inflater.setInput(deflated);
+			ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished())
+			{
+				int length = inflater.inflate(buffer);
+				assertTrue("The stream ended early", length > 0 || inflater.finished() || !inflater.needsInput());
+				inflated.write(buffer, 0, length);
+			}
+			assertTrue("Data after the end of the stream", inflater.getRemaining() == 0);
+
+			return inflated.toByteArray();
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Checks PngDecoder against ImageIO on the bundled images, including the
+ * png suite's every bit depth, color type and interlacing.
+ */
+public class PngDecoderTest
+{
+	/** */
+	private final PngDecoder decoder = new PngDecoder();
+
+	/**
+	 * The samples decoded must be those in ImageIO's raster, which holds
+	 * palette indexes rather than colors, and the same number of channels as
+	 * the png unless ImageIO added one for tRNS.
+	 */
+	@Test
+	public void decodesTheSameSamplesAsImageIO() throws Exception
+	{
+		int compared = 0;
+		for (File file : getImages())
+		{
+			byte[] png = Files.readAllBytes(file.toPath());
+			BufferedImage reference = ImageIO.read(new ByteArrayInputStream(png));
+			PngImage image = new PngImage(new ByteArrayInputStream(png));
+
+			int width = (int) image.getWidth();
+			int height = (int) image.getHeight();
+			int bitDepth = image.getBitDepth();
+			int channels = PngImageType.forColorType(image.getColorType()).channelCount();
+			Raster raster = reference.getRaster();
+			if (raster.getNumBands() != channels)
+				continue;
+
+			int rowLength = PngDecoder.getRowLength(image);
+			ByteBuffer raw = ByteBuffer.allocate(rowLength * height);
+			this.decoder.decode(image, raw);
+
+			byte[] samples = raw.array();
+			int[] expected = new int[channels];
+			for (int y = 0; y < height; y++)
+			{
+				for (int x = 0; x < width; x++)
+				{
+					raster.getPixel(x, y, expected);
+					for (int c = 0; c < channels; c++)
+					{
+						int sample = (x * channels + c) * bitDepth;
+						int offset = y * rowLength + sample / 8;
+						int actual = (bitDepth == 16) ? ((samples[offset] & 0xff) << 8 | (samples[offset + 1] & 0xff))
+								: (samples[offset] >> (8 - bitDepth - sample % 8)) & ((1 << bitDepth) - 1);
+						assertEquals(String.format("%s at %d,%d channel %d", file.getName(), x, y, c), expected[c], actual);
+					}
+				}
+			}
+			compared++;
+		}
+		assertTrue("Too few images compared: " + compared, compared > 100);
+	}
+
+	/**
+	 * ImageIO converts greyscale and 16 bit samples its own way, so ARGB
+	 * pixels are compared only for color images of up to 8 bits.
+	 */
+	@Test
+	public void decodesTheSameColorsAsImageIO() throws Exception
+	{
+		for (File file : getImages())
+		{
+			byte[] png = Files.readAllBytes(file.toPath());
+			PngImage image = new PngImage(new ByteArrayInputStream(png));
+			if (image.getBitDepth() > 8 || (image.getColorType() & 2) == 0)
+				continue;
+
+			BufferedImage reference = ImageIO.read(new ByteArrayInputStream(png));
+			int width = reference.getWidth();
+			int height = reference.getHeight();
+			assertArrayEquals(file.getName(), reference.getRGB(0, 0, width, height, null, 0, width), this.decoder.decodeArgb(image));
+		}
+	}
+
+	/** The bundled images, less the png suite's corrupted ones, whose names start with x */
+	static List<File> getImages() throws Exception
+	{
+		File images = new File(PngDecoderTest.class.getResource("/images").toURI());
+		List<File> result = new ArrayList<File>();
+		for (File directory : Arrays.asList(images, new File(images, "pngsuite")))
+		{
+			for (File file : directory.listFiles())
+			{
+				if (file.getName().endsWith(".png") && !(directory != images && file.getName().startsWith("x")))
+					result.add(file);
+			}
+		}
+		return result;
+	}
+}
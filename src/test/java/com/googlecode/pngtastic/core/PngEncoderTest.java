@@ -0,0 +1,104 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Round trips images through PngEncoder: what it encodes must decode to the
+ * pixels it was given.
+ */
+public class PngEncoderTest
+{
+	/** */
+	@Test
+	public void fastEffortRoundTrips() throws Exception
+	{
+		PngEncoder encoder = new PngEncoder();
+		for (File file : PngDecoderTest.getImages())
+			assertRoundTrips(encoder, file);
+	}
+
+	/** The full effort is many times slower, so it is checked on the basic images only */
+	@Test
+	public void fullEffortRoundTrips() throws Exception
+	{
+		PngEncoder encoder = new PngEncoder();
+		encoder.setEffort(PngEncoder.EFFORT_FULL);
+		encoder.setCompressionLevel(9);
+		for (File file : PngDecoderTest.getImages())
+		{
+			if (file.getName().startsWith("basn"))
+				assertRoundTrips(encoder, file);
+		}
+	}
+
+	/** */
+	@Test
+	public void argbRoundTrips() throws Exception
+	{
+		int width = 300;
+		int height = 200;
+		int[] pixels = new int[10 + width * height];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (i * 0x01030507) ^ (i << 24);
+
+		for (boolean alpha : new boolean[] { true, false })
+		{
+			// without alpha every pixel comes back opaque
+			int[] expected = new int[width * height];
+			for (int i = 0; i < expected.length; i++)
+				expected[i] = alpha ? pixels[10 + i] : pixels[10 + i] | 0xff000000;
+
+			byte[] png = new PngEncoder().encodeArgb(pixels, 10, width, width, height, alpha);
+			assertArrayEquals("alpha " + alpha, expected, new PngDecoder().decodeArgb(new PngImage(new ByteArrayInputStream(png))));
+		}
+	}
+
+	/** */
+	@Test
+	public void samplesRoundTrip() throws Exception
+	{
+		// 4x2 pixels of 2 bit greyscale
+		byte[] samples = new byte[] { (byte) 0x1b, (byte) 0xe4 };
+		for (String effort : new String[] { PngEncoder.EFFORT_FAST, PngEncoder.EFFORT_FULL })
+		{
+			PngEncoder encoder = new PngEncoder();
+			encoder.setEffort(effort);
+			byte[] png = encoder.encode(samples, 4, 2, PngImageType.GREYSCALE, 2, null, null);
+
+			ByteBuffer decoded = ByteBuffer.allocate(samples.length);
+			new PngDecoder().decode(new PngImage(new ByteArrayInputStream(png)), decoded);
+			assertArrayEquals(effort, samples, decoded.array());
+		}
+	}
+
+	/** */
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesTooFewPixels() throws Exception
+	{
+		new PngEncoder().encodeArgb(new int[99], 0, 10, 10, 10, true);
+	}
+
+	/* */
+	private static void assertRoundTrips(PngEncoder encoder, File file) throws Exception
+	{
+		BufferedImage image = ImageIO.read(file);
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoder.encode(image)));
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		assertArrayEquals(file.getName(), image.getRGB(0, 0, width, height, null, 0, width), decoded.getRGB(0, 0, width, height, null, 0, width));
+	}
+}
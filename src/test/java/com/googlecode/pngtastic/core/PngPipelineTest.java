@@ -0,0 +1,72 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Interrupts pipelined optimizations part way through: the pipeline's
+ * threads must all finish rather than block on each other's queues.
+ */
+public class PngPipelineTest
+{
+	/** */
+	@Test
+	public void interruptedPipelineStopsItsThreads() throws Exception
+	{
+		final PngImage image;
+		InputStream in = PngPipelineTest.class.getResourceAsStream("/images/frymire.png");
+		try
+		{
+			image = new PngImage(in);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		for (long delay : new long[] { 10, 50, 200 })
+		{
+			Set<Thread> before = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+
+			Thread optimizing = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					PngOptimizer optimizer = new PngOptimizer(Logger.NONE);
+					optimizer.setPipelined(true);
+					try
+					{
+						optimizer.optimize(image, 9);
+					}
+					catch (Exception e)
+					{
+						// being interrupted is expected
+					}
+				}
+			});
+			optimizing.start();
+			Thread.sleep(delay);
+			optimizing.interrupt();
+			optimizing.join(30000);
+			assertTrue("Optimizing did not stop after " + delay + "ms", !optimizing.isAlive());
+
+			for (Thread thread : Thread.getAllStackTraces().keySet())
+			{
+				if (!before.contains(thread))
+				{
+					thread.join(10000);
+					assertTrue(thread.getName() + " still running after " + delay + "ms", !thread.isAlive());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import org.junit.Test;
+
+import com.googlecode.pngtastic.core.processing.PngCompressionHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticDeflaterCompressionHandler;
+
+/**
+ * Round trips data and an image through the pure Java deflater.
+ */
+public class PngtasticDeflaterCompressionHandlerTest
+{
+	/** */
+	@Test
+	public void roundTripsAtEachEffort() throws Exception
+	{
+		PngCompressionHandler handler = new PngtasticDeflaterCompressionHandler(CompressionRoundTrips.LOG);
+		for (Integer level : new Integer[] { 0, 1, 4, 7, 9, null })
+			CompressionRoundTrips.assertRoundTrips(handler, level, CompressionRoundTrips.getSamples(300 * 1024));
+	}
+
+	/** */
+	@Test
+	public void optimizedImageKeepsItsPixels() throws Exception
+	{
+		CompressionRoundTrips.assertOptimizedKeepsPixels(PngOptimizer.PNGTASTIC_COMPRESSOR);
+	}
+}
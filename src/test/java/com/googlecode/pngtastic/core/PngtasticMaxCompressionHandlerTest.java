@@ -0,0 +1,30 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import org.junit.Test;
+
+import com.googlecode.pngtastic.core.processing.PngtasticMaxCompressionHandler;
+
+/**
+ * Round trips data and an image through the max compression engine.
+ */
+public class PngtasticMaxCompressionHandlerTest
+{
+	/** The max deflater works in chunks of a megabyte, so the larger samples span several */
+	@Test
+	public void roundTripsAcrossChunks() throws Exception
+	{
+		CompressionRoundTrips.assertRoundTrips(new PngtasticMaxCompressionHandler(CompressionRoundTrips.LOG, 2), null,
+				CompressionRoundTrips.getSamples(5 * 1024 * 1024 / 2));
+	}
+
+	/** */
+	@Test
+	public void optimizedImageKeepsItsPixels() throws Exception
+	{
+		CompressionRoundTrips.assertOptimizedKeepsPixels(PngOptimizer.MAX_COMPRESSOR);
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.core;
+
+import org.junit.Test;
+
+import com.googlecode.pngtastic.core.processing.PngCompressionHandler;
+import com.googlecode.pngtastic.core.processing.PngtasticParallelCompressionHandler;
+
+/**
+ * Round trips data and an image through the parallel deflate.
+ */
+public class PngtasticParallelCompressionHandlerTest
+{
+	/** The parallel handler deflates blocks of 128k, so the larger samples span several */
+	@Test
+	public void roundTripsAcrossBlocks() throws Exception
+	{
+		PngCompressionHandler handler = new PngtasticParallelCompressionHandler(CompressionRoundTrips.LOG);
+		for (Integer level : new Integer[] { 1, 9, null })
+			CompressionRoundTrips.assertRoundTrips(handler, level, CompressionRoundTrips.getSamples(300 * 1024));
+	}
+
+	/** */
+	@Test
+	public void optimizedImageKeepsItsPixels() throws Exception
+	{
+		CompressionRoundTrips.assertOptimizedKeepsPixels(PngOptimizer.PARALLEL_COMPRESSOR);
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * $Id$
+ * $URL$
+ */
+package com.googlecode.pngtastic.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import org.junit.Test;
+
+/**
+ * Sends images to a server listening on localhost: requests beyond the
+ * workers and the queue must be refused, repeated ones answered from the
+ * cache, and late ones answered with the original image.
+ */
+public class PngtasticServerTest
+{
+	/** */
+	private PngtasticServer server;
+
+	/** */
+	@Test
+	public void refusesRequestsWhenTheQueueIsFull() throws Exception
+	{
+		// one worker and one place in the queue
+		this.server = this.start(1, 1);
+		try
+		{
+			final byte[] image = readImage("frymire.png");
+
+			// the clients are daemons, left waiting for the images the server drops when stopped
+			for (int i = 0; i < 2; i++)
+			{
+				Thread client = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							PngtasticServerTest.this.post("max", null, image).getResponseCode();
+						}
+						catch (IOException e)
+						{
+							// the server is stopped before these finish
+						}
+					}
+				});
+				client.setDaemon(true);
+				client.start();
+			}
+
+			long giveUp = System.currentTimeMillis() + 30000;
+			while (this.getMetric("pngtastic_active_workers") + this.getMetric("pngtastic_queued_images") < 2)
+			{
+				assertTrue("The slow requests never filled the server", System.currentTimeMillis() < giveUp);
+				Thread.sleep(20);
+			}
+
+			HttpURLConnection refused = this.post("max", null, image);
+			assertEquals("status", 503, refused.getResponseCode());
+			assertEquals("Retry-After", "1", refused.getHeaderField("Retry-After"));
+			assertEquals("refused", 1, this.getMetric("pngtastic_refused_total"));
+		}
+		finally
+		{
+			this.server.stop(0);
+		}
+	}
+
+	/** */
+	@Test
+	public void answersRepeatedRequestsFromTheCache() throws Exception
+	{
+		this.server = this.start(2, 2);
+		try
+		{
+			byte[] image = readImage("amigaball.png");
+
+			HttpURLConnection first = this.post("fast", null, image);
+			assertEquals("status", 200, first.getResponseCode());
+			byte[] optimized = read(first.getInputStream());
+
+			HttpURLConnection second = this.post("fast", null, image);
+			assertEquals("status", 200, second.getResponseCode());
+			assertArrayEquals("cached result", optimized, read(second.getInputStream()));
+			assertEquals("cache hits", 1, this.getMetric("pngtastic_cache_hits_total"));
+			assertEquals("optimizations", 1, this.getMetric("pngtastic_optimizations_total"));
+		}
+		finally
+		{
+			this.server.stop(0);
+		}
+	}
+
+	/** */
+	@Test
+	public void returnsTheOriginalPastTheDeadline() throws Exception
+	{
+		this.server = this.start(1, 1);
+		try
+		{
+			byte[] image = readImage("frymire.png");
+
+			HttpURLConnection late = this.post("max", 1L, image);
+			assertEquals("status", 200, late.getResponseCode());
+			assertEquals("deadline header", "true", late.getHeaderField("X-Pngtastic-Deadline-Exceeded"));
+			assertArrayEquals("original image", image, read(late.getInputStream()));
+			assertEquals("deadlines exceeded", 1, this.getMetric("pngtastic_deadlines_exceeded_total"));
+
+			// the late job is interrupted, which frees the worker
+			long giveUp = System.currentTimeMillis() + 30000;
+			while (this.getMetric("pngtastic_active_workers") > 0)
+			{
+				assertTrue("The late job never stopped", System.currentTimeMillis() < giveUp);
+				Thread.sleep(20);
+			}
+		}
+		finally
+		{
+			this.server.stop(0);
+		}
+	}
+
+	/* */
+	private PngtasticServer start(int workerThreads, int queueCapacity) throws IOException
+	{
+		PngtasticServer server = new PngtasticServer("none", new InetSocketAddress("localhost", 0), workerThreads, queueCapacity, 1L << 20);
+		server.start();
+		return server;
+	}
+
+	/* */
+	private HttpURLConnection post(String effort, Long deadline, byte[] image) throws IOException
+	{
+		String query = "effort=" + effort + ((deadline == null) ? "" : "&deadline=" + deadline);
+		HttpURLConnection connection = (HttpURLConnection) this.getUrl("/optimize?" + query).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setReadTimeout(60000);
+		connection.setFixedLengthStreamingMode(image.length);
+		OutputStream out = connection.getOutputStream();
+		try
+		{
+			out.write(image);
+		}
+		catch (IOException e)
+		{
+			// a refused request is answered without its body being read
+		}
+		finally
+		{
+			try
+			{
+				out.close();
+			}
+			catch (IOException e)
+			{
+				// as above
+			}
+		}
+		return connection;
+	}
+
+	/* */
+	private long getMetric(String name) throws IOException
+	{
+		String metrics = new String(read(this.getUrl("/metrics").openStream()), "UTF-8");
+		for (String line : metrics.split("\n"))
+		{
+			if (line.startsWith(name + " "))
+				return Long.parseLong(line.substring(name.length() + 1));
+		}
+		throw new AssertionError("No metric " + name);
+	}
+
+	/* */
+	private URL getUrl(String path) throws IOException
+	{
+		return new URL("http://localhost:" + this.server.getAddress().getPort() + path);
+	}
+
+	/* */
+	private static byte[] readImage(String name) throws IOException
+	{
+		return read(PngtasticServerTest.class.getResourceAsStream("/images/" + name));
+	}
+
+	/* */
+	private static byte[] read(InputStream in) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int length;
+			while ((length = in.read(buffer)) != -1)
+				out.write(buffer, 0, length);
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}